@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.protocol.http.api;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pool of equally sized byte arrays, used as scratch space for data of
+ * unknown size such as response bodies. At most <code>maxBuffers</code>
+ * released arrays are kept; arrays of another size, e.g. ones grown with
+ * {@link #grow(byte[], int, int)}, are left to the garbage collector.
+ */
+public class BufferPool {
+
+  private int bufferSize;
+  private int maxBuffers;
+  private ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+  private AtomicInteger freeCount = new AtomicInteger(0);
+
+  public BufferPool(int bufferSize, int maxBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Get an array of <code>bufferSize</code> bytes, pooled if possible. */
+  public byte[] acquire() {
+    byte[] buf = free.poll();
+    if (buf == null) return new byte[bufferSize];
+    freeCount.decrementAndGet();
+    return buf;
+  }
+
+  /** Return an array to the pool. The caller must not use it afterwards. */
+  public void release(byte[] buf) {
+    if (buf == null || buf.length != bufferSize) return;
+    if (freeCount.incrementAndGet() > maxBuffers) {
+      freeCount.decrementAndGet();
+      return;
+    }
+    free.offer(buf);
+  }
+
+  /**
+   * Returns an array holding the first <code>used</code> bytes of
+   * <code>buf</code> and room for at least <code>minCapacity</code> bytes.
+   */
+  public static byte[] grow(byte[] buf, int used, int minCapacity) {
+    if (buf.length >= minCapacity) return buf;
+    int capacity = Math.max(minCapacity, buf.length * 2);
+    byte[] grown = new byte[capacity];
+    System.arraycopy(buf, 0, grown, 0, used);
+    return grown;
+  }
+
+  /**
+   * Returns an array holding exactly the first <code>length</code> bytes,
+   * which is <code>buf</code> itself if it has that length. Use
+   * {@link #copy(byte[], int)} for pooled arrays.
+   */
+  public static byte[] trim(byte[] buf, int length) {
+    if (buf.length == length) return buf;
+    return copy(buf, length);
+  }
+
+  /** Returns a new array holding the first <code>length</code> bytes. */
+  public static byte[] copy(byte[] buf, int length) {
+    byte[] copy = new byte[length];
+    System.arraycopy(buf, 0, copy, 0, length);
+    return copy;
+  }
+
+}
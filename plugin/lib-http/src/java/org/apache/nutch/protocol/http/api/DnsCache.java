@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http.api;
+
+// JDK imports
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Hadoop imports
+import org.apache.hadoop.conf.Configuration;
+
+
+/**
+ * A host name resolver shared by the http protocol plugins of a JVM.
+ * Resolved addresses are kept for <code>dns.cache.ttl</code> milliseconds
+ * and failed lookups for <code>dns.cache.negative.ttl</code> milliseconds,
+ * in a cache of at most <code>dns.cache.size</code> hosts. Concurrent
+ * lookups of the same host share a single query. This is the lookup side
+ * of the fetcher's resolver, for plugins built against Nutch; it has no
+ * background prefetch.
+ */
+public class DnsCache {
+
+  private static DnsCache instance = null;
+
+  /** A cached lookup result. A null address means the host is unknown. */
+  private static class CachedAddress {
+    InetAddress addr;
+    long expires;
+
+    CachedAddress(InetAddress addr, long expires) {
+      this.addr = addr;
+      this.expires = expires;
+    }
+
+    InetAddress getAddress(String host) throws UnknownHostException {
+      if (addr == null) throw new UnknownHostException(host);
+      return addr;
+    }
+  }
+
+  /** Resolves a host, caches the result and removes itself from pending. */
+  private class Lookup implements Callable<CachedAddress> {
+    private String host;
+
+    Lookup(String host) {
+      this.host = host;
+    }
+
+    public CachedAddress call() {
+      InetAddress addr = null;
+      try {
+        addr = InetAddress.getByName(host);
+      } catch (UnknownHostException e) {
+        // cached as unknown
+      }
+      CachedAddress e = new CachedAddress(addr,
+          System.currentTimeMillis() + (addr != null ? ttl : negativeTtl));
+      synchronized (cache) {
+        cache.put(host, e);
+      }
+      pending.remove(host);
+      return e;
+    }
+  }
+
+  private Map<String, CachedAddress> cache;
+  private ConcurrentHashMap<String, FutureTask<CachedAddress>> pending =
+    new ConcurrentHashMap<String, FutureTask<CachedAddress>>();
+
+  private long ttl;
+  private long negativeTtl;
+
+  /**
+   * Returns the resolver of this JVM, creating it from the given
+   * configuration on first use.
+   */
+  public static synchronized DnsCache get(Configuration conf) {
+    if (instance == null) {
+      instance = new DnsCache(conf);
+    }
+    return instance;
+  }
+
+  private DnsCache(Configuration conf) {
+    this.ttl = conf.getLong("dns.cache.ttl", 30 * 60 * 1000L);
+    this.negativeTtl = conf.getLong("dns.cache.negative.ttl", 5 * 60 * 1000L);
+    final int maxSize = conf.getInt("dns.cache.size", 100000);
+    this.cache = new LinkedHashMap<String, CachedAddress>(1024, 0.75f, true) {
+      protected boolean removeEldestEntry(
+          Map.Entry<String, CachedAddress> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Resolve a host name, from the cache if possible. If the host is being
+   * resolved already the caller waits for that lookup, otherwise it
+   * resolves the host in its own thread.
+   * @throws UnknownHostException if the host can't be resolved, or couldn't
+   * be resolved the last time within <code>dns.cache.negative.ttl</code>
+   */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    host = host.toLowerCase();
+    CachedAddress e = getCached(host);
+    if (e != null) return e.getAddress(host);
+    FutureTask<CachedAddress> task =
+      new FutureTask<CachedAddress>(new Lookup(host));
+    FutureTask<CachedAddress> running = pending.putIfAbsent(host, task);
+    if (running == null) {
+      task.run();
+    } else {
+      task = running;
+    }
+    try {
+      return task.get().getAddress(host);
+    } catch (InterruptedException ie) {
+      throw new UnknownHostException(host + ": interrupted");
+    } catch (ExecutionException ee) {
+      throw new UnknownHostException(host + ": " + ee.getCause());
+    }
+  }
+
+  private CachedAddress getCached(String host) {
+    synchronized (cache) {
+      CachedAddress e = cache.get(host);
+      if (e == null) return null;
+      if (e.expires < System.currentTimeMillis()) {
+        cache.remove(host);
+        return null;
+      }
+      return e;
+    }
+  }
+
+}
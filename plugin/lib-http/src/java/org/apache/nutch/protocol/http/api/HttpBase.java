@@ -17,12 +17,15 @@
 package org.apache.nutch.protocol.http.api;
 
 // JDK imports
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -30,6 +33,7 @@ import org.apache.commons.logging.LogFactory;
 
 // Nutch imports
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
@@ -43,6 +47,7 @@ import org.apache.nutch.util.LogUtil;
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 
 /**
  * @author J&eacute;r&ocirc;me Charron
@@ -52,8 +57,18 @@ public abstract class HttpBase implements Protocol {
   
   public static final int BUFFER_SIZE = 8 * 1024;
   
+  /** Larger response bodies are read into arrays which aren't pooled. */
+  private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+  
   private static final byte[] EMPTY_CONTENT = new byte[0];
 
+  /**
+   * CrawlDatum metadata key of the entity tag of the last fetched version
+   * of a page. Nutch's metadata has none, so this is the key the fetcher
+   * writes, YuQing.WRITABLE_ETAG_KEY.
+   */
+  public static final Text WRITABLE_ETAG_KEY = new Text("_etag_");
+
   private RobotRulesParser robots = null;
  
   /** The proxy hostname. */ 
@@ -112,6 +127,13 @@ public abstract class HttpBase implements Protocol {
    */
   private static LinkedList BLOCKED_ADDR_QUEUE = new LinkedList();
   
+  /**
+   * Guards the three structures above. An explicit lock rather than a
+   * monitor, so that fetcher threads running as virtual threads don't pin
+   * their carrier thread while waiting for it.
+   */
+  private static final ReentrantLock BLOCKED_ADDR_LOCK = new ReentrantLock();
+  
   /** The default logger */
   private final static Log LOGGER = LogFactory.getLog(HttpBase.class);
 
@@ -123,6 +145,9 @@ public abstract class HttpBase implements Protocol {
   
   /** Do we block by IP addresses or by hostnames? */
   private boolean byIP = true;
+  
+  /** Resolver shared with the fetcher. */
+  private DnsCache dns = null;
  
   /** Do we use HTTP/1.1? */
   protected boolean useHttp11 = false;
@@ -135,6 +160,12 @@ public abstract class HttpBase implements Protocol {
   
   /** Plugin should handle robot rules checking internally. */
   protected boolean checkRobots = true;
+  
+  /** Do we send conditional requests for pages fetched before? */
+  protected boolean conditionalGet = true;
+  
+  /** Scratch buffers for response bodies. */
+  private BufferPool buffers = null;
 
   /** Creates a new instance of HttpBase */
   public HttpBase() {
@@ -166,6 +197,12 @@ public abstract class HttpBase implements Protocol {
         // backward-compatible default setting
         this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", true);
         this.useHttp11 = conf.getBoolean("http.useHttp11", false);
+        this.conditionalGet = conf.getBoolean("http.conditional.get", true);
+        this.buffers = new BufferPool(
+            maxContent >= 0 && maxContent <= MAX_POOLED_BUFFER_SIZE
+              ? maxContent : MAX_POOLED_BUFFER_SIZE,
+            conf.getInt("http.buffer.pool.size", 64));
+        this.dns = DnsCache.get(conf);
         this.robots.setConf(conf);
         this.checkBlocking = conf.getBoolean(Protocol.CHECK_BLOCKING, true);
         this.checkRobots = conf.getBoolean(Protocol.CHECK_ROBOTS, true);
@@ -300,9 +337,38 @@ public abstract class HttpBase implements Protocol {
     return useProxy;
   }
 
+  /** Returns the pool of scratch buffers for reading response bodies. */
+  public BufferPool getBufferPool() {
+    return buffers;
+  }
+  
   public int getTimeout() {
     return timeout;
   }
+  
+  /**
+   * Returns the value of an If-Modified-Since request header for a page,
+   * or null if the request shouldn't be conditional on its modified time.
+   */
+  public String getIfModifiedSince(CrawlDatum datum) {
+    if (!conditionalGet || datum.getModifiedTime() <= 0) return null;
+    return HttpDateFormat.toString(datum.getModifiedTime());
+  }
+  
+  /**
+   * Returns the value of an If-None-Match request header for a page, or
+   * null if the request shouldn't be conditional on its entity tag.
+   */
+  public String getIfNoneMatch(CrawlDatum datum) {
+    if (!conditionalGet) return null;
+    Writable etag = datum.getMetaData().get(WRITABLE_ETAG_KEY);
+    return etag == null ? null : etag.toString();
+  }
+  
+  /** Resolve a host through the shared DNS cache. */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    return dns.resolve(host);
+  }
 
   public int getMaxContent() {
     return maxContent;
@@ -333,7 +399,7 @@ public abstract class HttpBase implements Protocol {
     String host;
     if (byIP) {
       try {
-        InetAddress addr = InetAddress.getByName(url.getHost());
+        InetAddress addr = dns.resolve(url.getHost());
         host = addr.getHostAddress();
       } catch (UnknownHostException e) {
         // unable to resolve it, so don't fall back to host name
@@ -351,7 +417,8 @@ public abstract class HttpBase implements Protocol {
       cleanExpiredServerBlocks();                 // free held addresses
       
       Long time;
-      synchronized (BLOCKED_ADDR_TO_TIME) {
+      BLOCKED_ADDR_LOCK.lock();
+      try {
         time = (Long) BLOCKED_ADDR_TO_TIME.get(host);
         if (time == null) {                       // address is free
           
@@ -367,6 +434,8 @@ public abstract class HttpBase implements Protocol {
           }
           return host;
         }
+      } finally {
+        BLOCKED_ADDR_LOCK.unlock();
       }
       
       if (delays == maxDelays)
@@ -390,7 +459,8 @@ public abstract class HttpBase implements Protocol {
   }
   
   private void unblockAddr(String host, long crawlDelay) {
-    synchronized (BLOCKED_ADDR_TO_TIME) {
+    BLOCKED_ADDR_LOCK.lock();
+    try {
       int addrCount = ((Integer)THREADS_PER_HOST_COUNT.get(host)).intValue();
       if (addrCount == 1) {
         THREADS_PER_HOST_COUNT.remove(host);
@@ -400,11 +470,14 @@ public abstract class HttpBase implements Protocol {
       } else {
         THREADS_PER_HOST_COUNT.put(host, new Integer(addrCount - 1));
       }
+    } finally {
+      BLOCKED_ADDR_LOCK.unlock();
     }
   }
   
   private static void cleanExpiredServerBlocks() {
-    synchronized (BLOCKED_ADDR_TO_TIME) {
+    BLOCKED_ADDR_LOCK.lock();
+    try {
       for (int i = BLOCKED_ADDR_QUEUE.size() - 1; i >= 0; i--) {
         String host = (String) BLOCKED_ADDR_QUEUE.get(i);
         long time = ((Long) BLOCKED_ADDR_TO_TIME.get(host)).longValue();
@@ -413,6 +486,8 @@ public abstract class HttpBase implements Protocol {
           BLOCKED_ADDR_QUEUE.remove(i);
         }
       }
+    } finally {
+      BLOCKED_ADDR_LOCK.unlock();
     }
   }
   
@@ -478,27 +553,76 @@ public abstract class HttpBase implements Protocol {
   }
   
   public byte[] processGzipEncoded(byte[] compressed, URL url) throws IOException {
+    return processGzipEncoded(compressed, compressed.length, url);
+  }
+  
+  /**
+   * Uncompress the first <code>length</code> bytes of a gzip encoded body,
+   * truncating it to <code>http.content.limit</code>. The body is inflated
+   * into a pooled buffer, so only the returned array is allocated.
+   */
+  public byte[] processGzipEncoded(byte[] compressed, int length, URL url)
+    throws IOException {
 
     if (LOGGER.isTraceEnabled()) { LOGGER.trace("uncompressing...."); }
 
     byte[] content;
-    if (getMaxContent() >= 0) {
-        content = GZIPUtils.unzipBestEffort(compressed, getMaxContent());
+    if (getMaxContent() >= 0 && getMaxContent() == buffers.getBufferSize()) {
+      byte[] out = buffers.acquire();
+      try {
+        int size = unzipBestEffort(compressed, length, out);
+        content = size < 0 ? null : BufferPool.copy(out, size);
+      } finally {
+        buffers.release(out);
+      }
     } else {
-        content = GZIPUtils.unzipBestEffort(compressed);
-    } 
+      byte[] in = BufferPool.trim(compressed, length);
+      if (getMaxContent() >= 0) {
+        content = GZIPUtils.unzipBestEffort(in, getMaxContent());
+      } else {
+        content = GZIPUtils.unzipBestEffort(in);
+      }
+    }
 
     if (content == null)
       throw new IOException("unzipBestEffort returned null");
 
     if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("fetched " + compressed.length
+      LOGGER.trace("fetched " + length
                  + " bytes of compressed content (expanded to "
                  + content.length + " bytes) from " + url);
     }
     return content;
   }
   
+  /**
+   * Gunzips the first <code>length</code> bytes of <code>in</code> into
+   * <code>out</code>, stopping when <code>out</code> is full. If the gzipped
+   * input has been truncated or corrupted, a best-effort attempt is made to
+   * unzip as much as possible. Returns the number of bytes written to
+   * <code>out</code>, or -1 if the input isn't gzipped at all.
+   */
+  private static int unzipBestEffort(byte[] in, int length, byte[] out) {
+    GZIPInputStream inStream;
+    try {
+      inStream = new GZIPInputStream(new ByteArrayInputStream(in, 0, length));
+    } catch (IOException e) {
+      return -1;
+    }
+    int written = 0;
+    while (written < out.length) {
+      try {
+        int size = inStream.read(out, written, out.length - written);
+        if (size <= 0)
+          break;
+        written += size;
+      } catch (Exception e) {
+        break;
+      }
+    }
+    return written;
+  }
+
   protected static void main(HttpBase http, String[] args) throws Exception {
     boolean verbose = false;
     String url = null;
@@ -17,6 +17,8 @@
 package org.apache.nutch.protocol.http.api;
 
 // JDK imports
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.LineNumberReader;
@@ -25,8 +27,11 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.locks.ReentrantLock;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -34,7 +39,9 @@ import org.apache.commons.logging.LogFactory;
 // Nutch imports
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
@@ -56,7 +63,27 @@ public class RobotRulesParser implements Configurable {
 
   private boolean allowForbidden = false;
 
-  private static final Hashtable CACHE = new Hashtable();
+  /** Maximum number of hosts in CACHE. */
+  private static int cacheSize = 10000;
+
+  /**
+   * Parsed rules by host, least recently used first. Guarded by CACHE_LOCK,
+   * a lock rather than a monitor so that fetcher threads running as virtual
+   * threads don't pin their carrier while waiting for it.
+   */
+  private static final LinkedHashMap CACHE =
+    new LinkedHashMap(1024, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > cacheSize;
+      }
+    };
+  private static final ReentrantLock CACHE_LOCK = new ReentrantLock();
+
+  /** Rules shared with other fetch tasks, or null if not configured. */
+  private static RobotRulesStore store = null;
+
+  /** How long fetched rules are used, in milliseconds. */
+  private long cacheTtl;
   
   private static final String CHARACTER_ENCODING= "UTF-8";
   private static final int NO_PRECEDENCE= Integer.MAX_VALUE;
@@ -72,7 +99,7 @@ public class RobotRulesParser implements Configurable {
    * This class holds the rules which were parsed from a robots.txt
    * file, and can test paths against those rules.
    */
-  public static class RobotRuleSet implements RobotRules {
+  public static class RobotRuleSet implements RobotRules, Writable {
     ArrayList tmpEntries = new ArrayList();
     RobotsEntry[] entries = null;
     long expireTime;
@@ -170,28 +197,57 @@ public class RobotRulesParser implements Configurable {
         // path prefixes
       }
       
+      RobotsEntry[] rules= getEntries();
+      int pos= 0;
+      int end= rules.length;
+      while (pos < end) {
+        if (path.startsWith(rules[pos].prefix))
+          return rules[pos].allowed;
+        pos++;
+      }
+
+      return true;
+    }
+
+    /**
+     * Returns the rules as an array, which is built from the added
+     * prefixes when first needed.
+     */
+    private RobotsEntry[] getEntries() {
       if (entries == null) {
-        entries= new RobotsEntry[tmpEntries.size()];
         entries= (RobotsEntry[]) 
-          tmpEntries.toArray(entries);
+          tmpEntries.toArray(new RobotsEntry[tmpEntries.size()]);
         tmpEntries= null;
       }
+      return entries;
+    }
 
-      int pos= 0;
-      int end= entries.length;
-      while (pos < end) {
-        if (path.startsWith(entries[pos].prefix))
-          return entries[pos].allowed;
-        pos++;
+    public void write(DataOutput out) throws IOException {
+      RobotsEntry[] entries= getEntries();
+      out.writeLong(expireTime);
+      out.writeLong(crawlDelay);
+      out.writeInt(entries.length);
+      for (int i= 0; i < entries.length; i++) {
+        Text.writeString(out, entries[i].prefix);
+        out.writeBoolean(entries[i].allowed);
       }
+    }
 
-      return true;
+    public void readFields(DataInput in) throws IOException {
+      expireTime = in.readLong();
+      crawlDelay = in.readLong();
+      entries = new RobotsEntry[in.readInt()];
+      for (int i= 0; i < entries.length; i++) {
+        String prefix = Text.readString(in);
+        entries[i] = new RobotsEntry(prefix, in.readBoolean());
+      }
+      tmpEntries = null;
     }
 
     /**
      */
     public String toString() {
-      isAllowed("x");  // force String[] representation
+      RobotsEntry[] entries= getEntries();
       StringBuffer buf= new StringBuffer();
       for (int i= 0; i < entries.length; i++) 
         if (entries[i].allowed)
@@ -251,6 +307,53 @@ public class RobotRulesParser implements Configurable {
       }
     }
     setRobotNames((String[]) agents.toArray(new String[agents.size()]));
+
+    cacheTtl = conf.getLong("http.robots.cache.ttl", 24L * 60 * 60 * 1000);
+    CACHE_LOCK.lock();
+    try {
+      setCacheSize(conf.getInt("http.robots.cache.size", 10000));
+      String dir = conf.get("http.robots.cache.dir", "");
+      if (store == null && dir.length() > 0) {
+        loadStore(conf, new Path(dir));
+      }
+    } finally {
+      CACHE_LOCK.unlock();
+    }
+  }
+
+  /**
+   * Set the maximum number of hosts in the cache, dropping the least
+   * recently used ones above it.
+   */
+  static void setCacheSize(int size) {
+    CACHE_LOCK.lock();
+    try {
+      cacheSize = size;
+      Iterator it = CACHE.keySet().iterator();
+      while (CACHE.size() > cacheSize && it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    } finally {
+      CACHE_LOCK.unlock();
+    }
+  }
+
+  // caller must hold CACHE_LOCK
+  private static void loadStore(Configuration conf, Path dir) {
+    try {
+      store = new RobotRulesStore(conf, dir);
+      Map rules = store.load(System.currentTimeMillis());
+      CACHE.putAll(rules);
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Loaded robots.txt rules for " + rules.size()
+                 + " hosts from " + dir);
+      }
+    } catch (IOException e) {
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("Couldn't load robots.txt rules from " + dir + ": " + e);
+      }
+    }
   }
 
   public Configuration getConf() {
@@ -447,7 +550,7 @@ public class RobotRulesParser implements Configurable {
 
     String host = url.getHost().toLowerCase(); // normalize to lower case
 
-    RobotRuleSet robotRules = (RobotRuleSet)CACHE.get(host);
+    RobotRuleSet robotRules = getCachedRules(host);
 
     boolean cacheRule = true;
     
@@ -475,12 +578,47 @@ public class RobotRulesParser implements Configurable {
       }
 
       if (cacheRule){
-	CACHE.put(host, robotRules);  // cache rules for host
+        // the shared rule sets can't carry a per host expire time
+        if (robotRules == EMPTY_RULES) {
+          robotRules = new RobotRuleSet();
+        } else if (robotRules == FORBID_ALL_RULES) {
+          robotRules = getForbidAllRules();
+        }
+        robotRules.setExpireTime(System.currentTimeMillis() + cacheTtl);
+        putCachedRules(host, robotRules);
+        if (store != null) {
+          store.add(host, robotRules);
+        }
       }
     }
     return robotRules;
   }
 
+  /** Cache the rules of a host, until their expire time. */
+  static void putCachedRules(String host, RobotRuleSet rules) {
+    CACHE_LOCK.lock();
+    try {
+      CACHE.put(host, rules);
+    } finally {
+      CACHE_LOCK.unlock();
+    }
+  }
+
+  /** Returns the cached rules for a host, or null if none or expired. */
+  static RobotRuleSet getCachedRules(String host) {
+    CACHE_LOCK.lock();
+    try {
+      RobotRuleSet rules = (RobotRuleSet)CACHE.get(host);
+      if (rules != null && rules.getExpireTime() < System.currentTimeMillis()) {
+        CACHE.remove(host);
+        rules = null;
+      }
+      return rules;
+    } finally {
+      CACHE_LOCK.unlock();
+    }
+  }
+
   public boolean isAllowed(HttpBase http, URL url)
       throws ProtocolException, IOException {
     String path = url.getPath();                  // check rules
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http.api;
+
+// JDK imports
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+// Hadoop imports
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+
+import org.apache.nutch.protocol.http.api.RobotRulesParser.RobotRuleSet;
+
+
+/**
+ * Keeps parsed robots.txt rules in a directory, usually
+ * <code>http.robots.cache.dir</code>, so that a fetch task can start with
+ * the rules fetched by earlier tasks instead of fetching robots.txt again
+ * for every host. Each task adds the rules it fetched as new files of at
+ * most <code>http.robots.cache.flush</code> hosts, and writes the rules
+ * added since at least every <code>http.robots.cache.flush.interval</code>
+ * seconds, so that tasks which fetch few hosts store them too. Files whose
+ * rules have all expired are deleted when the store is loaded.
+ */
+public class RobotRulesStore {
+
+  public static final Log LOG = LogFactory.getLog(RobotRulesStore.class);
+
+  private static final int VERSION = 1;
+
+  /** Skips files still being written. */
+  private static final PathFilter DONE = new PathFilter() {
+      public boolean accept(Path path) {
+        return !path.getName().startsWith("_");
+      }
+    };
+
+  private static final Random RANDOM = new Random();
+
+  private FileSystem fs;
+  private Path dir;
+  private int flushSize;
+
+  /** Rules fetched since the last flush. */
+  private Map<String, RobotRuleSet> added = new HashMap<String, RobotRuleSet>();
+  private ReentrantLock lock = new ReentrantLock();
+  private Timer timer;
+
+  public RobotRulesStore(Configuration conf, Path dir) throws IOException {
+    this.fs = FileSystem.get(conf);
+    this.dir = dir;
+    this.flushSize = conf.getInt("http.robots.cache.flush", 1000);
+    fs.mkdirs(dir);
+    long interval = conf.getLong("http.robots.cache.flush.interval", 60) * 1000;
+    if (interval > 0) {
+      timer = new Timer("RobotRulesStore", true);
+      timer.schedule(new TimerTask() {
+          public void run() {
+            flush();
+          }
+        }, interval, interval);
+    }
+  }
+
+  /** Read all rules which haven't expired at <code>now</code>. */
+  public Map<String, RobotRuleSet> load(long now) throws IOException {
+    Map<String, RobotRuleSet> rules = new HashMap<String, RobotRuleSet>();
+    Path[] files = fs.listPaths(dir, DONE);
+    for (int i = 0; i < files.length; i++) {
+      long lastExpire = 0;
+      FSDataInputStream in = null;
+      try {
+        in = fs.open(files[i]);
+        if (in.readInt() != VERSION) {
+          LOG.warn("Skipping " + files[i] + ": unknown version");
+          continue;
+        }
+        while (in.readBoolean()) {
+          String host = Text.readString(in);
+          RobotRuleSet r = new RobotRuleSet();
+          r.readFields(in);
+          lastExpire = Math.max(lastExpire, r.getExpireTime());
+          if (r.getExpireTime() < now) continue;
+          RobotRuleSet old = rules.get(host);
+          if (old == null || old.getExpireTime() < r.getExpireTime()) {
+            rules.put(host, r);
+          }
+        }
+      } catch (IOException e) {
+        // possibly deleted by another task meanwhile
+        LOG.warn("Skipping " + files[i] + ": " + e);
+        continue;
+      } finally {
+        if (in != null) in.close();
+      }
+      if (lastExpire < now) {
+        fs.delete(files[i]);
+      }
+    }
+    return rules;
+  }
+
+  /** Add the rules of a host, writing a new file every flushSize hosts. */
+  public void add(String host, RobotRuleSet rules) {
+    boolean full;
+    lock.lock();
+    try {
+      added.put(host, rules);
+      full = added.size() >= flushSize;
+    } finally {
+      lock.unlock();
+    }
+    if (full) flush();
+  }
+
+  /** Write the rules added since the last flush to a new file. */
+  public void flush() {
+    Map<String, RobotRuleSet> rules;
+    lock.lock();
+    try {
+      if (added.isEmpty()) return;
+      rules = added;
+      added = new HashMap<String, RobotRuleSet>();
+    } finally {
+      lock.unlock();
+    }
+    String name = "rules-" + System.currentTimeMillis() + "-"
+      + Integer.toHexString(RANDOM.nextInt());
+    Path tmp = new Path(dir, "_" + name);
+    try {
+      FSDataOutputStream out = fs.create(tmp);
+      try {
+        out.writeInt(VERSION);
+        Iterator<Map.Entry<String, RobotRuleSet>> it =
+          rules.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, RobotRuleSet> e = it.next();
+          out.writeBoolean(true);
+          Text.writeString(out, e.getKey());
+          e.getValue().write(out);
+        }
+        out.writeBoolean(false);
+      } finally {
+        out.close();
+      }
+      fs.rename(tmp, new Path(dir, name));
+    } catch (IOException e) {
+      LOG.warn("Couldn't store robots.txt rules in " + dir + ": " + e);
+    }
+  }
+
+}
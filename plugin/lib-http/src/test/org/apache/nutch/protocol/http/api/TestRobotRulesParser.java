@@ -17,6 +17,10 @@
 
 package org.apache.nutch.protocol.http.api;
 
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.nutch.protocol.http.api.RobotRulesParser.RobotRuleSet;
 
 import junit.framework.TestCase;
@@ -263,7 +267,78 @@ public class TestRobotRulesParser extends TestCase {
     }
   }
 
-  // helper
+  public void testWritable() throws IOException {
+    RobotRulesParser p= new RobotRulesParser(new String[] { "Agent1" });
+    RobotRuleSet rules= p.parseRules(("User-Agent: Agent1" + LF
+                                      + "Disallow: /a" + LF
+                                      + "Allow: /b" + LF
+                                      + "Disallow: /b/a" + LF
+                                      + "Crawl-Delay: 5" + LF).getBytes());
+    rules.setExpireTime(1234567890L);
+    RobotRuleSet copy= copy(rules);
+    assertEquals(1234567890L, copy.getExpireTime());
+    assertEquals(5000, copy.getCrawlDelay());
+    assertEquals(rules.toString(), copy.toString());
+    for (int i= 0; i < TEST_PATHS.length; i++) {
+      assertEquals(TEST_PATHS[i], rules.isAllowed(TEST_PATHS[i]),
+                   copy.isAllowed(TEST_PATHS[i]));
+    }
+    // a read rule set writes the same rules again
+    assertEquals(rules.toString(), copy(copy).toString());
+  }
+
+  public void testWritableEmpty() throws IOException {
+    RobotRuleSet copy= copy(new RobotRuleSet());
+    assertEquals(-1, copy.getCrawlDelay());
+    assertEquals("", copy.toString());
+    assertTrue(copy.isAllowed("/a"));
+  }
+
+  public void testCacheExpires() {
+    RobotRuleSet fresh= new RobotRuleSet();
+    fresh.setExpireTime(System.currentTimeMillis() + 60000);
+    RobotRulesParser.putCachedRules("fresh.test", fresh);
+    assertSame(fresh, RobotRulesParser.getCachedRules("fresh.test"));
+
+    RobotRuleSet stale= new RobotRuleSet();
+    stale.setExpireTime(System.currentTimeMillis() - 1);
+    RobotRulesParser.putCachedRules("stale.test", stale);
+    assertNull(RobotRulesParser.getCachedRules("stale.test"));
+  }
+
+  public void testCacheEvictsLeastRecentlyUsed() {
+    RobotRulesParser.setCacheSize(2);
+    try {
+      long expires= System.currentTimeMillis() + 60000;
+      RobotRuleSet[] rules= new RobotRuleSet[3];
+      for (int i= 0; i < rules.length; i++) {
+        rules[i]= new RobotRuleSet();
+        rules[i].setExpireTime(expires);
+      }
+      RobotRulesParser.putCachedRules("lru0.test", rules[0]);
+      RobotRulesParser.putCachedRules("lru1.test", rules[1]);
+      // use the first, so that the second is the least recently used
+      assertSame(rules[0], RobotRulesParser.getCachedRules("lru0.test"));
+      RobotRulesParser.putCachedRules("lru2.test", rules[2]);
+      assertNull(RobotRulesParser.getCachedRules("lru1.test"));
+      assertSame(rules[0], RobotRulesParser.getCachedRules("lru0.test"));
+      assertSame(rules[2], RobotRulesParser.getCachedRules("lru2.test"));
+    } finally {
+      RobotRulesParser.setCacheSize(10000);
+    }
+  }
+
+  // helpers
+
+  private static RobotRuleSet copy(RobotRuleSet rules) throws IOException {
+    DataOutputBuffer out= new DataOutputBuffer();
+    rules.write(out);
+    DataInputBuffer in= new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    RobotRuleSet copy= new RobotRuleSet();
+    copy.readFields(in);
+    return copy;
+  }
 
   public void testRobots(int robotsString, String[] agents, String[] paths, 
 			 boolean[] allowed) {
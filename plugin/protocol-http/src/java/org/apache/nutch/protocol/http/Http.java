@@ -39,6 +39,12 @@ public class Http extends HttpBase {
 
   public static final Log LOG = LogFactory.getLog(Http.class);
 
+  /** Persistent connections, or null if keep-alive is disabled. */
+  private HttpConnectionPool pool = null;
+
+  /** Log the pool counters every this many requests. */
+  private static final long POOL_STATS_INTERVAL = 1000;
+
 
   public Http() {
     super(LOG);
@@ -46,6 +52,19 @@ public class Http extends HttpBase {
 
   public void setConf(Configuration conf) {
     super.setConf(conf);
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+    int maxPerHost = conf.getInt("http.keepalive.max.per.host", 2);
+    if (useHttp11 && maxPerHost > 0) {
+      long idleTimeout = conf.getLong("http.keepalive.idle.timeout", 15000);
+      pool = new HttpConnectionPool(maxPerHost, idleTimeout);
+      if (LOG.isInfoEnabled()) {
+        LOG.info("http.keepalive.max.per.host = " + maxPerHost);
+        LOG.info("http.keepalive.idle.timeout = " + idleTimeout);
+      }
+    }
 //    Level logLevel = Level.WARNING;
 //    if (conf.getBoolean("http.verbose", false)) {
 //      logLevel = Level.FINE;
@@ -61,7 +80,19 @@ public class Http extends HttpBase {
 
   protected Response getResponse(URL url, CrawlDatum datum, boolean redirect)
     throws ProtocolException, IOException {
-    return new HttpResponse(this, url, datum);
+    HttpResponse response = new HttpResponse(this, url, datum, pool);
+    if (pool != null && LOG.isInfoEnabled()) {
+      long requests = pool.getHits() + pool.getMisses();
+      if (requests % POOL_STATS_INTERVAL == 0) {
+        LOG.info("connection pool: " + pool);
+      }
+    }
+    return response;
+  }
+
+  /** Returns the connection pool, or null if keep-alive is disabled. */
+  public HttpConnectionPool getConnectionPool() {
+    return pool;
   }
 
 }
@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http;
+
+// JDK imports
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of persistent HTTP/1.1 connections, keyed by the host and port
+ * they are connected to. Idle connections are kept for at most
+ * <code>http.keepalive.idle.timeout</code> milliseconds, and at most
+ * <code>http.keepalive.max.per.host</code> of them are kept per host.
+ * The number of connections in use is bounded by the fetcher's per-host
+ * politeness settings, so only idle connections are capped here.
+ */
+public class HttpConnectionPool {
+
+  /** A socket together with the buffered streams used to talk over it. */
+  public static class Connection {
+    private String key;
+    private Socket socket;
+    private PushbackInputStream in;
+    private OutputStream out;
+    private long lastUsed;
+    private boolean reused = false;
+
+    private Connection(String key, Socket socket) throws IOException {
+      this.key = key;
+      this.socket = socket;
+      this.in = new PushbackInputStream(
+          new BufferedInputStream(socket.getInputStream(), Http.BUFFER_SIZE),
+          Http.BUFFER_SIZE);
+      this.out = socket.getOutputStream();
+    }
+
+    public PushbackInputStream getInputStream() {
+      return in;
+    }
+
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    /** True if this connection already served an earlier request. */
+    public boolean isReused() {
+      return reused;
+    }
+
+    /** Close the connection, which can't be reused afterwards. */
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /** Idle connections by host key, most recently used first. */
+  private Map<String, LinkedList<Connection>> idle =
+    new HashMap<String, LinkedList<Connection>>();
+
+  private int maxPerHost;
+  private long idleTimeout;
+  private long lastSweep = System.currentTimeMillis();
+
+  private AtomicLong hits = new AtomicLong(0);
+  private AtomicLong misses = new AtomicLong(0);
+  private AtomicLong evictions = new AtomicLong(0);
+
+  public HttpConnectionPool(int maxPerHost, long idleTimeout) {
+    this.maxPerHost = maxPerHost;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Open a new connection to <code>host</code>, which resolves to
+   * <code>addr</code>. The connection will not be returned to any pool.
+   */
+  public static Connection connect(String host, InetAddress addr, int port,
+                                   int timeout) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setSoTimeout(timeout);
+      socket.connect(new InetSocketAddress(addr, port), timeout);
+      return new Connection(host + ":" + port, socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get an idle connection to the given host and port, or open a new one
+   * to <code>addr</code> if there is none.
+   */
+  public Connection checkout(String host, InetAddress addr, int port,
+                             int timeout) throws IOException {
+    String key = host + ":" + port;
+    List<Connection> expired = new ArrayList<Connection>();
+    Connection conn = null;
+    synchronized (idle) {
+      long now = System.currentTimeMillis();
+      if (now - lastSweep > idleTimeout) {
+        sweep(now, expired);
+      }
+      LinkedList<Connection> conns = idle.get(key);
+      while (conns != null && !conns.isEmpty()) {
+        Connection c = conns.removeFirst();
+        if (now - c.lastUsed > idleTimeout || c.socket.isClosed()) {
+          expired.add(c);
+          continue;
+        }
+        conn = c;
+        break;
+      }
+      if (conns != null && conns.isEmpty()) {
+        idle.remove(key);
+      }
+    }
+    closeAll(expired);
+    if (conn != null) {
+      conn.reused = true;
+      conn.socket.setSoTimeout(timeout);
+      hits.incrementAndGet();
+      return conn;
+    }
+    misses.incrementAndGet();
+    Connection c = connect(host, addr, port, timeout);
+    c.key = key;
+    return c;
+  }
+
+  /**
+   * Return a connection after its response has been fully read, so that it
+   * can be used for another request to the same host.
+   */
+  public void release(Connection conn) {
+    conn.lastUsed = System.currentTimeMillis();
+    synchronized (idle) {
+      LinkedList<Connection> conns = idle.get(conn.key);
+      if (conns == null) {
+        conns = new LinkedList<Connection>();
+        idle.put(conn.key, conns);
+      }
+      if (conns.size() < maxPerHost) {
+        conns.addFirst(conn);
+        return;
+      }
+    }
+    evictions.incrementAndGet();
+    conn.close();
+  }
+
+  /** Close all idle connections. */
+  public void close() {
+    List<Connection> all = new ArrayList<Connection>();
+    synchronized (idle) {
+      for (LinkedList<Connection> conns : idle.values()) {
+        all.addAll(conns);
+      }
+      idle.clear();
+    }
+    closeAll(all);
+  }
+
+  /** Number of requests served over an already open connection. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Number of requests for which a new connection had to be opened. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Number of idle connections closed because of timeout or the cap. */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public String toString() {
+    return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+  }
+
+  // caller must hold the lock on idle
+  private void sweep(long now, List<Connection> expired) {
+    Iterator<LinkedList<Connection>> it = idle.values().iterator();
+    while (it.hasNext()) {
+      LinkedList<Connection> conns = it.next();
+      // most recently used first, so expired connections are at the end
+      while (!conns.isEmpty() && now - conns.getLast().lastUsed > idleTimeout) {
+        expired.add(conns.removeLast());
+      }
+      if (conns.isEmpty()) it.remove();
+    }
+    lastSweep = now;
+  }
+
+  private void closeAll(List<Connection> conns) {
+    if (conns.isEmpty()) return;
+    evictions.addAndGet(conns.size());
+    for (Connection c : conns) {
+      c.close();
+    }
+  }
+
+}
@@ -17,15 +17,12 @@
 package org.apache.nutch.protocol.http;
 
 // JDK imports
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.InetAddress;
 import java.net.URL;
 
 // Nutch imports
@@ -36,11 +33,16 @@ import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.http.api.HttpBase;
 import org.apache.nutch.protocol.http.api.HttpException;
+import org.apache.nutch.protocol.http.api.BufferPool;
 import org.apache.nutch.util.LogUtil;
 
 
 /** An HTTP response. */
 public class HttpResponse implements Response {
+
+  // not defined by the HttpHeaders of Nutch, which Response extends
+  private static final String CONNECTION = "Connection";
+  private static final String TRANSFER_ENCODING = "Transfer-Encoding";
  
   private HttpBase http; 
   private URL url;
@@ -50,9 +52,26 @@ public class HttpResponse implements Response {
   private int code;
   private Metadata headers = new SpellCheckedMetadata();
 
+  /** The body as read, in its first bodyLength bytes. */
+  private byte[] body;
+  private int bodyLength;
+  /** True if body was taken from the buffer pool and must be returned. */
+  private boolean bodyPooled = false;
+
 
   public HttpResponse(HttpBase http, URL url, CrawlDatum datum)
     throws ProtocolException, IOException {
+    this(http, url, datum, null);
+  }
+
+  /**
+   * Fetch the url. If a connection pool is given, the request is sent
+   * as HTTP/1.1 over a pooled connection, which is returned to the pool
+   * if the response body was fully read and the server allows it.
+   */
+  public HttpResponse(HttpBase http, URL url, CrawlDatum datum,
+                      HttpConnectionPool pool)
+    throws ProtocolException, IOException {
 
     this.http = http;
     this.url = url;
@@ -82,22 +101,14 @@ public class HttpResponse implements Response {
       port= url.getPort();
       portString= ":" + port;
     }
-    Socket socket = null;
+    HttpConnectionPool.Connection conn = null;
+    boolean reusable = false;
 
     try {
-      socket = new Socket();                    // create the socket
-      socket.setSoTimeout(http.getTimeout());
-
-
-      // connect
       String sockHost = http.useProxy() ? http.getProxyHost() : host;
       int sockPort = http.useProxy() ? http.getProxyPort() : port;
-      InetSocketAddress sockAddr= new InetSocketAddress(sockHost, sockPort);
-      socket.connect(sockAddr, http.getTimeout());
 
       // make request
-      OutputStream req = socket.getOutputStream();
-
       StringBuffer reqStr = new StringBuffer("GET ");
       if (http.useProxy()) {
       	reqStr.append(url.getProtocol()+"://"+host+portString+path);
@@ -105,13 +116,22 @@ public class HttpResponse implements Response {
       	reqStr.append(path);
       }
 
-      reqStr.append(" HTTP/1.0\r\n");
+      if (http.getUseHttp11()) {
+        reqStr.append(" HTTP/1.1\r\n");
+      } else {
+        reqStr.append(" HTTP/1.0\r\n");
+      }
 
       reqStr.append("Host: ");
       reqStr.append(host);
       reqStr.append(portString);
       reqStr.append("\r\n");
 
+      if (http.getUseHttp11()) {
+        reqStr.append(pool != null ? "Connection: keep-alive\r\n"
+                                   : "Connection: close\r\n");
+      }
+
       reqStr.append("Accept-Encoding: x-gzip, gzip\r\n");
 
       String userAgent = http.getUserAgent();
@@ -123,42 +143,112 @@ public class HttpResponse implements Response {
         reqStr.append("\r\n");
       }
 
+      String ifModifiedSince = http.getIfModifiedSince(datum);
+      if (ifModifiedSince != null) {
+        reqStr.append("If-Modified-Since: ");
+        reqStr.append(ifModifiedSince);
+        reqStr.append("\r\n");
+      }
+      String ifNoneMatch = http.getIfNoneMatch(datum);
+      if (ifNoneMatch != null) {
+        reqStr.append("If-None-Match: ");
+        reqStr.append(ifNoneMatch);
+        reqStr.append("\r\n");
+      }
+
       reqStr.append("\r\n");
       byte[] reqBytes= reqStr.toString().getBytes();
 
-      req.write(reqBytes);
-      req.flush();
-        
-      PushbackInputStream in =                  // process response
-        new PushbackInputStream(
-          new BufferedInputStream(socket.getInputStream(), Http.BUFFER_SIZE), 
-          Http.BUFFER_SIZE) ;
-
       StringBuffer line = new StringBuffer();
+      PushbackInputStream in;
+      InetAddress sockAddr = http.resolve(sockHost);
+      while (true) {
+        if (pool != null) {
+          conn = pool.checkout(sockHost, sockAddr, sockPort, http.getTimeout());
+        } else {
+          conn = HttpConnectionPool.connect(sockHost, sockAddr, sockPort,
+                                            http.getTimeout());
+        }
+        try {
+          OutputStream req = conn.getOutputStream();
+          req.write(reqBytes);
+          req.flush();
+          in = conn.getInputStream();
+          // parse status code line
+          this.code = parseStatusLine(in, line);
+          break;
+        } catch (IOException e) {
+          // the server may have closed a pooled connection while it was idle,
+          // so retry on another one; a fresh connection failing is an error
+          boolean stale = conn.isReused();
+          conn.close();
+          conn = null;
+          if (!stale) throw e;
+          if (Http.LOG.isTraceEnabled()) {
+            Http.LOG.trace("stale pooled connection to " + sockHost + ", retrying");
+          }
+        }
+      }
+      // keep-alive is the default for HTTP/1.1 responses only
+      boolean keepAlive = line.toString().startsWith("HTTP/1.1");
 
-      boolean haveSeenNonContinueStatus= false;
-      while (!haveSeenNonContinueStatus) {
-        // parse status code line
-        this.code = parseStatusLine(in, line); 
-        // parse headers
+      // parse headers
+      parseHeaders(in, line);
+      while (code == 100) { // 100 is "Continue"
+        this.code = parseStatusLine(in, line);
         parseHeaders(in, line);
-        haveSeenNonContinueStatus= code != 100; // 100 is "Continue"
       }
 
-      readPlainContent(in);
+      String connection = getHeader(CONNECTION);
+      if (connection != null) {
+        connection = connection.trim();
+        if ("close".equalsIgnoreCase(connection)) {
+          keepAlive = false;
+        } else if ("keep-alive".equalsIgnoreCase(connection)) {
+          keepAlive = true;
+        }
+      }
 
       String contentEncoding = getHeader(Response.CONTENT_ENCODING);
-      if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-        content = http.processGzipEncoded(content, url);
+      boolean gzipped =
+        "gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding);
+
+      boolean complete;
+      String transferEncoding = getHeader(TRANSFER_ENCODING);
+      if (code == 204 || code == 304) {       // no message body
+        body = new byte[0];
+        complete = true;
+      } else if (transferEncoding != null
+                 && "chunked".equalsIgnoreCase(transferEncoding.trim())) {
+        complete = readChunkedContent(in, line);
       } else {
+        complete = readPlainContent(in, gzipped);
+      }
+      reusable = pool != null && keepAlive && complete;
+
+      if (gzipped) {
+        content = http.processGzipEncoded(body, bodyLength, url);
+      } else {
+        // a pooled body goes back to the pool, so it has to be copied
+        content = bodyPooled ? BufferPool.copy(body, bodyLength)
+                             : BufferPool.trim(body, bodyLength);
         if (Http.LOG.isTraceEnabled()) {
           Http.LOG.trace("fetched " + content.length + " bytes from " + url);
         }
       }
 
     } finally {
-      if (socket != null)
-        socket.close();
+      if (bodyPooled) {
+        http.getBufferPool().release(body);
+      }
+      body = null;
+      if (conn != null) {
+        if (reusable) {
+          pool.release(conn);
+        } else {
+          conn.close();
+        }
+      }
     }
 
   }
@@ -193,43 +283,74 @@ public class HttpResponse implements Response {
    * ------------------------- */
   
 
-  private void readPlainContent(InputStream in) 
+  /**
+   * Read a body delimited by Content-Length or by the end of the stream.
+   * Returns true if the whole body was read, i.e. the connection is
+   * positioned at the start of the next response.
+   */
+  private boolean readPlainContent(InputStream in, boolean gzipped) 
     throws HttpException, IOException {
 
     int contentLength = Integer.MAX_VALUE;    // get content length
+    boolean lengthKnown = false;
     String contentLengthString = headers.get(Response.CONTENT_LENGTH);
     if (contentLengthString != null) {
       contentLengthString = contentLengthString.trim();
       try {
         contentLength = Integer.parseInt(contentLengthString);
+        lengthKnown = true;
       } catch (NumberFormatException e) {
         throw new HttpException("bad content length: "+contentLengthString);
       }
     }
+    int declaredLength = contentLength;
     if (http.getMaxContent() >= 0
       && contentLength > http.getMaxContent())   // limit download size
       contentLength  = http.getMaxContent();
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
-    byte[] bytes = new byte[Http.BUFFER_SIZE];
-    int length = 0;                           // read content
-    for (int i = in.read(bytes); i != -1; i = in.read(bytes)) {
-
-      out.write(bytes, 0, i);
-      length += i;
-      if (length >= contentLength)
+    if (lengthKnown && !gzipped && contentLength >= 0
+        && contentLength <= http.getBufferPool().getBufferSize()) {
+      body = new byte[contentLength];         // read straight into content
+    } else {
+      body = http.getBufferPool().acquire();
+      bodyPooled = true;
+    }
+    bodyLength = 0;                           // read content
+    while (bodyLength < contentLength) {
+      ensureBodyCapacity();
+      int i = in.read(body, bodyLength,
+                      Math.min(body.length - bodyLength, contentLength - bodyLength));
+      if (i == -1)
         break;
+
+      bodyLength += i;
+    }
+    return lengthKnown && bodyLength == declaredLength;
+  }
+
+  /** Make room for more bytes in body, if it is full. */
+  private void ensureBodyCapacity() {
+    if (bodyLength < body.length) return;
+    byte[] grown = BufferPool.grow(body, bodyLength, bodyLength + Http.BUFFER_SIZE);
+    if (bodyPooled) {
+      http.getBufferPool().release(body);
+      bodyPooled = false;
     }
-    content = out.toByteArray();
+    body = grown;
   }
 
-  private void readChunkedContent(PushbackInputStream in,  
-                                  StringBuffer line) 
+  /**
+   * Read a chunked body and its trailer headers. Returns true if the
+   * whole body was read, false if it was truncated to the content limit.
+   */
+  private boolean readChunkedContent(PushbackInputStream in,  
+                                     StringBuffer line) 
     throws HttpException, IOException {
     boolean doneChunks= false;
     int contentBytesRead= 0;
-    byte[] bytes = new byte[Http.BUFFER_SIZE];
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
+    body = http.getBufferPool().acquire();
+    bodyPooled = true;
+    bodyLength = 0;
 
     while (!doneChunks) {
       if (Http.LOG.isTraceEnabled()) {
@@ -261,16 +382,20 @@ public class HttpResponse implements Response {
         break;
       }
 
-      if ( (contentBytesRead + chunkLen) > http.getMaxContent() )
+      boolean truncated = false;
+      if (http.getMaxContent() >= 0
+          && (contentBytesRead + chunkLen) > http.getMaxContent()) {
         chunkLen= http.getMaxContent() - contentBytesRead;
+        truncated = true;
+      }
 
       // read one chunk
       int chunkBytesRead= 0;
       while (chunkBytesRead < chunkLen) {
 
-        int toRead= (chunkLen - chunkBytesRead) < Http.BUFFER_SIZE ?
-                    (chunkLen - chunkBytesRead) : Http.BUFFER_SIZE;
-        int len= in.read(bytes, 0, toRead);
+        ensureBodyCapacity();
+        int toRead= Math.min(chunkLen - chunkBytesRead, body.length - bodyLength);
+        int len= in.read(body, bodyLength, toRead);
 
         if (len == -1) 
           throw new HttpException("chunk eof after " + contentBytesRead
@@ -282,9 +407,13 @@ public class HttpResponse implements Response {
         // terminal!
         // if (LOG.isTraceEnabled()) { LOG.trace("read: " +  new String(bytes, 0, len)); }
 
-        out.write(bytes, 0, len);
+        bodyLength+= len;
         chunkBytesRead+= len;  
       }
+      contentBytesRead+= chunkBytesRead;
+
+      if (truncated)
+        break;                      // rest of the body is not read
 
       readLine(in, line, false);
 
@@ -293,12 +422,11 @@ public class HttpResponse implements Response {
     if (!doneChunks) {
       if (contentBytesRead != http.getMaxContent()) 
         throw new HttpException("chunk eof: !doneChunk && didn't max out");
-      return;
+      return false;
     }
 
-    content = out.toByteArray();
     parseHeaders(in, line);
-
+    return true;
   }
 
   private int parseStatusLine(PushbackInputStream in, StringBuffer line)
@@ -78,6 +78,14 @@ public class HttpResponse implements Response {
     GetMethod get = new GetMethod(this.orig);
     get.setFollowRedirects(followRedirects);
     get.setRequestHeader("User-Agent", http.getUserAgent());
+    String ifModifiedSince = http.getIfModifiedSince(datum);
+    if (ifModifiedSince != null) {
+      get.setRequestHeader("If-Modified-Since", ifModifiedSince);
+    }
+    String ifNoneMatch = http.getIfNoneMatch(datum);
+    if (ifNoneMatch != null) {
+      get.setRequestHeader("If-None-Match", ifNoneMatch);
+    }
     HttpMethodParams params = get.getParams();
     if (http.getUseHttp11()) {
       params.setVersion(HttpVersion.HTTP_1_1);
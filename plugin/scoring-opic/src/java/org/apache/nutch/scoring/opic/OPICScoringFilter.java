@@ -101,6 +101,11 @@ public class OPICScoringFilter implements ScoringFilter {
     datum.setScore(old.getScore() + adjust);
   }
 
+  /** Add the inlinked score to the aggregate, which is then summed as above. */
+  public void combineInlinkScore(Text url, CrawlDatum aggregate, CrawlDatum linked) throws ScoringFilterException {
+    aggregate.setScore(aggregate.getScore() + linked.getScore());
+  }
+
   /** Store a float value of CrawlDatum.getScore() under Fetcher.SCORE_KEY. */
   public void passScoreBeforeParsing(Text url, CrawlDatum datum, Content content) {
     content.getMetadata().set(Nutch.SCORE_KEY, "" + datum.getScore());
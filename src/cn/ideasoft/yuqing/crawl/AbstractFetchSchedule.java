@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Base class of fetch schedules: new pages get the default interval of
+ * <code>db.default.fetch.interval</code> days, and fetched pages are due
+ * again one interval after the fetch.
+ */
+public abstract class AbstractFetchSchedule implements FetchSchedule {
+
+  protected static final long MILLISECONDS_PER_DAY = 24L * 60 * 60 * 1000;
+
+  protected Configuration conf;
+  protected float defaultInterval;
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    if (conf == null) return;
+    defaultInterval = conf.getFloat("db.default.fetch.interval", 30f);
+  }
+
+  public void initializeSchedule(Text url, CrawlDatum datum) {
+    datum.setFetchInterval(defaultInterval);
+    datum.setRetriesSinceFetch(0);
+  }
+
+  public void setFetchSchedule(Text url, CrawlDatum datum,
+                               long prevFetchTime, long prevModifiedTime,
+                               long fetchTime, long modifiedTime, int state) {
+    datum.setModifiedTime(getModifiedTime(prevModifiedTime, fetchTime,
+                                          modifiedTime, state));
+    datum.setFetchTime(fetchTime
+                       + (long)(MILLISECONDS_PER_DAY * datum.getFetchInterval()));
+  }
+
+  /**
+   * The time the page last changed, as far as we know: the time given by
+   * the server if it is newer, else the fetch time for a page found to
+   * have changed, else the time known before.
+   */
+  protected long getModifiedTime(long prevModifiedTime, long fetchTime,
+                                 long modifiedTime, int state) {
+    if (modifiedTime > prevModifiedTime) return modifiedTime;
+    if (state == STATUS_MODIFIED) return fetchTime;
+    return prevModifiedTime;
+  }
+
+}
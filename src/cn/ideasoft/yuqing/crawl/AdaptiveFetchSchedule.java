@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Adapts the fetch interval of each page to how often it changes. The
+ * interval shrinks by <code>db.fetch.schedule.adaptive.dec_rate</code> when
+ * a fetch finds the page changed, and grows by
+ * <code>db.fetch.schedule.adaptive.inc_rate</code> when it finds it
+ * unchanged, within <code>db.fetch.schedule.adaptive.min_interval</code>
+ * and <code>db.fetch.schedule.adaptive.max_interval</code> days.
+ *
+ * <p>With <code>db.fetch.schedule.adaptive.sync_delta</code>, a page
+ * which was last modified long before the fetch gets at least that time
+ * as its interval, and the next fetch is moved back towards the
+ * modification time by <code>db.fetch.schedule.adaptive.sync_delta_rate</code>
+ * of it, so that the fetches follow the changes of the page rather than
+ * the times it happened to be fetched.</p>
+ */
+public class AdaptiveFetchSchedule extends AbstractFetchSchedule {
+
+  private float incRate;
+  private float decRate;
+  private float minInterval;
+  private float maxInterval;
+  private boolean syncDelta;
+  private float syncDeltaRate;
+
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    if (conf == null) return;
+    incRate = conf.getFloat("db.fetch.schedule.adaptive.inc_rate", 0.2f);
+    decRate = conf.getFloat("db.fetch.schedule.adaptive.dec_rate", 0.2f);
+    minInterval = conf.getFloat("db.fetch.schedule.adaptive.min_interval", 0.01f);
+    maxInterval = conf.getFloat("db.fetch.schedule.adaptive.max_interval", 365f);
+    syncDelta = conf.getBoolean("db.fetch.schedule.adaptive.sync_delta", true);
+    syncDeltaRate = conf.getFloat("db.fetch.schedule.adaptive.sync_delta_rate", 0.3f);
+  }
+
+  public void setFetchSchedule(Text url, CrawlDatum datum,
+                               long prevFetchTime, long prevModifiedTime,
+                               long fetchTime, long modifiedTime, int state) {
+    modifiedTime = getModifiedTime(prevModifiedTime, fetchTime, modifiedTime,
+                                   state);
+    datum.setModifiedTime(modifiedTime);
+
+    float interval = datum.getFetchInterval();
+    switch (state) {
+    case STATUS_MODIFIED:
+      interval *= (1.0f - decRate);
+      break;
+    case STATUS_NOTMODIFIED:
+      interval *= (1.0f + incRate);
+      break;
+    default:
+      break;
+    }
+
+    long refTime = fetchTime;
+    if (syncDelta && modifiedTime > 0 && modifiedTime < fetchTime) {
+      // unchanged for longer than the interval: no need to come back sooner
+      float delta = (float)(fetchTime - modifiedTime) / MILLISECONDS_PER_DAY;
+      if (delta > interval) interval = delta;
+      refTime = fetchTime - (long)(delta * syncDeltaRate * MILLISECONDS_PER_DAY);
+    }
+
+    if (interval < minInterval) interval = minInterval;
+    if (interval > maxInterval) interval = maxInterval;
+    datum.setFetchInterval(interval);
+    long next = refTime + (long)(interval * MILLISECONDS_PER_DAY);
+    if (next <= fetchTime) {                      // capped by max_interval
+      next = fetchTime + (long)(interval * MILLISECONDS_PER_DAY);
+    }
+    datum.setFetchTime(next);
+  }
+
+}
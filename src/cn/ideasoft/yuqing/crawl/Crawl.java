@@ -111,6 +111,11 @@ public class Crawl {
     DeleteDuplicates dedup = new DeleteDuplicates(conf);
     IndexMerger merger = new IndexMerger(conf);
       
+    // outlinks may be checked against this crawlDb, see parse.skip.known.urls
+    if (conf.get("parse.known.urls.crawldb", "").length() == 0) {
+      conf.set("parse.known.urls.crawldb", crawlDb.toString());
+    }
+
     // initialize crawlDb
     injector.inject(crawlDb, rootUrlDir);
     int i;
@@ -21,6 +21,7 @@ import java.io.*;
 import java.util.*;
 
 import org.apache.hadoop.io.*;
+import cn.ideasoft.yuqing.metadata.YuQing;
 import cn.ideasoft.yuqing.util.*;
 
 /* The crawl state of a url. */
@@ -29,7 +30,7 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   public static final String FETCH_DIR_NAME = "crawl_fetch";
   public static final String PARSE_DIR_NAME = "crawl_parse";
 
-  private final static byte CUR_VERSION = 5;
+  private final static byte CUR_VERSION = 6;
 
   /** Compatibility values for on-the-fly conversion from versions < 5. */
   private static final byte OLD_STATUS_SIGNATURE = 0;
@@ -67,6 +68,8 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   public static final byte STATUS_FETCH_REDIR_PERM  = 0x24;
   /** Fetching unsuccessful - page is gone. */
   public static final byte STATUS_FETCH_GONE        = 0x25;
+  /** Fetching was successful - page is unchanged since the last fetch. */
+  public static final byte STATUS_FETCH_NOTMODIFIED = 0x26;
   
   /** Maximum value of fetch-related status. */
   public static final byte STATUS_FETCH_MAX         = 0x3f;
@@ -94,6 +97,7 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     statNames.put(STATUS_FETCH_REDIR_TEMP, "fetch_redir_temp");
     statNames.put(STATUS_FETCH_REDIR_PERM, "fetch_redir_perm");
     statNames.put(STATUS_FETCH_GONE, "fetch_gone");
+    statNames.put(STATUS_FETCH_NOTMODIFIED, "fetch_notmodified");
     
     oldToNew.put(OLD_STATUS_DB_UNFETCHED, STATUS_DB_UNFETCHED);
     oldToNew.put(OLD_STATUS_DB_FETCHED, STATUS_DB_FETCHED);
@@ -106,6 +110,23 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   }
   
   private static final float MILLISECONDS_PER_DAY = 24 * 60 * 60 * 1000;
+  private static final float SECONDS_PER_DAY = 24 * 60 * 60;
+
+  /** Flags of the optional fields, from version 6. */
+  private static final int HAS_MODIFIED_TIME = 0x01;
+  private static final int HAS_SIGNATURE = 0x02;
+  private static final int HAS_METADATA = 0x04;
+
+  /**
+   * Metadata keys written as a single byte, their index + 1, from version 6.
+   * Only ever append to this.
+   */
+  private static final Text[] METADATA_KEYS = new Text[] {
+    YuQing.WRITABLE_GENERATE_TIME_KEY,
+    YuQing.WRITABLE_PROTO_STATUS_KEY,
+    YuQing.WRITABLE_ETAG_KEY,
+    YuQing.WRITABLE_INLINK_COUNT_KEY
+  };
 
   private byte status;
   private long fetchTime = System.currentTimeMillis();
@@ -215,7 +236,37 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     byte version = in.readByte();                 // read version
     if (version > CUR_VERSION)                   // check version
       throw new VersionMismatchException(CUR_VERSION, version);
+    if (version < 6) {
+      readOldFields(in, version);
+      return;
+    }
 
+    status = in.readByte();
+    int flags = in.readByte();
+    score = in.readFloat();
+    retries = in.readByte();
+    fetchTime = WritableUtils.readVLong(in);
+    fetchInterval = WritableUtils.readVInt(in) / SECONDS_PER_DAY;
+    if ((flags & HAS_MODIFIED_TIME) != 0) {
+      modifiedTime = fetchTime - WritableUtils.readVLong(in);
+    } else {
+      modifiedTime = 0;
+    }
+    if ((flags & HAS_SIGNATURE) != 0) {
+      signature = new byte[WritableUtils.readVInt(in)];
+      in.readFully(signature);
+    } else {
+      signature = null;
+    }
+    if ((flags & HAS_METADATA) != 0) {
+      readMetaData(in);
+    } else if (metaData != null) {
+      metaData.clear();
+    }
+  }
+
+  /** Read the fixed-width fields of versions 5 and before. */
+  private void readOldFields(DataInput in, byte version) throws IOException {
     status = in.readByte();
     fetchTime = in.readLong();
     retries = in.readByte();
@@ -254,28 +305,113 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   }
 
   /** The number of bytes into a CrawlDatum that the score is stored. */
-  private static final int SCORE_OFFSET = 1 + 1 + 8 + 1 + 4;
-  private static final int SIG_OFFSET = SCORE_OFFSET + 4 + 8;
+  private static final int SCORE_OFFSET = 1 + 1 + 1;
+  private static final int RETRIES_OFFSET = SCORE_OFFSET + 4;
+  private static final int FETCH_TIME_OFFSET = RETRIES_OFFSET + 1;
 
+  /**
+   * Version 6: status, flags, score and retries, the fetch time as a
+   * variable-length long, the interval in seconds, then those of the
+   * modified time (as its distance to the fetch time), signature and
+   * metadata which are set.
+   */
   public void write(DataOutput out) throws IOException {
     out.writeByte(CUR_VERSION);                   // store current version
     out.writeByte(status);
-    out.writeLong(fetchTime);
-    out.writeByte(retries);
-    out.writeFloat(fetchInterval);
+    int flags = 0;
+    if (modifiedTime != 0) flags |= HAS_MODIFIED_TIME;
+    if (signature != null) flags |= HAS_SIGNATURE;
+    if (metaData != null && metaData.size() > 0) flags |= HAS_METADATA;
+    out.writeByte(flags);
     out.writeFloat(score);
-    out.writeLong(modifiedTime);
-    if (signature == null) {
-      out.writeByte(0);
-    } else {
-      out.writeByte(signature.length);
+    out.writeByte(retries);
+    WritableUtils.writeVLong(out, fetchTime);
+    WritableUtils.writeVInt(out, Math.round(fetchInterval * SECONDS_PER_DAY));
+    if ((flags & HAS_MODIFIED_TIME) != 0) {
+      WritableUtils.writeVLong(out, fetchTime - modifiedTime);
+    }
+    if ((flags & HAS_SIGNATURE) != 0) {
+      WritableUtils.writeVInt(out, signature.length);
       out.write(signature);
     }
-    if (metaData != null && metaData.size() > 0) {
-      out.writeBoolean(true);
-      metaData.write(out);
+    if ((flags & HAS_METADATA) != 0) {
+      writeMetaData(out);
+    }
+  }
+
+  /**
+   * Metadata entries are written with their key as an index into
+   * {@link #METADATA_KEYS}, or 0 and the key, and with the classes known to
+   * {@link MapWritable} as its id, or 0 and the class name.
+   */
+  private void writeMetaData(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, metaData.size());
+    for (int k = 0; k < metaData.size(); k++) {
+      Writable key = metaData.keyAt(k);
+      int keyId = 0;
+      for (int i = 0; i < METADATA_KEYS.length; i++) {
+        if (METADATA_KEYS[i].equals(key)) {
+          keyId = i + 1;
+          break;
+        }
+      }
+      out.writeByte(keyId);
+      if (keyId == 0) {
+        writeClass(out, key.getClass());
+        key.write(out);
+      }
+      Writable value = metaData.valueAt(k);
+      writeClass(out, value.getClass());
+      value.write(out);
+    }
+  }
+
+  private void readMetaData(DataInput in) throws IOException {
+    if (metaData == null) {
+      metaData = new MapWritable();
+    } else {
+      metaData.clear();
+    }
+    int size = WritableUtils.readVInt(in);
+    for (int i = 0; i < size; i++) {
+      int keyId = in.readByte();
+      Writable key;
+      if (keyId > 0) {
+        key = metaData.reuse(Text.class);
+        ((Text)key).set(METADATA_KEYS[keyId - 1]);
+      } else {
+        key = metaData.reuse(readClass(in));
+        key.readFields(in);
+      }
+      Writable value = metaData.reuse(readClass(in));
+      value.readFields(in);
+      metaData.putReusable(key, value);
+    }
+  }
+
+  private static void writeClass(DataOutput out, Class clazz)
+    throws IOException {
+    byte id = MapWritable.getKnownClassId(clazz);
+    if (id != -128) {
+      out.writeByte(id);
     } else {
-      out.writeBoolean(false);
+      out.writeByte(0);
+      Text.writeString(out, clazz.getName());
+    }
+  }
+
+  private static Class readClass(DataInput in) throws IOException {
+    byte id = in.readByte();
+    if (id != 0) {
+      Class clazz = MapWritable.getKnownClass(id);
+      if (clazz == null) throw new IOException("unknown class id: " + id);
+      return clazz;
+    }
+    String name = Text.readString(in);
+    try {
+      return MapWritable.getClassByName(name);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("unable to load class: " + name);
     }
   }
 
@@ -288,7 +424,7 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     this.score = that.score;
     this.modifiedTime = that.modifiedTime;
     this.signature = that.signature;
-    this.metaData = new MapWritable(that.metaData); // make a deep copy
+    this.metaData = new MapWritable(that.metaData); // copied on write
   }
 
 
@@ -311,14 +447,20 @@ public class CrawlDatum implements WritableComparable, Cloneable {
       return (that.fetchInterval - this.fetchInterval) > 0 ? 1 : -1;
     if (that.modifiedTime != this.modifiedTime)
       return (that.modifiedTime - this.modifiedTime) > 0 ? 1 : -1;
-    return SignatureComparator._compare(this, that);
+    return SignatureComparator._compare(this.signature, that.signature);
   }
 
-  /** A Comparator optimized for CrawlDatum. */ 
+  /**
+   * A Comparator optimized for CrawlDatum. It compares the serialized form
+   * of the current version, and deserializes older ones.
+   */ 
   public static class Comparator extends WritableComparator {
     public Comparator() { super(CrawlDatum.class); }
 
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      if (b1[s1] != CUR_VERSION || b2[s2] != CUR_VERSION) {
+        return super.compare(b1, s1, l1, b2, s2, l2);
+      }
       float score1 = readFloat(b1,s1+SCORE_OFFSET);
       float score2 = readFloat(b2,s2+SCORE_OFFSET);
       if (score2 != score1) {
@@ -328,25 +470,53 @@ public class CrawlDatum implements WritableComparable, Cloneable {
       int status2 = b2[s2+1];
       if (status2 != status1)
         return status1 - status2;
-      long fetchTime1 = readLong(b1, s1+1+1);
-      long fetchTime2 = readLong(b2, s2+1+1);
-      if (fetchTime2 != fetchTime1)
-        return (fetchTime2 - fetchTime1) > 0 ? 1 : -1;
-      int retries1 = b1[s1+1+1+8];
-      int retries2 = b2[s2+1+1+8];
-      if (retries2 != retries1)
-        return retries2 - retries1;
-      float fetchInterval1 = readFloat(b1, s1+1+1+8+1);
-      float fetchInterval2 = readFloat(b2, s2+1+1+8+1);
-      if (fetchInterval2 != fetchInterval1)
-        return (fetchInterval2 - fetchInterval1) > 0 ? 1 : -1;
-      long modifiedTime1 = readLong(b1, s1 + SCORE_OFFSET + 4);
-      long modifiedTime2 = readLong(b2, s2 + SCORE_OFFSET + 4);
-      if (modifiedTime2 != modifiedTime1)
-        return (modifiedTime2 - modifiedTime1) > 0 ? 1 : -1;
-      int sigl1 = b1[s1+SIG_OFFSET];
-      int sigl2 = b2[s2+SIG_OFFSET];
-      return SignatureComparator._compare(b1, SIG_OFFSET, sigl1, b2, SIG_OFFSET, sigl2);
+      try {
+        int i1 = s1 + FETCH_TIME_OFFSET;
+        int i2 = s2 + FETCH_TIME_OFFSET;
+        long fetchTime1 = readVLong(b1, i1);
+        long fetchTime2 = readVLong(b2, i2);
+        if (fetchTime2 != fetchTime1)
+          return (fetchTime2 - fetchTime1) > 0 ? 1 : -1;
+        int retries1 = b1[s1+RETRIES_OFFSET];
+        int retries2 = b2[s2+RETRIES_OFFSET];
+        if (retries2 != retries1)
+          return retries2 - retries1;
+        i1 += WritableUtils.decodeVIntSize(b1[i1]);
+        i2 += WritableUtils.decodeVIntSize(b2[i2]);
+        int fetchInterval1 = readVInt(b1, i1);
+        int fetchInterval2 = readVInt(b2, i2);
+        if (fetchInterval2 != fetchInterval1)
+          return (fetchInterval2 - fetchInterval1) > 0 ? 1 : -1;
+        i1 += WritableUtils.decodeVIntSize(b1[i1]);
+        i2 += WritableUtils.decodeVIntSize(b2[i2]);
+        int flags1 = b1[s1+2];
+        int flags2 = b2[s2+2];
+        long modifiedTime1 = 0;
+        long modifiedTime2 = 0;
+        if ((flags1 & HAS_MODIFIED_TIME) != 0) {
+          modifiedTime1 = fetchTime1 - readVLong(b1, i1);
+          i1 += WritableUtils.decodeVIntSize(b1[i1]);
+        }
+        if ((flags2 & HAS_MODIFIED_TIME) != 0) {
+          modifiedTime2 = fetchTime2 - readVLong(b2, i2);
+          i2 += WritableUtils.decodeVIntSize(b2[i2]);
+        }
+        if (modifiedTime2 != modifiedTime1)
+          return (modifiedTime2 - modifiedTime1) > 0 ? 1 : -1;
+        int sigl1 = 0;
+        int sigl2 = 0;
+        if ((flags1 & HAS_SIGNATURE) != 0) {
+          sigl1 = readVInt(b1, i1);
+          i1 += WritableUtils.decodeVIntSize(b1[i1]);
+        }
+        if ((flags2 & HAS_SIGNATURE) != 0) {
+          sigl2 = readVInt(b2, i2);
+          i2 += WritableUtils.decodeVIntSize(b2[i2]);
+        }
+        return SignatureComparator._compare(b1, i1, sigl1, b2, i2, sigl2);
+      } catch (IOException e) {
+        throw new IllegalArgumentException(e.toString());
+      }
     }
   }
 
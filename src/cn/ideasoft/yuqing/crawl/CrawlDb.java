@@ -18,6 +18,7 @@
 package cn.ideasoft.yuqing.crawl;
 
 import java.io.*;
+import java.text.NumberFormat;
 import java.util.*;
 
 // Commons Logging imports
@@ -38,13 +39,26 @@ import cn.ideasoft.yuqing.util.YuQingJob;
 /**
  * This class takes the output of the fetcher and updates the
  * crawldb accordingly.
+ *
+ * <p>With <code>db.update.delta</code>, an update only writes the entries of
+ * the urls found in the segments, to a delta next to <code>current</code>,
+ * partitioned like it. The previous state of these urls is looked up in
+ * <code>current</code> and the earlier deltas. Jobs reading the crawl db
+ * merge the deltas in through {@link CrawlDbInputFormat}. Once the deltas
+ * add up to <code>db.update.delta.ratio</code> of <code>current</code>,
+ * they are folded into a new <code>current</code>, as is done by any job
+ * which rewrites the crawl db.</p>
  */
 public class CrawlDb extends ToolBase {
   public static final Log LOG = LogFactory.getLog(CrawlDb.class);
 
   public static final String CRAWLDB_ADDITIONS_ALLOWED = "db.update.additions.allowed";
 
+  public static final String CRAWLDB_DELTA = "db.update.delta";
+
   public static final String CURRENT_NAME = "current";
+
+  public static final String DELTA_PREFIX = "delta-";
   
   public static final String LOCK_NAME = ".locked";
 
@@ -66,6 +80,24 @@ public class CrawlDb extends ToolBase {
     FileSystem fs = FileSystem.get(getConf());
     Path lock = new Path(crawlDb, LOCK_NAME);
     LockUtil.createLockFile(fs, lock, force);
+    if (getConf().getBoolean(CRAWLDB_DELTA, false)
+        && fs.exists(new Path(crawlDb, CURRENT_NAME))) {
+      Path delta;
+      try {
+        delta = updateDelta(crawlDb, segments, normalize, filter,
+                            additionsAllowed);
+      } finally {
+        LockUtil.removeLockFile(fs, lock);
+      }
+      if (getDeltaRatio(fs, crawlDb)
+          > getConf().getFloat("db.update.delta.ratio", 0.2f)) {
+        compact(crawlDb, false);
+        updateHostDb(crawlDb, new Path(crawlDb, CURRENT_NAME), false, segments);
+      } else {
+        updateHostDb(crawlDb, delta, true, segments);
+      }
+      return;
+    }
     if (LOG.isInfoEnabled()) {
       LOG.info("CrawlDb update: starting");
       LOG.info("CrawlDb update: db: " + crawlDb);
@@ -76,6 +108,7 @@ public class CrawlDb extends ToolBase {
     }
 
     JobConf job = CrawlDb.createJob(getConf(), crawlDb);
+    job.setCombinerClass(CrawlDbCombiner.class);
     job.setBoolean(CRAWLDB_ADDITIONS_ALLOWED, additionsAllowed);
     job.setBoolean(CrawlDbFilter.URL_FILTERING, filter);
     job.setBoolean(CrawlDbFilter.URL_NORMALIZING, normalize);
@@ -103,6 +136,199 @@ public class CrawlDb extends ToolBase {
 
     CrawlDb.install(job, crawlDb);
     if (LOG.isInfoEnabled()) { LOG.info("CrawlDb update: done"); }
+    updateHostDb(crawlDb, new Path(crawlDb, CURRENT_NAME), false, segments);
+  }
+
+  /**
+   * Update the host db, if there is one, with the url counts written into
+   * a crawl db directory, see {@link HostDb}.
+   */
+  private void updateHostDb(Path crawlDb, Path counts, boolean changes,
+                            Path[] segments) throws IOException {
+    String hostDb = getConf().get(HostDb.HOSTDB_PATH, "");
+    if (hostDb.length() == 0) return;
+    new HostDb(getConf()).update(new Path(hostDb), crawlDb, counts, changes,
+                                 segments);
+  }
+
+  /** Write the changes made by some segments as a new delta. */
+  private Path updateDelta(Path crawlDb, Path[] segments, boolean normalize,
+                           boolean filter, boolean additionsAllowed)
+    throws IOException {
+    FileSystem fs = FileSystem.get(getConf());
+    if (LOG.isInfoEnabled()) {
+      LOG.info("CrawlDb update: starting, delta mode");
+      LOG.info("CrawlDb update: db: " + crawlDb);
+      LOG.info("CrawlDb update: segments: " + Arrays.asList(segments));
+      LOG.info("CrawlDb update: additions allowed: " + additionsAllowed);
+      LOG.info("CrawlDb update: URL normalizing: " + normalize);
+      LOG.info("CrawlDb update: URL filtering: " + filter);
+    }
+    Path current = new Path(crawlDb, CURRENT_NAME);
+    Path delta = new Path(crawlDb,
+        Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+
+    JobConf job = new YuQingJob(getConf());
+    job.setJobName("crawldb delta " + crawlDb);
+    job.set("db.update.delta.crawldb", crawlDb.toString());
+    job.setBoolean(CRAWLDB_ADDITIONS_ALLOWED, additionsAllowed);
+    job.setBoolean(CrawlDbFilter.URL_FILTERING, filter);
+    job.setBoolean(CrawlDbFilter.URL_NORMALIZING, normalize);
+    for (int i = 0; i < segments.length; i++) {
+      Path fetch = new Path(segments[i], CrawlDatum.FETCH_DIR_NAME);
+      Path parse = new Path(segments[i], CrawlDatum.PARSE_DIR_NAME);
+      if (fs.exists(fetch) && fs.exists(parse)) {
+        job.addInputPath(fetch);
+        job.addInputPath(parse);
+      } else {
+        LOG.info(" - skipping invalid segment " + segments[i]);
+      }
+    }
+    job.setInputFormat(SequenceFileInputFormat.class);
+
+    job.setMapperClass(CrawlDbFilter.class);
+    job.setCombinerClass(CrawlDbCombiner.class);
+    job.setReducerClass(DeltaReducer.class);
+    // partitioned like current, so that parts can be merged when read
+    job.setNumReduceTasks(fs.listPaths(current, PARTS).length);
+
+    job.setOutputPath(delta);
+    job.setOutputFormat(MapFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(CrawlDatum.class);
+
+    if (LOG.isInfoEnabled()) {
+      LOG.info("CrawlDb update: Writing segment data to a delta.");
+    }
+    try {
+      JobClient.runJob(job);
+    } catch (IOException e) {
+      if (fs.exists(delta)) fs.delete(delta);
+      throw e;
+    }
+    Path installed = new Path(crawlDb, DELTA_PREFIX + System.currentTimeMillis());
+    fs.rename(delta, installed);
+    if (LOG.isInfoEnabled()) { LOG.info("CrawlDb update: done"); }
+    return installed;
+  }
+
+  /**
+   * Merges the entries of the segments with the entries of their urls in
+   * the crawl db, looked up in its deltas and current.
+   */
+  public static class DeltaReducer extends CrawlDbReducer {
+    private JobConf job;
+    private String crawlDb;
+    private CrawlDbReader reader = new CrawlDbReader();
+
+    public void configure(JobConf job) {
+      super.configure(job);
+      this.job = job;
+      crawlDb = job.get("db.update.delta.crawldb");
+    }
+
+    public void close() throws IOException {
+      reader.close();
+      super.close();
+    }
+
+    public void reduce(WritableComparable key, Iterator values,
+                       OutputCollector output, Reporter reporter)
+      throws IOException {
+      final CrawlDatum old = reader.get(crawlDb, key.toString(), job);
+      if (old != null) {
+        replaced(key, old);                       // the key is always output
+        final Iterator others = values;
+        values = new Iterator() {
+            private boolean first = true;
+            public boolean hasNext() { return first || others.hasNext(); }
+            public Object next() {
+              if (!first) return others.next();
+              first = false;
+              return old;
+            }
+            public void remove() { throw new UnsupportedOperationException(); }
+          };
+      }
+      super.reduce(key, values, output, reporter);
+    }
+  }
+
+  /** Fold the deltas of a crawl db into a new current. */
+  public void compact(Path crawlDb, boolean force) throws IOException {
+    FileSystem fs = FileSystem.get(getConf());
+    Path lock = new Path(crawlDb, LOCK_NAME);
+    LockUtil.createLockFile(fs, lock, force);
+    if (LOG.isInfoEnabled()) {
+      LOG.info("CrawlDb compact: " + crawlDb + ", "
+               + getDeltas(fs, crawlDb).length + " deltas");
+    }
+    JobConf job = CrawlDb.createJob(getConf(), crawlDb);
+    try {
+      JobClient.runJob(job);
+    } catch (IOException e) {
+      LockUtil.removeLockFile(fs, lock);
+      if (fs.exists(job.getOutputPath())) fs.delete(job.getOutputPath());
+      throw e;
+    }
+    CrawlDb.install(job, crawlDb);
+    if (LOG.isInfoEnabled()) { LOG.info("CrawlDb compact: done"); }
+  }
+
+  static final PathFilter PARTS = new PathFilter() {
+      public boolean accept(Path path) {
+        return path.getName().startsWith("part-");
+      }
+    };
+
+  private static final PathFilter DELTAS = new PathFilter() {
+      public boolean accept(Path path) {
+        return path.getName().startsWith(DELTA_PREFIX);
+      }
+    };
+
+  /** The deltas of a crawl db, oldest first. */
+  public static Path[] getDeltas(FileSystem fs, Path crawlDb)
+    throws IOException {
+    Path[] deltas = fs.listPaths(crawlDb, DELTAS);
+    if (deltas == null) return new Path[0];
+    Arrays.sort(deltas);
+    return deltas;
+  }
+
+  private static final NumberFormat NUMBER_FORMAT =
+    NumberFormat.getInstance();
+  static {
+    NUMBER_FORMAT.setMinimumIntegerDigits(5);
+    NUMBER_FORMAT.setGroupingUsed(false);
+  }
+
+  /** The directory of the part written by a crawl db reduce task. */
+  static Path getTaskPart(JobConf job) {
+    String part = "part-" + NUMBER_FORMAT.format(job.getInt("mapred.task.partition", 0));
+    return new Path(job.getOutputPath(), part);
+  }
+
+  /** Size of the deltas relative to current. */
+  private static float getDeltaRatio(FileSystem fs, Path crawlDb)
+    throws IOException {
+    long deltas = 0;
+    Path[] paths = getDeltas(fs, crawlDb);
+    for (int i = 0; i < paths.length; i++) {
+      deltas += getSize(fs, paths[i]);
+    }
+    long current = getSize(fs, new Path(crawlDb, CURRENT_NAME));
+    return current == 0 ? Float.MAX_VALUE : (float)deltas / current;
+  }
+
+  private static long getSize(FileSystem fs, Path path) throws IOException {
+    if (!fs.isDirectory(path)) return fs.getLength(path);
+    long size = 0;
+    Path[] paths = fs.listPaths(path);
+    for (int i = 0; i < paths.length; i++) {
+      size += getSize(fs, paths[i]);
+    }
+    return size;
   }
 
   public static JobConf createJob(Configuration config, Path crawlDb)
@@ -119,7 +345,7 @@ public class CrawlDb extends ToolBase {
     if (FileSystem.get(job).exists(current)) {
       job.addInputPath(current);
     }
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
 
     job.setMapperClass(CrawlDbFilter.class);
     job.setReducerClass(CrawlDbReducer.class);
@@ -144,6 +370,11 @@ public class CrawlDb extends ToolBase {
     fs.mkdirs(crawlDb);
     fs.rename(newCrawlDb, current);
     if (fs.exists(old)) fs.delete(old);
+    // the job read them, through CrawlDbInputFormat
+    Path[] deltas = getDeltas(fs, crawlDb);
+    for (int i = 0; i < deltas.length; i++) {
+      fs.delete(deltas[i]);
+    }
     Path lock = new Path(crawlDb, LOCK_NAME);
     LockUtil.removeLockFile(fs, lock);
   }
@@ -155,10 +386,11 @@ public class CrawlDb extends ToolBase {
 
   public int run(String[] args) throws Exception {
     if (args.length < 2) {
-      System.err.println("Usage: CrawlDb <crawldb> (-dir <segments> | <seg1> <seg2> ...) [-force] [-normalize] [-filter] [-noAdditions]");
+      System.err.println("Usage: CrawlDb <crawldb> (-dir <segments> | <seg1> <seg2> ... | -compact) [-force] [-normalize] [-filter] [-noAdditions]");
       System.err.println("\tcrawldb\tCrawlDb to update");
       System.err.println("\t-dir segments\tparent directory containing all segments to update from");
       System.err.println("\tseg1 seg2 ...\tlist of segment names to update from");
+      System.err.println("\t-compact\tfold the deltas of a CrawlDb updated in delta mode into it");
       System.err.println("\t-force\tforce update even if CrawlDb appears to be locked (CAUTION advised)");
       System.err.println("\t-normalize\tuse URLNormalizer on urls in CrawlDb and segment (usually not needed)");
       System.err.println("\t-filter\tuse URLFilters on urls in CrawlDb and segment");
@@ -170,9 +402,12 @@ public class CrawlDb extends ToolBase {
     boolean force = false;
     final FileSystem fs = FileSystem.get(getConf());
     boolean additionsAllowed = getConf().getBoolean(CRAWLDB_ADDITIONS_ALLOWED, true);
+    boolean compact = false;
     HashSet<Path> dirs = new HashSet<Path>();
     for (int i = 1; i < args.length; i++) {
-      if (args[i].equals("-normalize")) {
+      if (args[i].equals("-compact")) {
+        compact = true;
+      } else if (args[i].equals("-normalize")) {
         normalize = true;
       } else if (args[i].equals("-filter")) {
         filter = true;
@@ -196,6 +431,10 @@ public class CrawlDb extends ToolBase {
       }
     }
     try {
+      if (compact) {
+        compact(new Path(args[0]), force);
+        return 0;
+      }
       update(new Path(args[0]), dirs.toArray(new Path[dirs.size()]), normalize, filter, additionsAllowed, force);
       return 0;
     } catch (Exception e) {
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import cn.ideasoft.yuqing.metadata.YuQing;
+import cn.ideasoft.yuqing.scoring.ScoringFilterException;
+import cn.ideasoft.yuqing.scoring.ScoringFilters;
+
+/**
+ * Combines the {@link CrawlDatum#STATUS_LINKED} entries of a url into one
+ * before they are shuffled to {@link CrawlDbReducer}. The scores are added up
+ * by {@link ScoringFilters#combineInlinkScore(Text, CrawlDatum, CrawlDatum)},
+ * and the number of links is kept in the metadata under
+ * {@link YuQing#WRITABLE_INLINK_COUNT_KEY}. Entries with any other status
+ * are passed on as they are.
+ */
+public class CrawlDbCombiner implements Reducer {
+  public static final Log LOG = LogFactory.getLog(CrawlDbCombiner.class);
+
+  private ScoringFilters scfilters;
+
+  public void configure(JobConf job) {
+    scfilters = new ScoringFilters(job);
+  }
+
+  public void close() {}
+
+  public void reduce(WritableComparable key, Iterator values,
+                     OutputCollector output, Reporter reporter)
+    throws IOException {
+
+    CrawlDatum aggregate = null;
+    int inlinks = 0;
+
+    while (values.hasNext()) {
+      CrawlDatum datum = (CrawlDatum)values.next();
+      if (datum.getStatus() != CrawlDatum.STATUS_LINKED) {
+        output.collect(key, datum);
+        continue;
+      }
+      if (aggregate == null) {
+        aggregate = new CrawlDatum();
+        aggregate.set(datum);
+        inlinks = getInlinkCount(datum);
+        continue;
+      }
+      try {
+        scfilters.combineInlinkScore((Text)key, aggregate, datum);
+        inlinks += getInlinkCount(datum);
+      } catch (ScoringFilterException e) {
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Cannot combine links to " + key + ": " + e.getMessage());
+        }
+        output.collect(key, datum);               // leave it to the reducer
+      }
+    }
+
+    if (aggregate != null) {
+      setInlinkCount(aggregate, inlinks);
+      output.collect(key, aggregate);
+    }
+  }
+
+  /** The number of links a linked datum stands for. */
+  public static int getInlinkCount(CrawlDatum linked) {
+    IntWritable count =
+      (IntWritable)linked.getMetaData().get(YuQing.WRITABLE_INLINK_COUNT_KEY);
+    return count == null ? 1 : count.get();
+  }
+
+  /** Record the number of links an aggregate stands for. */
+  static void setInlinkCount(CrawlDatum aggregate, int inlinks) {
+    if (inlinks > 1) {
+      aggregate.getMetaData().put(YuQing.WRITABLE_INLINK_COUNT_KEY,
+                                  new IntWritable(inlinks));
+    } else {
+      aggregate.getMetaData().remove(YuQing.WRITABLE_INLINK_COUNT_KEY);
+    }
+  }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+
+/**
+ * Reads a crawl db together with the deltas written by updates in delta
+ * mode (see {@link CrawlDb}): each part of <code>current</code> is merged
+ * with the same part of the deltas, and the newest version of each url is
+ * returned. Parts of a crawl db without deltas, and any other input, are
+ * read like {@link SequenceFileInputFormat} does.
+ */
+public class CrawlDbInputFormat extends SequenceFileInputFormat {
+
+  /** Files of the deltas to merge with a part of a crawl db, oldest first. */
+  private Map<Path, Path[]> deltaFiles = new HashMap<Path, Path[]>();
+
+  /** Merged parts are read whole, as a single split. */
+  public InputSplit[] getSplits(JobConf job, int numSplits)
+    throws IOException {
+    InputSplit[] splits = super.getSplits(job, numSplits);
+    FileSystem fs = FileSystem.get(job);
+    List<InputSplit> result = new ArrayList<InputSplit>();
+    Set<Path> merged = new HashSet<Path>();
+    for (int i = 0; i < splits.length; i++) {
+      Path file = ((FileSplit)splits[i]).getPath();
+      if (getDeltaFiles(fs, file).length == 0) {
+        result.add(splits[i]);
+      } else if (merged.add(file)) {
+        result.add(new FileSplit(file, 0, fs.getLength(file), job));
+      }
+    }
+    return result.toArray(new InputSplit[result.size()]);
+  }
+
+  public RecordReader getRecordReader(InputSplit split, JobConf job,
+                                      Reporter reporter) throws IOException {
+    FileSystem fs = FileSystem.get(job);
+    Path file = ((FileSplit)split).getPath();
+    Path[] deltas = getDeltaFiles(fs, file);
+    if (deltas.length == 0) {
+      return super.getRecordReader(split, job, reporter);
+    }
+    reporter.setStatus(file + " + " + deltas.length + " deltas");
+    Path[] files = new Path[deltas.length + 1];
+    files[0] = file;
+    System.arraycopy(deltas, 0, files, 1, deltas.length);
+    return new MergingRecordReader(fs, job, files);
+  }
+
+  /**
+   * The files of the deltas matching a data file of
+   * <code>&lt;crawldb&gt;/current/part-N/</code>, oldest first, or none.
+   */
+  private Path[] getDeltaFiles(FileSystem fs, Path file) throws IOException {
+    Path[] files = deltaFiles.get(file);
+    if (files != null) return files;
+    List<Path> result = new ArrayList<Path>();
+    Path part = file.getParent();
+    Path current = part == null ? null : part.getParent();
+    if (current != null && current.getParent() != null
+        && current.getName().equals(CrawlDb.CURRENT_NAME)) {
+      Path[] deltas = CrawlDb.getDeltas(fs, current.getParent());
+      for (int i = 0; i < deltas.length; i++) {
+        Path f = new Path(new Path(deltas[i], part.getName()), file.getName());
+        if (fs.exists(f)) result.add(f);
+      }
+    }
+    files = result.toArray(new Path[result.size()]);
+    deltaFiles.put(file, files);
+    return files;
+  }
+
+  /** Merges sorted files, the later ones overriding the earlier ones. */
+  private static class MergingRecordReader implements RecordReader {
+    private SequenceFile.Reader[] readers;
+    private Text[] keys;
+    private CrawlDatum[] values;
+    private boolean[] more;
+    private long length;
+
+    MergingRecordReader(FileSystem fs, JobConf job, Path[] files)
+      throws IOException {
+      readers = new SequenceFile.Reader[files.length];
+      keys = new Text[files.length];
+      values = new CrawlDatum[files.length];
+      more = new boolean[files.length];
+      for (int i = 0; i < files.length; i++) {
+        readers[i] = new SequenceFile.Reader(fs, files[i], job);
+        keys[i] = new Text();
+        values[i] = new CrawlDatum();
+        more[i] = readers[i].next(keys[i], values[i]);
+        length += fs.getLength(files[i]);
+      }
+    }
+
+    public boolean next(Writable key, Writable value) throws IOException {
+      int first = -1;
+      for (int i = 0; i < readers.length; i++) {
+        if (more[i] && (first < 0 || keys[i].compareTo(keys[first]) < 0)) {
+          first = i;
+        }
+      }
+      if (first < 0) return false;
+      int newest = first;
+      for (int i = first + 1; i < readers.length; i++) {
+        if (more[i] && keys[i].equals(keys[first])) newest = i;
+      }
+      ((Text)key).set(keys[newest]);
+      ((CrawlDatum)value).set(values[newest]);
+      for (int i = first; i < readers.length; i++) {
+        if (more[i] && keys[i].equals(key)) {
+          more[i] = readers[i].next(keys[i], values[i]);
+        }
+      }
+      return true;
+    }
+
+    public WritableComparable createKey() {
+      return new Text();
+    }
+
+    public Writable createValue() {
+      return new CrawlDatum();
+    }
+
+    public long getPos() throws IOException {
+      long pos = 0;
+      for (int i = 0; i < readers.length; i++) {
+        pos += readers[i].getPosition();
+      }
+      return pos;
+    }
+
+    public float getProgress() throws IOException {
+      return length == 0 ? 0.0f : Math.min(1.0f, (float)getPos() / length);
+    }
+
+    public void close() throws IOException {
+      for (int i = 0; i < readers.length; i++) {
+        readers[i].close();
+      }
+    }
+  }
+
+}
@@ -117,7 +117,7 @@ public class CrawlDbMerger extends ToolBase {
     JobConf job = new YuQingJob(conf);
     job.setJobName("crawldb merge " + output);
 
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
 
     job.setMapperClass(CrawlDbFilter.class);
     job.setBoolean(CrawlDbFilter.URL_FILTERING, filter);
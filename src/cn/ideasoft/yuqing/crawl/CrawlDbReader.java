@@ -63,23 +63,33 @@ public class CrawlDbReader implements Closeable {
 
   public static final Log LOG = LogFactory.getLog(CrawlDbReader.class);
   
-  private MapFile.Reader[] readers = null;
+  /** Readers of the deltas, newest first, and of current. */
+  private MapFile.Reader[][] readers = null;
   
   private void openReaders(String crawlDb, Configuration config) throws IOException {
     if (readers != null) return;
     FileSystem fs = FileSystem.get(config);
-    readers = MapFileOutputFormat.getReaders(fs, new Path(crawlDb, CrawlDb.CURRENT_NAME), config);
+    Path[] deltas = CrawlDb.getDeltas(fs, new Path(crawlDb));
+    readers = new MapFile.Reader[deltas.length + 1][];
+    for (int i = 0; i < deltas.length; i++) {
+      readers[deltas.length - 1 - i] =
+        MapFileOutputFormat.getReaders(fs, deltas[i], config);
+    }
+    readers[deltas.length] = MapFileOutputFormat.getReaders(fs, new Path(crawlDb, CrawlDb.CURRENT_NAME), config);
   }
   
   private void closeReaders() {
     if (readers == null) return;
     for (int i = 0; i < readers.length; i++) {
-      try {
-        readers[i].close();
-      } catch (Exception e) {
-        
+      for (int j = 0; j < readers[i].length; j++) {
+        try {
+          readers[i][j].close();
+        } catch (Exception e) {
+          
+        }
       }
     }
+    readers = null;
   }
 
   public static class CrawlDbStatMapper implements Mapper {
@@ -237,6 +247,17 @@ public class CrawlDbReader implements Closeable {
     if (LOG.isInfoEnabled()) {
       LOG.info("CrawlDb statistics start: " + crawlDb);
     }
+
+    // written by the jobs which write the crawl db, if they all did
+    CrawlDbStats precomputed = CrawlDbStats.read(config, new Path(crawlDb));
+    if (precomputed != null) {
+      logStats(crawlDb, precomputed);
+      if (LOG.isInfoEnabled()) { LOG.info("CrawlDb statistics: done"); }
+      return;
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("CrawlDb statistics: no statistics in " + crawlDb + ", scanning");
+    }
     
     Path tmpFolder = new Path(crawlDb, "stat_tmp" + System.currentTimeMillis());
 
@@ -244,7 +265,7 @@ public class CrawlDbReader implements Closeable {
     job.setJobName("stats " + crawlDb);
 
     job.addInputPath(new Path(crawlDb, CrawlDb.CURRENT_NAME));
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
 
     job.setMapperClass(CrawlDbStatMapper.class);
     job.setCombinerClass(CrawlDbStatCombiner.class);
@@ -314,12 +335,43 @@ public class CrawlDbReader implements Closeable {
 
   }
   
+  private void logStats(String crawlDb, CrawlDbStats stats) {
+    if (!LOG.isInfoEnabled()) return;
+    LOG.info("Statistics for CrawlDb: " + crawlDb);
+    LOG.info("TOTAL urls:\t" + stats.getCount());
+    LOG.info("avg score:\t" + stats.getAverageScore());
+    LOG.info("max score:\t" + stats.getMaxScore());
+    LOG.info("min score:\t" + stats.getMinScore());
+    LOG.info("score quantiles:\t" + quantiles(stats, -1));
+    for (int i = 0; i < CrawlDbStats.RETRIES; i++) {
+      long n = stats.getRetryCount(i);
+      if (n != 0) LOG.info("retry " + i + ":\t" + n);
+    }
+    for (int i = 0; i <= CrawlDatum.STATUS_DB_MAX; i++) {
+      long n = stats.getCount(i);
+      if (n == 0) continue;
+      LOG.info("status " + i + " (" + CrawlDatum.getStatusName((byte)i) + "):\t"
+               + n + ",\tscore " + quantiles(stats, i));
+    }
+  }
+
+  private static String quantiles(CrawlDbStats stats, int status) {
+    return "p10=" + stats.getScoreQuantile(status, 0.1)
+      + " p50=" + stats.getScoreQuantile(status, 0.5)
+      + " p90=" + stats.getScoreQuantile(status, 0.9)
+      + " p99=" + stats.getScoreQuantile(status, 0.99);
+  }
+
   public CrawlDatum get(String crawlDb, String url, Configuration config) throws IOException {
     Text key = new Text(url);
     CrawlDatum val = new CrawlDatum();
     openReaders(crawlDb, config);
-    CrawlDatum res = (CrawlDatum)MapFileOutputFormat.getEntry(readers, new HashPartitioner(), key, val);
-    return res;
+    // the newest version of the url
+    for (int i = 0; i < readers.length; i++) {
+      CrawlDatum res = (CrawlDatum)MapFileOutputFormat.getEntry(readers[i], new HashPartitioner(), key, val);
+      if (res != null) return res;
+    }
+    return null;
   }
 
   public void readUrl(String crawlDb, String url, Configuration config) throws IOException {
@@ -345,7 +397,7 @@ public class CrawlDbReader implements Closeable {
     job.setJobName("dump " + crawlDb);
 
     job.addInputPath(new Path(crawlDb, CrawlDb.CURRENT_NAME));
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
 
     job.setOutputPath(outFolder);
     job.setOutputFormat(TextOutputFormat.class);
@@ -372,7 +424,7 @@ public class CrawlDbReader implements Closeable {
     JobConf job = new YuQingJob(config);
     job.setJobName("topN prepare " + crawlDb);
     job.addInputPath(new Path(crawlDb, CrawlDb.CURRENT_NAME));
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
     job.setMapperClass(CrawlDbTopNMapper.class);
     job.setReducerClass(IdentityReducer.class);
 
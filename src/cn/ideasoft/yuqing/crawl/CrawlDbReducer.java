@@ -37,17 +37,49 @@ public class CrawlDbReducer implements Reducer {
   
   private int retryMax;
   private CrawlDatum result = new CrawlDatum();
+  private CrawlDatum aggregate = new CrawlDatum();
   private ArrayList linked = new ArrayList();
   private ScoringFilters scfilters = null;
   private boolean additionsAllowed;
+  private FetchSchedule schedule;
+  private JobConf job;
+  private KnownUrls.Writer known;     // filter of the urls written, if wanted
+  private HostDb.Counter hosts;       // urls written by host, with a host db
+  private CrawlDbStats stats = new CrawlDbStats();
 
   public void configure(JobConf job) {
+    this.job = job;
     retryMax = job.getInt("db.fetch.retry.max", 3);
     scfilters = new ScoringFilters(job);
+    schedule = FetchScheduleFactory.getFetchSchedule(job);
     additionsAllowed = job.getBoolean(CrawlDb.CRAWLDB_ADDITIONS_ALLOWED, true);
+    if (job.getBoolean(KnownUrls.KNOWN_URLS_FILTER, false)) {
+      known = new KnownUrls.Writer(job);
+    }
+    if (job.get(HostDb.HOSTDB_PATH, "").length() > 0) {
+      hosts = new HostDb.Counter(job);
+    }
+  }
+
+  public void close() throws IOException {
+    if (known != null) known.close();
+    if (hosts != null) hosts.close();
+    CrawlDbStats.write(job, stats);
   }
 
-  public void close() {}
+  /** Take an entry out of the statistics, when a delta replaces it. */
+  void replaced(WritableComparable key, CrawlDatum old) throws IOException {
+    stats.remove(old);
+    if (hosts != null) hosts.remove((Text)key, old);
+  }
+
+  private void collect(WritableComparable key, CrawlDatum datum,
+                       OutputCollector output) throws IOException {
+    if (known != null) known.add((Text)key);
+    if (hosts != null) hosts.add((Text)key, datum);
+    stats.add(datum);
+    output.collect(key, datum);
+  }
 
   public void reduce(WritableComparable key, Iterator values,
                      OutputCollector output, Reporter reporter)
@@ -56,6 +88,8 @@ public class CrawlDbReducer implements Reducer {
     CrawlDatum fetch = null;
     CrawlDatum old = null;
     byte[] signature = null;
+    boolean hasLinks = false;
+    int inlinks = 0;
     linked.clear();
 
     while (values.hasNext()) {
@@ -81,8 +115,21 @@ public class CrawlDbReducer implements Reducer {
       }
 
       switch (datum.getStatus()) {                // collect other info
-      case CrawlDatum.STATUS_LINKED:
-        linked.add(datum);
+      case CrawlDatum.STATUS_LINKED:             // add up, maybe combined
+        if (!hasLinks) {
+          aggregate.set(datum);
+          inlinks = CrawlDbCombiner.getInlinkCount(datum);
+          hasLinks = true;
+          break;
+        }
+        try {
+          scfilters.combineInlinkScore((Text)key, aggregate, datum);
+          inlinks += CrawlDbCombiner.getInlinkCount(datum);
+        } catch (ScoringFilterException e) {
+          if (LOG.isWarnEnabled()) {
+            LOG.warn("Cannot combine links to " + key + ": " + e.getMessage());
+          }
+        }
         break;
       case CrawlDatum.STATUS_SIGNATURE:
         signature = datum.getSignature();
@@ -94,6 +141,11 @@ public class CrawlDbReducer implements Reducer {
 
     // if it doesn't already exist, skip it
     if (old == null && !additionsAllowed) return;
+
+    if (hasLinks) {
+      CrawlDbCombiner.setInlinkCount(aggregate, inlinks);
+      linked.add(aggregate);
+    }
     
     // if there is no fetched datum, perhaps there is a link
     if (fetch == null && linked.size() > 0) {
@@ -103,7 +155,7 @@ public class CrawlDbReducer implements Reducer {
     // still no new data - record only unchanged old data, if exists, and return
     if (fetch == null) {
       if (old != null) // at this point at least "old" should be present
-        output.collect(key, old);
+        collect(key, old, output);
       else
         LOG.warn("Missing fetch and old value, signature=" + signature);
       return;
@@ -132,6 +184,7 @@ public class CrawlDbReducer implements Reducer {
         result.set(old);                          // use it
       } else {
         result.setStatus(CrawlDatum.STATUS_DB_UNFETCHED);
+        schedule.initializeSchedule((Text)key, result);
         try {
           scfilters.initialScore((Text)key, result);
         } catch (ScoringFilterException e) {
@@ -147,18 +200,26 @@ public class CrawlDbReducer implements Reducer {
     case CrawlDatum.STATUS_FETCH_SUCCESS:         // succesful fetch
       if (fetch.getSignature() == null) result.setSignature(signature);
       result.setStatus(CrawlDatum.STATUS_DB_FETCHED);
-      result.setNextFetchTime();
+      setFetchSchedule((Text)key, old, fetch,
+                       getChangeState(old, result.getSignature()));
+      break;
+
+    case CrawlDatum.STATUS_FETCH_NOTMODIFIED:     // unchanged, nothing parsed
+      if (old != null)
+        result.setSignature(old.getSignature());  // use old signature
+      result.setStatus(CrawlDatum.STATUS_DB_FETCHED);
+      setFetchSchedule((Text)key, old, fetch, FetchSchedule.STATUS_NOTMODIFIED);
       break;
 
     case CrawlDatum.STATUS_FETCH_REDIR_TEMP:
       if (fetch.getSignature() == null) result.setSignature(signature);
       result.setStatus(CrawlDatum.STATUS_DB_REDIR_TEMP);
-      result.setNextFetchTime();
+      setFetchSchedule((Text)key, old, fetch, FetchSchedule.STATUS_UNKNOWN);
       break;
     case CrawlDatum.STATUS_FETCH_REDIR_PERM:
       if (fetch.getSignature() == null) result.setSignature(signature);
       result.setStatus(CrawlDatum.STATUS_DB_REDIR_PERM);
-      result.setNextFetchTime();
+      setFetchSchedule((Text)key, old, fetch, FetchSchedule.STATUS_UNKNOWN);
       break;
     case CrawlDatum.STATUS_SIGNATURE:
       if (LOG.isWarnEnabled()) {
@@ -192,9 +253,37 @@ public class CrawlDbReducer implements Reducer {
         LOG.warn("Couldn't update score, key=" + key + ": " + e);
       }
     }
-    // remove generation time, if any
+    // remove generation time and link count, if any
     result.getMetaData().remove(YuQing.WRITABLE_GENERATE_TIME_KEY);
-    output.collect(key, result);
+    result.getMetaData().remove(YuQing.WRITABLE_INLINK_COUNT_KEY);
+    collect(key, result, output);
+  }
+
+  /** Whether a fetched page changed, judging by its signatures. */
+  private int getChangeState(CrawlDatum old, byte[] signature) {
+    if (old == null || old.getSignature() == null || signature == null) {
+      return FetchSchedule.STATUS_UNKNOWN;
+    }
+    if (SignatureComparator._compare(old.getSignature(), signature) == 0) {
+      return FetchSchedule.STATUS_NOTMODIFIED;
+    }
+    return FetchSchedule.STATUS_MODIFIED;
+  }
+
+  /** Let the fetch schedule set the next fetch of the result. */
+  private void setFetchSchedule(Text url, CrawlDatum old, CrawlDatum fetch,
+                                int state) {
+    long prevFetchTime = 0L;
+    long prevModifiedTime = 0L;
+    if (old != null) {
+      // the old entry holds the time this fetch was due
+      prevFetchTime = old.getFetchTime()
+        - (long)(old.getFetchInterval() * 24 * 60 * 60 * 1000);
+      prevModifiedTime = old.getModifiedTime();
+    }
+    schedule.setFetchSchedule(url, result, prevFetchTime, prevModifiedTime,
+                              fetch.getFetchTime(), fetch.getModifiedTime(),
+                              state);
   }
 
 }
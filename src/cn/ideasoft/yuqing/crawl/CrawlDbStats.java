@@ -0,0 +1,269 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Statistics of the entries of a crawl db: counts by status and by number
+ * of retries, and the score distribution of each status, in buckets of
+ * 12.5% width, from which quantiles can be read. The jobs writing a crawl
+ * db write the statistics of each part into the part's directory, in
+ * current and in deltas, and {@link CrawlDbReader} adds them up instead of
+ * scanning the crawl db. A delta also subtracts the entries it replaces,
+ * so its counts may be negative; minimum and maximum scores are then only
+ * bounds.
+ */
+public class CrawlDbStats implements Writable {
+  public static final String FILE_NAME = "stats";
+
+  private static final byte VERSION = 1;
+
+  /** Score buckets: sign, exponent and 3 bits of mantissa. */
+  private static final int BUCKET_SHIFT = 20;
+  private static final int BUCKETS = 1 << (32 - BUCKET_SHIFT);
+
+  private static final int STATUSES = CrawlDatum.STATUS_DB_MAX + 1;
+  /** Entries with more retries are counted with the most. */
+  public static final int RETRIES = 128;
+
+  private long[] statusCounts = new long[STATUSES];
+  private long[] retryCounts = new long[RETRIES];
+  /** Score buckets by status, allocated when first needed. */
+  private long[][] scores = new long[STATUSES][];
+  private double scoreSum;
+  private float minScore = Float.POSITIVE_INFINITY;
+  private float maxScore = Float.NEGATIVE_INFINITY;
+
+  public CrawlDbStats() {}
+
+  /** The bucket of a score, in the order of scores. */
+  private static int bucket(float score) {
+    int bits = Float.floatToIntBits(score);
+    return (bits ^ ((bits >> 31) | 0x80000000)) >>> BUCKET_SHIFT;
+  }
+
+  /** The lowest score of a bucket. */
+  private static float lowerBound(int bucket) {
+    int sortable = bucket << BUCKET_SHIFT;
+    int bits = sortable < 0 ? sortable ^ 0x80000000 : ~sortable;
+    return Float.intBitsToFloat(bits);
+  }
+
+  public void add(CrawlDatum datum) {
+    count(datum, 1);
+    float score = datum.getScore();
+    if (score < minScore) minScore = score;
+    if (score > maxScore) maxScore = score;
+  }
+
+  /** Take an entry out, when it is replaced in a delta. */
+  public void remove(CrawlDatum datum) {
+    count(datum, -1);
+  }
+
+  private void count(CrawlDatum datum, int n) {
+    int status = datum.getStatus() & 0xff;
+    if (status >= STATUSES) status = 0;
+    statusCounts[status] += n;
+    retryCounts[Math.max(0, Math.min(RETRIES - 1, datum.getRetriesSinceFetch()))] += n;
+    if (scores[status] == null) scores[status] = new long[BUCKETS];
+    scores[status][bucket(datum.getScore())] += n;
+    scoreSum += n * datum.getScore();
+  }
+
+  public void merge(CrawlDbStats that) {
+    for (int i = 0; i < STATUSES; i++) {
+      statusCounts[i] += that.statusCounts[i];
+      if (that.scores[i] == null) continue;
+      if (scores[i] == null) scores[i] = new long[BUCKETS];
+      for (int j = 0; j < BUCKETS; j++) scores[i][j] += that.scores[i][j];
+    }
+    for (int i = 0; i < RETRIES; i++) retryCounts[i] += that.retryCounts[i];
+    scoreSum += that.scoreSum;
+    if (that.minScore < minScore) minScore = that.minScore;
+    if (that.maxScore > maxScore) maxScore = that.maxScore;
+  }
+
+  public long getCount() {
+    long n = 0;
+    for (int i = 0; i < STATUSES; i++) n += statusCounts[i];
+    return n;
+  }
+
+  public long getCount(int status) {
+    return statusCounts[status];
+  }
+
+  /** Number of entries with a number of retries since the last fetch. */
+  public long getRetryCount(int retries) {
+    return retryCounts[retries];
+  }
+
+  public float getMinScore() {
+    return minScore;
+  }
+
+  public float getMaxScore() {
+    return maxScore;
+  }
+
+  public float getAverageScore() {
+    long n = getCount();
+    return n > 0 ? (float)(scoreSum / n) : 0.0f;
+  }
+
+  /** The score below which a fraction <code>q</code> of entries score. */
+  public float getScoreQuantile(double q) {
+    return getScoreQuantile(-1, q);
+  }
+
+  /**
+   * The score below which a fraction <code>q</code> of the entries with a
+   * status score, or of all entries if the status is -1.
+   */
+  public float getScoreQuantile(int status, double q) {
+    long total = status < 0 ? getCount() : statusCounts[status];
+    if (total <= 0) return 0.0f;
+    long rank = (long)Math.ceil(q * total);
+    long seen = 0;
+    for (int j = 0; j < BUCKETS; j++) {
+      for (int i = 0; i < STATUSES; i++) {
+        if (scores[i] == null || (status >= 0 && i != status)) continue;
+        seen += scores[i][j];
+      }
+      if (seen >= rank && seen > 0) return lowerBound(j);
+    }
+    return maxScore;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+    writeSparse(out, statusCounts);
+    writeSparse(out, retryCounts);
+    for (int i = 0; i < STATUSES; i++) {
+      if (scores[i] == null) continue;
+      out.writeByte(i);
+      writeSparse(out, scores[i]);
+    }
+    out.writeByte(-1);
+    out.writeDouble(scoreSum);
+    out.writeFloat(minScore);
+    out.writeFloat(maxScore);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    in.readByte();                                // version
+    readSparse(in, statusCounts);
+    readSparse(in, retryCounts);
+    scores = new long[STATUSES][];
+    for (int i = in.readByte(); i >= 0; i = in.readByte()) {
+      scores[i] = new long[BUCKETS];
+      readSparse(in, scores[i]);
+    }
+    scoreSum = in.readDouble();
+    minScore = in.readFloat();
+    maxScore = in.readFloat();
+  }
+
+  /** The non-zero values of an array, by the increase of their index. */
+  private static void writeSparse(DataOutput out, long[] values)
+    throws IOException {
+    int n = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != 0) n++;
+    }
+    WritableUtils.writeVInt(out, n);
+    int last = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == 0) continue;
+      WritableUtils.writeVInt(out, i - last);
+      WritableUtils.writeVLong(out, values[i]);
+      last = i;
+    }
+  }
+
+  private static void readSparse(DataInput in, long[] values)
+    throws IOException {
+    for (int i = 0; i < values.length; i++) values[i] = 0;
+    int n = WritableUtils.readVInt(in);
+    int index = 0;
+    for (int i = 0; i < n; i++) {
+      index += WritableUtils.readVInt(in);
+      values[index] = WritableUtils.readVLong(in);
+    }
+  }
+
+  /** Write the statistics of the part written by a crawl db reduce task. */
+  static void write(JobConf job, CrawlDbStats stats) throws IOException {
+    Path path = new Path(CrawlDb.getTaskPart(job), FILE_NAME);
+    FSDataOutputStream out = FileSystem.get(job).create(path);
+    try {
+      stats.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * The statistics of a crawl db, or null if some part of current or of the
+   * deltas has none, e.g. because it was written by a job which doesn't
+   * keep them.
+   */
+  public static CrawlDbStats read(Configuration conf, Path crawlDb)
+    throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    List<Path> dirs = new ArrayList<Path>();
+    dirs.add(new Path(crawlDb, CrawlDb.CURRENT_NAME));
+    Path[] deltas = CrawlDb.getDeltas(fs, crawlDb);
+    for (int i = 0; i < deltas.length; i++) dirs.add(deltas[i]);
+    CrawlDbStats result = new CrawlDbStats();
+    CrawlDbStats part = new CrawlDbStats();
+    for (int i = 0; i < dirs.size(); i++) {
+      Path[] parts = fs.listPaths(dirs.get(i));
+      if (parts == null) return null;
+      for (int j = 0; j < parts.length; j++) {
+        if (!parts[j].getName().startsWith("part-")) continue;
+        Path path = new Path(parts[j], FILE_NAME);
+        if (!fs.exists(path)) return null;
+        FSDataInputStream in = fs.open(path);
+        try {
+          part.readFields(in);
+        } finally {
+          in.close();
+        }
+        result.merge(part);
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Decides when a page is to be fetched again. Implementations set the
+ * fetch time and the fetch interval of a {@link CrawlDatum}, and may keep
+ * their own state in its metadata.
+ */
+public interface FetchSchedule extends Configurable {
+
+  /** It is unknown whether the page changed since the last fetch. */
+  public static final int STATUS_UNKNOWN = 0;
+  /** The page changed since the last fetch. */
+  public static final int STATUS_MODIFIED = 1;
+  /** The page didn't change since the last fetch. */
+  public static final int STATUS_NOTMODIFIED = 2;
+
+  /** Set the schedule of a page new to the crawl db. */
+  public void initializeSchedule(Text url, CrawlDatum datum);
+
+  /**
+   * Set the schedule of a page after it was fetched.
+   * @param url url of the page
+   * @param datum the new db entry of the page, to be updated
+   * @param prevFetchTime time of the previous fetch, or 0
+   * @param prevModifiedTime modification time known before this fetch, or 0
+   * @param fetchTime time of this fetch
+   * @param modifiedTime modification time reported by this fetch, or 0
+   * @param state one of {@link #STATUS_UNKNOWN}, {@link #STATUS_MODIFIED}
+   * and {@link #STATUS_NOTMODIFIED}
+   */
+  public void setFetchSchedule(Text url, CrawlDatum datum,
+                               long prevFetchTime, long prevModifiedTime,
+                               long fetchTime, long modifiedTime, int state);
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import cn.ideasoft.yuqing.util.BloomFilter;
+
+/**
+ * A url key which sorts by a 64-bit fingerprint of the url first, so that
+ * sorting compares 8 bytes at a fixed offset instead of urls with long common
+ * prefixes. The url follows the fingerprint, and is only compared when the
+ * fingerprints are equal, so keys group exactly as the urls do. Jobs whose
+ * output needn't be sorted by url use it as their map output key when
+ * <code>url.fingerprint.keys</code> is set; crawl dbs and link dbs are
+ * still sorted by url, for lookups.
+ */
+public class FingerprintedUrl implements WritableComparable {
+  public static final String FINGERPRINT_KEYS = "url.fingerprint.keys";
+
+  private long fingerprint;
+  private Text url = new Text();
+
+  public FingerprintedUrl() {}
+
+  public FingerprintedUrl(Text url) {
+    set(url);
+  }
+
+  public void set(Text url) {
+    this.url.set(url);
+    this.fingerprint = fingerprint(url);
+  }
+
+  public Text getUrl() {
+    return url;
+  }
+
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  /** The fingerprint of a url. */
+  public static long fingerprint(Text url) {
+    return BloomFilter.hash(url);
+  }
+
+  /** Whether a job should key its map output by fingerprint. */
+  public static boolean isEnabled(JobConf job) {
+    return job.getBoolean(FINGERPRINT_KEYS, false);
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(fingerprint);
+    url.write(out);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    fingerprint = in.readLong();
+    url.readFields(in);
+  }
+
+  public int compareTo(Object o) {
+    FingerprintedUrl that = (FingerprintedUrl)o;
+    if (this.fingerprint != that.fingerprint) {
+      return this.fingerprint < that.fingerprint ? -1 : 1;
+    }
+    return this.url.compareTo(that.url);
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof FingerprintedUrl)) return false;
+    FingerprintedUrl that = (FingerprintedUrl)o;
+    return this.fingerprint == that.fingerprint && this.url.equals(that.url);
+  }
+
+  public int hashCode() {
+    return (int)(fingerprint ^ (fingerprint >>> 32));
+  }
+
+  public String toString() {
+    return url.toString();
+  }
+
+  /** Compares the fingerprints, and the urls only if those are equal. */
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(FingerprintedUrl.class);
+    }
+
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      long f1 = readLong(b1, s1);
+      long f2 = readLong(b2, s2);
+      if (f1 != f2) return f1 < f2 ? -1 : 1;
+      int n1 = WritableUtils.decodeVIntSize(b1[s1 + 8]);
+      int n2 = WritableUtils.decodeVIntSize(b2[s2 + 8]);
+      return compareBytes(b1, s1 + 8 + n1, l1 - 8 - n1,
+                          b2, s2 + 8 + n2, l2 - 8 - n2);
+    }
+  }
+
+  static {                                        // register this comparator
+    WritableComparator.define(FingerprintedUrl.class, new Comparator());
+  }
+
+  /** Keys the input by the fingerprints of its url keys. */
+  public static class KeyMapper implements Mapper {
+    public void configure(JobConf job) {}
+
+    public void close() {}
+
+    public void map(WritableComparable key, Writable value,
+                    OutputCollector output, Reporter reporter)
+      throws IOException {
+      output.collect(new FingerprintedUrl((Text)key), value);
+    }
+  }
+
+}
@@ -35,6 +35,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import cn.ideasoft.yuqing.metadata.YuQing;
+import cn.ideasoft.yuqing.net.DnsCache;
 import cn.ideasoft.yuqing.net.URLFilterException;
 import cn.ideasoft.yuqing.net.URLFilters;
 import cn.ideasoft.yuqing.net.URLNormalizers;
@@ -51,7 +52,10 @@ public class Generator extends ToolBase {
   public static final String GENERATE_MAX_PER_HOST_BY_IP = "generate.max.per.host.by.ip";
   public static final String GENERATE_MAX_PER_HOST = "generate.max.per.host";
   public static final String GENERATE_UPDATE_CRAWLDB = "generate.update.crawldb";
+  public static final String GENERATE_TOPN_LOCAL = "generate.topN.local";
   public static final String CRAWL_TOP_N = "crawl.topN";
+  public static final String GENERATE_MAX_NUM_SEGMENTS = "generate.max.num.segments";
+  public static final String GENERATE_SEGMENT_NUM = "generate.segment.num";
   public static final String CRAWL_GEN_CUR_TIME = "crawl.gen.curTime";
   public static final String CRAWL_GEN_DELAY = "crawl.gen.delay";
   public static final Log LOG = LogFactory.getLog(Generator.class);
@@ -59,24 +63,82 @@ public class Generator extends ToolBase {
   public static class SelectorEntry implements Writable {
     public Text url;
     public CrawlDatum datum;
+    public IntWritable segnum;
     
     public SelectorEntry() {
       url = new Text();
       datum = new CrawlDatum();
+      segnum = new IntWritable(0);
     }
 
     public void readFields(DataInput in) throws IOException {
       url.readFields(in);
       datum.readFields(in);
+      segnum.readFields(in);
     }
 
     public void write(DataOutput out) throws IOException {
       url.write(out);
       datum.write(out);
+      segnum.write(out);
     }
     
     public String toString() {
-      return "url=" + url.toString() + ", datum=" + datum.toString();
+      return "url=" + url.toString() + ", datum=" + datum.toString()
+        + ", segnum=" + segnum.get();
+    }
+  }
+
+  /** An entry kept by a mapper as a candidate for the fetchlist. */
+  private static class Candidate implements Comparable<Candidate> {
+    float sort;
+    SelectorEntry entry = new SelectorEntry();
+    String host;
+    boolean dropped;
+
+    Candidate(float sort, Text url, CrawlDatum datum, String host) {
+      this.sort = sort;
+      this.entry.url.set(url);
+      this.entry.datum.set(datum);
+      this.host = host;
+    }
+
+    public int compareTo(Candidate that) {
+      return Float.compare(sort, that.sort);
+    }
+  }
+
+  /**
+   * The best-scoring candidates of one partition, lowest on top. Candidates
+   * displaced by better ones of the same host are only marked as dropped,
+   * and leave the heap when they reach its top.
+   */
+  private static class CandidateHeap {
+    PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>();
+    Map<String, PriorityQueue<Candidate>> hosts =
+      new HashMap<String, PriorityQueue<Candidate>>();
+    long live = 0;
+
+    /** The lowest candidate not dropped, or null. */
+    Candidate peek() {
+      while (!heap.isEmpty() && heap.peek().dropped) heap.poll();
+      return heap.peek();
+    }
+
+    void drop(Candidate c) {
+      c.dropped = true;
+      live--;
+    }
+
+    /** Forget dropped candidates, if there are many. */
+    void compact() {
+      if (heap.size() < 2 * live + 1000) return;
+      PriorityQueue<Candidate> kept =
+        new PriorityQueue<Candidate>((int)Math.max(1, live));
+      for (Candidate c : heap) {
+        if (!c.dropped) kept.add(c);
+      }
+      heap = kept;
     }
   }
 
@@ -85,7 +147,9 @@ public class Generator extends ToolBase {
     private LongWritable genTime = new LongWritable(System.currentTimeMillis());
     private long curTime;
     private long limit;
-    private long count;
+    private int segments;
+    private long[] segCounts;
+    private int current;
     private HashMap hostCounts = new HashMap();
     private int maxPerHost;
     private Partitioner hostPartitioner = new PartitionUrlByHost();
@@ -95,16 +159,25 @@ public class Generator extends ToolBase {
     private SelectorEntry entry = new SelectorEntry();
     private FloatWritable sortValue = new FloatWritable();
     private boolean byIP;
+    private DnsCache dns;
     private long dnsFailure = 0L;
     private boolean filter;
     private long genDelay;
     private boolean runUpdatedb;
+    private boolean localTopN;
+    private long candidateLimit;
+    private int candidateMaxPerHost;
+    private int numPartitions;
+    private CandidateHeap[] candidates;
+    private OutputCollector candidateOutput;
+    private Map<String, Integer> hostLimits;
 
     public void configure(JobConf job) {
       curTime = job.getLong(CRAWL_GEN_CUR_TIME, System.currentTimeMillis());
       limit = job.getLong(CRAWL_TOP_N,Long.MAX_VALUE)/job.getNumReduceTasks();
       maxPerHost = job.getInt(GENERATE_MAX_PER_HOST, -1);
       byIP = job.getBoolean(GENERATE_MAX_PER_HOST_BY_IP, false);
+      if (byIP) dns = DnsCache.get(job);
       filters = new URLFilters(job);
       normalizers = new URLNormalizers(job, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
       scfilters = new ScoringFilters(job);
@@ -114,9 +187,103 @@ public class Generator extends ToolBase {
       long time = job.getLong(YuQing.GENERATE_TIME_KEY, 0L);
       if (time > 0) genTime.set(time);
       runUpdatedb = job.getBoolean(GENERATE_UPDATE_CRAWLDB, false);
+      segments = Math.max(1, job.getInt(GENERATE_MAX_NUM_SEGMENTS, 1));
+      segCounts = new long[segments];
+      current = limit > 0 ? 0 : segments;
+      // the mapper keeps what any of the segments could take
+      candidateLimit = limit > Long.MAX_VALUE / segments
+        ? Long.MAX_VALUE : limit * segments;
+      candidateMaxPerHost = maxPerHost > 0 ? maxPerHost * segments : maxPerHost;
+      numPartitions = job.getNumReduceTasks();
+      localTopN = job.getBoolean(GENERATE_TOPN_LOCAL, false)
+        && job.getLong(CRAWL_TOP_N, Long.MAX_VALUE) != Long.MAX_VALUE;
+      if (localTopN) candidates = new CandidateHeap[numPartitions];
+      String hostDb = job.get(HostDb.HOSTDB_PATH, "");
+      if (hostDb.length() > 0) {
+        try {
+          loadHostLimits(job, new Path(hostDb));
+        } catch (IOException e) {
+          LOG.warn("Generator: cannot read host db " + hostDb + ": " + e);
+          hostLimits = null;
+        }
+        if (hostLimits != null && hostLimits.isEmpty()) hostLimits = null;
+      }
     }
 
-    public void close() {}
+    /**
+     * Read the limits of hosts from the host db: nothing from dead hosts,
+     * and from slow ones no more than a fetcher can fetch within
+     * <code>fetcher.timelimit.mins</code>. Only hosts with a limit below
+     * <code>generate.max.per.host</code> are kept.
+     */
+    private void loadHostLimits(JobConf job, Path hostDb) throws IOException {
+      hostLimits = new HashMap<String, Integer>();
+      float minFetches = job.getFloat("generate.hostdb.dead.fetches", 10.0f);
+      float maxErrorRate = job.getFloat("generate.hostdb.dead.error.rate", 0.9f);
+      long timeLimit = job.getLong("fetcher.timelimit.mins", -1) * 60L * 1000L;
+      long serverDelay = (long) (job.getFloat("fetcher.server.delay", 1.0f) * 1000);
+      int threadsPerHost = Math.max(1, job.getInt("fetcher.threads.per.host", 1));
+      int dead = 0;
+      MapFile.Reader[] readers = HostDb.getReaders(job, hostDb);
+      Text host = new Text();
+      HostDatum datum = new HostDatum();
+      for (int i = 0; i < readers.length; i++) {
+        try {
+          while (readers[i].next(host, datum)) {
+            long hostLimit = -1;
+            if (datum.getFetches() >= minFetches
+                && datum.getErrorRate() >= maxErrorRate) {
+              hostLimit = 0;
+              dead++;
+            } else if (timeLimit > 0 && datum.getFetches() > 0) {
+              long delay = Math.max(datum.getCrawlDelay(), serverDelay);
+              long perFetch = (delay + (long) datum.getResponseTime()) / threadsPerHost;
+              hostLimit = timeLimit / Math.max(1, perFetch);
+              if (maxPerHost > 0 && hostLimit >= maxPerHost) hostLimit = -1;
+            }
+            if (hostLimit >= 0) {
+              hostLimits.put(host.toString(),
+                  new Integer((int) Math.min(Integer.MAX_VALUE, hostLimit)));
+            }
+          }
+        } finally {
+          readers[i].close();
+        }
+      }
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Generator: host db: " + dead + " dead hosts, "
+                 + (hostLimits.size() - dead) + " slow hosts");
+      }
+    }
+
+    /** The most urls of the host of an url in a segment. */
+    private int getHostLimit(Text url) {
+      int hostLimit = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+      if (hostLimits != null) {
+        Integer l = hostLimits.get(HostDb.getHost(url.toString()));
+        if (l != null && l.intValue() < hostLimit) hostLimit = l.intValue();
+      }
+      return hostLimit;
+    }
+
+    public void close() throws IOException {
+      if (candidateOutput != null) {
+        // emit what the mapper selected
+        FloatWritable sortValue = new FloatWritable();
+        for (int i = 0; i < candidates.length; i++) {
+          if (candidates[i] == null) continue;
+          for (Candidate c : candidates[i].heap) {
+            if (c.dropped) continue;
+            sortValue.set(c.sort);
+            candidateOutput.collect(sortValue, c.entry);
+          }
+          candidates[i] = null;
+        }
+      }
+      if (dns != null && LOG.isInfoEnabled()) {
+        LOG.info("Generator: dns cache: " + dns);
+      }
+    }
 
     /** Select & invert subset due for fetch. */
     public void map(WritableComparable key, Writable value,
@@ -144,6 +311,9 @@ public class Generator extends ToolBase {
       if (crawlDatum.getFetchTime() > curTime)
         return;                                   // not time yet
 
+      if (hostLimits != null && getHostLimit(url) == 0)
+        return;                                   // dead host
+
       LongWritable oldGenTime = (LongWritable)crawlDatum.getMetaData().get(YuQing.WRITABLE_GENERATE_TIME_KEY);
       if (oldGenTime != null) { // awaiting fetch & update
         if (oldGenTime.get() + genDelay > curTime) // still wait for update
@@ -161,11 +331,110 @@ public class Generator extends ToolBase {
       sortValue.set(sort);
       // record generation time
       crawlDatum.getMetaData().put(YuQing.WRITABLE_GENERATE_TIME_KEY, genTime);
+      if (localTopN) {
+        select(sort, (Text)key, crawlDatum, output);
+        return;
+      }
       entry.datum = crawlDatum;
       entry.url = (Text)key;
       output.collect(sortValue, entry);          // invert for sort by score
     }
 
+    /**
+     * Keep an entry if it is among the best <code>limit</code> of its
+     * partition seen so far by this mapper, and among the best
+     * <code>maxPerHost</code> of its host (times the number of segments),
+     * since the reducer could never select the others. The kept entries are emitted on {@link #close()}.
+     */
+    private void select(float sort, Text url, CrawlDatum datum,
+                        OutputCollector output) throws IOException {
+      candidateOutput = output;
+      if (candidateLimit <= 0) return;
+      int partition = hostPartitioner.getPartition(url, null, numPartitions);
+      CandidateHeap part = candidates[partition];
+      if (part == null) {
+        part = new CandidateHeap();
+        candidates[partition] = part;
+      }
+      Candidate lowest = part.peek();
+      if (part.live >= candidateLimit && sort <= lowest.sort) {
+        return;                                   // not good enough
+      }
+
+      String host = null;
+      PriorityQueue<Candidate> sameHost = null;
+      if (candidateMaxPerHost > 0) {
+        host = getHost(url);
+        if (host == null) return;
+        sameHost = part.hosts.get(host);
+        if (sameHost == null) {
+          sameHost = new PriorityQueue<Candidate>();
+          part.hosts.put(host, sameHost);
+        } else if (sameHost.size() >= candidateMaxPerHost) {
+          if (sort <= sameHost.peek().sort) {
+            return;                               // enough better ones
+          }
+          part.drop(sameHost.poll());
+        }
+      }
+
+      Candidate c = new Candidate(sort, url, datum, host);
+      part.heap.add(c);
+      part.live++;
+      if (sameHost != null) sameHost.add(c);
+
+      while (part.live > candidateLimit) {                 // evict the lowest
+        lowest = part.peek();
+        part.heap.poll();
+        part.drop(lowest);
+        if (lowest.host != null) {
+          sameHost = part.hosts.get(lowest.host);
+          sameHost.remove(lowest);
+          if (sameHost.isEmpty()) part.hosts.remove(lowest.host);
+        }
+      }
+      part.compact();
+    }
+
+    /**
+     * The host an url counts for with <code>generate.max.per.host</code>, or
+     * null if the url is to be skipped.
+     */
+    private String getHost(Text url) throws IOException {
+      URL u = new URL(url.toString());
+      String host = u.getHost();
+      if (host == null) {
+        // unknown host, skip
+        return null;
+      }
+      host = host.toLowerCase();
+      if (byIP) {
+        try {
+          InetAddress ia = dns.resolve(host);
+          host = ia.getHostAddress();
+        } catch (UnknownHostException uhe) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("DNS lookup failed: " + host + ", skipping.");
+          }
+          dnsFailure++;
+          if ((dnsFailure % 1000 == 0) && (LOG.isWarnEnabled())) {
+            LOG.warn("DNS failures: " + dnsFailure);
+          }
+          return null;
+        }
+      }
+      u = new URL(u.getProtocol(), host, u.getPort(), u.getFile());
+      String urlString = u.toString();
+      try {
+        urlString = normalizers.normalize(urlString, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
+        return new URL(urlString).getHost();
+      } catch (Exception e) {
+        LOG.warn("Malformed URL: '" + urlString + "', skipping (" +
+            StringUtils.stringifyException(e) + ")");
+        return null;
+      }
+    }
+
     /** Partition by host. */
     public int getPartition(WritableComparable key, Writable value,
                             int numReduceTasks) {
@@ -173,75 +442,63 @@ public class Generator extends ToolBase {
                                           numReduceTasks);
     }
 
-    /** Collect until limit is reached. */
+    /**
+     * Collect until limit is reached, in each of the segments. An entry goes
+     * to the first segment with room left, or to a later one if its host
+     * has reached the limit per host there.
+     */
     public void reduce(WritableComparable key, Iterator values,
                        OutputCollector output, Reporter reporter)
       throws IOException {
 
-      while (values.hasNext() && count < limit) {
+      while (values.hasNext() && current < segments) {
 
         SelectorEntry entry = (SelectorEntry)values.next();
         Text url = entry.url;
-
-        if (maxPerHost > 0) {                     // are we counting hosts?
-          URL u = new URL(url.toString());
-          String host = u.getHost();
-          if (host == null) {
-            // unknown host, skip
-            continue;
-          }
-          host = host.toLowerCase();
-          if (byIP) {
-            try {
-              InetAddress ia = InetAddress.getByName(host);
-              host = ia.getHostAddress();
-            } catch (UnknownHostException uhe) {
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("DNS lookup failed: " + host + ", skipping.");
-              }
-              dnsFailure++;
-              if ((dnsFailure % 1000 == 0) && (LOG.isWarnEnabled())) {
-                LOG.warn("DNS failures: " + dnsFailure);
-              }
-              continue;
-            }
-          }
-          u = new URL(u.getProtocol(), host, u.getPort(), u.getFile());
-          String urlString = u.toString();
-          try {
-            urlString = normalizers.normalize(urlString, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
-            host = new URL(urlString).getHost();
-          } catch (Exception e) {
-            LOG.warn("Malformed URL: '" + urlString + "', skipping (" +
-                StringUtils.stringifyException(e) + ")");
-            continue;
-          }
-          IntWritable hostCount = (IntWritable)hostCounts.get(host);
+        int segment = current;
+
+        if (maxPerHost > 0 || hostLimits != null) { // are we counting hosts?
+          int hostLimit = getHostLimit(url);
+          String host = getHost(url);
+          if (host == null) continue;
+          // segment of the host, and its count there
+          int[] hostCount = (int[])hostCounts.get(host);
           if (hostCount == null) {
-            hostCount = new IntWritable();
+            hostCount = new int[2];
             hostCounts.put(host, hostCount);
           }
+          if (hostCount[0] >= segments) continue; // no room for the host
 
-          // increment hostCount
-          hostCount.set(hostCount.get() + 1);
-
-          // skip URL if above the limit per host.
-          if (hostCount.get() > maxPerHost) {
-            if (hostCount.get() == maxPerHost + 1) {
-              if (LOG.isInfoEnabled()) {
-                LOG.info("Host " + host + " has more than " + maxPerHost +
-                         " URLs." + " Skipping additional.");
-              }
+          // move on if above the limit per host, or if the segment is full
+          if (hostCount[1] >= hostLimit) {
+            hostCount[0]++;
+            hostCount[1] = 0;
+          }
+          while (hostCount[0] < segments && segCounts[hostCount[0]] >= limit) {
+            hostCount[0]++;
+            hostCount[1] = 0;
+          }
+          if (hostCount[0] >= segments) {
+            if (LOG.isInfoEnabled()) {
+              LOG.info("Host " + host + " has more than " + hostLimit +
+                       " URLs" + (segments > 1 ? " per segment." : ".") +
+                       " Skipping additional.");
             }
             continue;
           }
+          hostCount[1]++;
+          segment = hostCount[0];
         }
 
+        entry.segnum.set(segment);
         output.collect(key, entry);
 
-        // Count is incremented only when we keep the URL
+        // Counts are incremented only when we keep the URL
         // maxPerHost may cause us to skip it.
-        count++;
+        segCounts[segment]++;
+        while (current < segments && segCounts[current] >= limit) {
+          current++;
+        }
       }
 
     }
@@ -258,9 +515,15 @@ public class Generator extends ToolBase {
   }
 
   public static class SelectorInverseMapper extends MapReduceBase implements Mapper {
+    private int segnum;
+
+    public void configure(JobConf job) {
+      segnum = job.getInt(GENERATE_SEGMENT_NUM, 0);
+    }
 
     public void map(WritableComparable key, Writable value, OutputCollector output, Reporter reporter) throws IOException {
       SelectorEntry entry = (SelectorEntry)value;
+      if (entry.segnum.get() != segnum) return;   // another segment's
       output.collect(entry.url, entry.datum);
     }
   }
@@ -361,6 +624,22 @@ public class Generator extends ToolBase {
                        int numLists, long topN, long curTime, boolean filter,
                        boolean force)
     throws IOException {
+    Path[] generated = generate(dbDir, segments, numLists, topN, curTime,
+                                filter, force, 1);
+    return generated == null ? null : generated[0];
+  }
+
+  /**
+   * Generate up to <code>maxNumSegments</code> fetchlists of
+   * <code>topN</code> urls each, in as many segments, from a single pass
+   * over the crawl db. A url is in at most one of them.
+   * @return Paths to the generated segments, best-scoring first, or null if
+   * no entries were selected.
+   */
+  public Path[] generate(Path dbDir, Path segments,
+                         int numLists, long topN, long curTime, boolean filter,
+                         boolean force, int maxNumSegments)
+    throws IOException {
 
     Path tempDir =
       new Path(getConf().get("mapred.temp.dir", ".") +
@@ -377,8 +656,18 @@ public class Generator extends ToolBase {
     LOG.info("Generator: starting");
     LOG.info("Generator: segment: " + segment);
     LOG.info("Generator: filtering: " + filter);
+    if (topN == Long.MAX_VALUE && maxNumSegments > 1) {
+      LOG.info("Generator: no topN, generating a single segment.");
+      maxNumSegments = 1;
+    }
     if (topN != Long.MAX_VALUE) {
       LOG.info("Generator: topN: " + topN);
+      if (maxNumSegments > 1) {
+        LOG.info("Generator: max segments: " + maxNumSegments);
+      }
+      if (getConf().getBoolean(GENERATE_TOPN_LOCAL, false)) {
+        LOG.info("Generator: selecting candidates in the map tasks.");
+      }
     }
 
     // map to inverted subset due for fetch, sort by score
@@ -398,10 +687,11 @@ public class Generator extends ToolBase {
     long generateTime = System.currentTimeMillis();
     job.setLong(YuQing.GENERATE_TIME_KEY, generateTime);
     job.setLong(CRAWL_TOP_N, topN);
+    job.setInt(GENERATE_MAX_NUM_SEGMENTS, maxNumSegments);
     job.setBoolean(CRAWL_GENERATE_FILTER, filter);
 
     job.setInputPath(new Path(dbDir, CrawlDb.CURRENT_NAME));
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
 
     job.setMapperClass(Selector.class);
     job.setPartitionerClass(Selector.class);
@@ -433,29 +723,46 @@ public class Generator extends ToolBase {
     if (LOG.isInfoEnabled()) {
       LOG.info("Generator: Partitioning selected urls by host, for politeness.");
     }
-    job = new YuQingJob(getConf());
-    job.setJobName("generate: partition " + segment);
+    List generated = new ArrayList();
+    for (int i = 0; i < maxNumSegments; i++) {
+      if (i > 0) {
+        segment = new Path(segments, generateSegmentName());
+        output = new Path(segment, CrawlDatum.GENERATE_DIR_NAME);
+      }
+      job = new YuQingJob(getConf());
+      job.setJobName("generate: partition " + segment);
     
-    job.setInt("partition.url.by.host.seed", new Random().nextInt());
+      job.setInt("partition.url.by.host.seed", new Random().nextInt());
+      job.setInt(GENERATE_SEGMENT_NUM, i);
 
-    job.setInputPath(tempDir);
-    job.setInputFormat(SequenceFileInputFormat.class);
+      job.setInputPath(tempDir);
+      job.setInputFormat(SequenceFileInputFormat.class);
 
-    job.setMapperClass(SelectorInverseMapper.class);
-    job.setPartitionerClass(PartitionUrlByHost.class);
-    job.setNumReduceTasks(numLists);
+      job.setMapperClass(SelectorInverseMapper.class);
+      job.setPartitionerClass(PartitionUrlByHost.class);
+      job.setNumReduceTasks(numLists);
 
-    job.setOutputPath(output);
-    job.setOutputFormat(SequenceFileOutputFormat.class);
-    job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(CrawlDatum.class);
-    job.setOutputKeyComparatorClass(HashComparator.class);
-    try {
-      JobClient.runJob(job);
-    } catch (IOException e) {
-      LockUtil.removeLockFile(fs, lock);
-      fs.delete(tempDir);
-      throw e;
+      job.setOutputPath(output);
+      job.setOutputFormat(SequenceFileOutputFormat.class);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(CrawlDatum.class);
+      job.setOutputKeyComparatorClass(HashComparator.class);
+      try {
+        JobClient.runJob(job);
+      } catch (IOException e) {
+        LockUtil.removeLockFile(fs, lock);
+        fs.delete(tempDir);
+        throw e;
+      }
+      // segments are filled in order, so the first empty one is the last
+      if (i > 0 && isEmpty(job, output)) {
+        fs.delete(segment);
+        break;
+      }
+      if (LOG.isInfoEnabled() && maxNumSegments > 1) {
+        LOG.info("Generator: segment: " + segment);
+      }
+      generated.add(segment);
     }
     if (getConf().getBoolean(GENERATE_UPDATE_CRAWLDB, false)) {
       // update the db from tempDir
@@ -468,7 +775,7 @@ public class Generator extends ToolBase {
       job.setLong(YuQing.GENERATE_TIME_KEY, generateTime);
       job.addInputPath(tempDir);
       job.addInputPath(new Path(dbDir, CrawlDb.CURRENT_NAME));
-      job.setInputFormat(SequenceFileInputFormat.class);
+      job.setInputFormat(CrawlDbInputFormat.class);
       job.setMapperClass(CrawlDbUpdater.class);
       job.setReducerClass(CrawlDbUpdater.class);
       job.setOutputFormat(MapFileOutputFormat.class);
@@ -491,7 +798,18 @@ public class Generator extends ToolBase {
 
     if (LOG.isInfoEnabled()) { LOG.info("Generator: done."); }
 
-    return segment;
+    return (Path[])generated.toArray(new Path[generated.size()]);
+  }
+
+  /** True if a job wrote no records to <code>dir</code>. */
+  private static boolean isEmpty(JobConf job, Path dir) throws IOException {
+    SequenceFile.Reader[] readers = SequenceFileOutputFormat.getReaders(job, dir);
+    boolean empty = true;
+    for (int i = 0; i < readers.length; i++) {
+      if (empty && readers[i].next(new Text())) empty = false;
+      readers[i].close();
+    }
+    return empty;
   }
   
   private static SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
@@ -514,7 +832,7 @@ public class Generator extends ToolBase {
   
   public int run(String[] args) throws Exception {
     if (args.length < 2) {
-      System.out.println("Usage: Generator <crawldb> <segments_dir> [-force] [-topN N] [-numFetchers numFetchers] [-adddays numDays] [-noFilter]");
+      System.out.println("Usage: Generator <crawldb> <segments_dir> [-force] [-topN N] [-numFetchers numFetchers] [-maxNumSegments num] [-adddays numDays] [-noFilter]");
       return -1;
     }
 
@@ -523,6 +841,7 @@ public class Generator extends ToolBase {
     long curTime = System.currentTimeMillis();
     long topN = Long.MAX_VALUE;
     int numFetchers = -1;
+    int maxNumSegments = 1;
     boolean filter = true;
     boolean force = false;
 
@@ -533,6 +852,9 @@ public class Generator extends ToolBase {
       } else if ("-numFetchers".equals(args[i])) {
         numFetchers = Integer.parseInt(args[i+1]);
         i++;
+      } else if ("-maxNumSegments".equals(args[i])) {
+        maxNumSegments = Integer.parseInt(args[i+1]);
+        i++;
       } else if ("-adddays".equals(args[i])) {
         long numDays = Integer.parseInt(args[i+1]);
         curTime += numDays * 1000L * 60 * 60 * 24;
@@ -545,8 +867,9 @@ public class Generator extends ToolBase {
     }
 
     try {
-      Path seg = generate(dbDir, segmentsDir, numFetchers, topN, curTime, filter, force);
-      if (seg == null) return -2;
+      Path[] segs = generate(dbDir, segmentsDir, numFetchers, topN, curTime,
+                             filter, force, maxNumSegments);
+      if (segs == null) return -2;
       else return 0;
     } catch (Exception e) {
       LOG.fatal("Generator: " + StringUtils.stringifyException(e));
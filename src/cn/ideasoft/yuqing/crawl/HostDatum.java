@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * What is known about a host, in {@link HostDb}: the number of its urls in
+ * the crawl db by status, and, from the fetchers, how many of its fetches
+ * failed to connect, its average response time, its robots.txt Crawl-Delay
+ * and its address.
+ */
+public class HostDatum implements Writable {
+  private static final byte VERSION = 1;
+
+  private long[] counts = new long[CrawlDatum.STATUS_DB_REDIR_PERM + 1];
+  private float fetches;
+  private float errors;
+  private float responseTime;
+  private long crawlDelay;
+  private String ip = "";
+  private long lastFetch;
+
+  public HostDatum() {}
+
+  /** Urls of the host in the crawl db with a status. */
+  public long getCount(int status) {
+    return status < counts.length ? counts[status] : 0;
+  }
+
+  /** All urls of the host in the crawl db. */
+  public long getCount() {
+    long n = 0;
+    for (int i = 0; i < counts.length; i++) n += counts[i];
+    return n;
+  }
+
+  /** Count a url of the host with a db status. */
+  public void count(int status) {
+    if (status < counts.length) counts[status]++;
+  }
+
+  /**
+   * Take back the count of a url of the host with a db status. Counts of
+   * changes to the crawl db may go below zero.
+   */
+  public void uncount(int status) {
+    if (status < counts.length) counts[status]--;
+  }
+
+  /**
+   * Number of fetches, with older ones weighing less, see
+   * <code>hostdb.history.weight</code>.
+   */
+  public float getFetches() {
+    return fetches;
+  }
+
+  /** Part of the fetches which failed to connect. */
+  public float getErrorRate() {
+    return fetches > 0 ? errors / fetches : 0.0f;
+  }
+
+  /** Average response time, in milliseconds. */
+  public float getResponseTime() {
+    return responseTime;
+  }
+
+  /** Record a fetch, which took some time or didn't connect. */
+  public void fetched(long elapsed, boolean error) {
+    if (error) {
+      errors++;
+    } else {
+      float ok = fetches - errors;
+      responseTime = (responseTime * ok + elapsed) / (ok + 1);
+    }
+    fetches++;
+    lastFetch = System.currentTimeMillis();
+  }
+
+  /** The robots.txt Crawl-Delay, in milliseconds, or 0. */
+  public long getCrawlDelay() {
+    return crawlDelay;
+  }
+
+  public void setCrawlDelay(long crawlDelay) {
+    this.crawlDelay = crawlDelay;
+  }
+
+  /** Address the host was resolved to, or the empty string. */
+  public String getIp() {
+    return ip;
+  }
+
+  public void setIp(String ip) {
+    this.ip = ip == null ? "" : ip;
+  }
+
+  /** Time of the last fetch recorded. */
+  public long getLastFetch() {
+    return lastFetch;
+  }
+
+  /** Forget everything. */
+  public void clear() {
+    for (int i = 0; i < counts.length; i++) counts[i] = 0;
+    fetches = errors = responseTime = 0.0f;
+    crawlDelay = lastFetch = 0L;
+    ip = "";
+  }
+
+  /** Forget the counts of urls. */
+  public void clearCounts() {
+    for (int i = 0; i < counts.length; i++) counts[i] = 0;
+  }
+
+  /** Weigh past fetches less. */
+  public void age(float weight) {
+    fetches *= weight;
+    errors *= weight;
+  }
+
+  /**
+   * Add the counts and fetches of another datum. Crawl-Delay and address
+   * are taken from the datum fetched last.
+   */
+  public void add(HostDatum that) {
+    for (int i = 0; i < counts.length; i++) counts[i] += that.counts[i];
+    float ok = fetches - errors;
+    float thatOk = that.fetches - that.errors;
+    if (ok + thatOk > 0) {
+      responseTime = (responseTime * ok + that.responseTime * thatOk)
+        / (ok + thatOk);
+    }
+    fetches += that.fetches;
+    errors += that.errors;
+    if (that.lastFetch > lastFetch) {
+      lastFetch = that.lastFetch;
+      crawlDelay = that.crawlDelay;
+      ip = that.ip;
+    }
+  }
+
+  public void set(HostDatum that) {
+    System.arraycopy(that.counts, 0, counts, 0, counts.length);
+    fetches = that.fetches;
+    errors = that.errors;
+    responseTime = that.responseTime;
+    crawlDelay = that.crawlDelay;
+    ip = that.ip;
+    lastFetch = that.lastFetch;
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    in.readByte();                                // version
+    int n = WritableUtils.readVInt(in);
+    for (int i = 0; i < n; i++) {
+      long count = WritableUtils.readVLong(in);
+      if (i < counts.length) counts[i] = count;
+    }
+    for (int i = n; i < counts.length; i++) counts[i] = 0;
+    fetches = in.readFloat();
+    errors = in.readFloat();
+    responseTime = in.readFloat();
+    crawlDelay = WritableUtils.readVLong(in);
+    ip = Text.readString(in);
+    lastFetch = in.readLong();
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+    WritableUtils.writeVInt(out, counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      WritableUtils.writeVLong(out, counts[i]);
+    }
+    out.writeFloat(fetches);
+    out.writeFloat(errors);
+    out.writeFloat(responseTime);
+    WritableUtils.writeVLong(out, crawlDelay);
+    Text.writeString(out, ip);
+    out.writeLong(lastFetch);
+  }
+
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("Urls: " + getCount());
+    for (int i = 1; i < counts.length; i++) {
+      if (counts[i] > 0) {
+        buf.append(", " + CrawlDatum.getStatusName((byte)i) + ": " + counts[i]);
+      }
+    }
+    buf.append("\nFetches: " + fetches);
+    buf.append(", error rate: " + getErrorRate());
+    buf.append(", response time: " + responseTime + " ms");
+    buf.append("\nCrawl-Delay: " + crawlDelay + " ms");
+    buf.append(", ip: " + ip);
+    buf.append(", last fetch: " + new java.util.Date(lastFetch));
+    buf.append("\n");
+    return buf.toString();
+  }
+
+}
@@ -0,0 +1,432 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.ToolBase;
+
+import cn.ideasoft.yuqing.util.YuQingConfiguration;
+import cn.ideasoft.yuqing.util.YuQingJob;
+
+/**
+ * A database of hosts, see {@link HostDatum}, keyed by host name. It is
+ * updated from the crawl db, which gives the counts of urls, and from the
+ * <code>crawl_host</code> output of {@link cn.ideasoft.yuqing.fetcher.Fetcher2}
+ * in segments, which gives the fetch statistics. At each update the
+ * statistics recorded so far count <code>hostdb.history.weight</code> times
+ * as much, so that a host which stopped failing gets a chance again.
+ *
+ * <p>The counts of urls come from the {@link Counter} files the crawl db
+ * reduce tasks write next to their output: updatedb merges the changes of
+ * a delta, or the counts of a rewritten crawl db, without reading the crawl
+ * db itself. Only the command line tool and {@link Injector} count the urls
+ * of the whole crawl db.</p>
+ *
+ * <p>When <code>hostdb.path</code> is set, updatedb also updates the host db,
+ * Generator skips dead hosts and limits the urls of slow hosts to what can be
+ * fetched within <code>fetcher.timelimit.mins</code>, and Fetcher2 starts
+ * the queues of known hosts with their Crawl-Delay and response time.</p>
+ */
+public class HostDb extends ToolBase {
+  public static final Log LOG = LogFactory.getLog(HostDb.class);
+
+  public static final String HOSTDB_PATH = "hostdb.path";
+
+  public static final String CURRENT_NAME = "current";
+
+  /** Per-host fetch statistics written by Fetcher2 into a segment. */
+  public static final String SEGMENT_DIR_NAME = "crawl_host";
+
+  /** Per-host url counts written by a crawl db reduce task into its part. */
+  public static final String COUNTS_NAME = "hosts";
+
+  public HostDb() {
+
+  }
+
+  public HostDb(Configuration conf) {
+    setConf(conf);
+  }
+
+  /** The host of a url, as the host db knows it, or null. */
+  public static String getHost(String url) {
+    try {
+      String host = new URL(url).getHost();
+      return host == null || host.length() == 0 ? null : host.toLowerCase();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Update a host db from a whole crawl db, counting its urls, and from
+   * some segments.
+   */
+  public void update(Path hostDb, Path crawlDb, Path[] segments)
+    throws IOException {
+    if (LOG.isInfoEnabled()) {
+      LOG.info("HostDb update: starting");
+      LOG.info("HostDb update: db: " + hostDb);
+      LOG.info("HostDb update: crawldb: " + crawlDb);
+      LOG.info("HostDb update: segments: " + Arrays.asList(segments));
+    }
+    JobConf job = createJob(hostDb, segments);
+    job.addInputPath(new Path(crawlDb, CrawlDb.CURRENT_NAME));
+    job.setInputFormat(CrawlDbInputFormat.class);
+    install(job, hostDb);
+  }
+
+  /**
+   * Update a host db from the {@link Counter} files of a crawl db
+   * directory, <code>current</code> or a delta, and from some segments.
+   * With <code>changes</code> the counts are added to those of the host db,
+   * else they replace them. Without counter files in every part, the urls
+   * of the whole crawl db are counted instead.
+   */
+  public void update(Path hostDb, Path crawlDb, Path counts, boolean changes,
+                     Path[] segments) throws IOException {
+    FileSystem fs = FileSystem.get(getConf());
+    Path[] parts = fs.listPaths(counts, CrawlDb.PARTS);
+    if (parts == null) parts = new Path[0];
+    for (int i = 0; i < parts.length; i++) {
+      if (!fs.exists(new Path(parts[i], COUNTS_NAME))) {
+        LOG.warn("HostDb update: no url counts in " + parts[i]
+                 + ", counting the urls of " + crawlDb);
+        update(hostDb, crawlDb, segments);
+        return;
+      }
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("HostDb update: starting");
+      LOG.info("HostDb update: db: " + hostDb);
+      LOG.info("HostDb update: url " + (changes ? "changes" : "counts")
+               + ": " + counts);
+      LOG.info("HostDb update: segments: " + Arrays.asList(segments));
+    }
+    JobConf job = createJob(hostDb, segments);
+    job.setBoolean("hostdb.update.changes", changes);
+    for (int i = 0; i < parts.length; i++) {
+      job.addInputPath(new Path(parts[i], COUNTS_NAME));
+    }
+    job.setInputFormat(SequenceFileInputFormat.class);
+    install(job, hostDb);
+  }
+
+  private JobConf createJob(Path hostDb, Path[] segments) throws IOException {
+    FileSystem fs = FileSystem.get(getConf());
+    JobConf job = new YuQingJob(getConf());
+    job.setJobName("hostdb " + hostDb);
+    Path current = new Path(hostDb, CURRENT_NAME);
+    if (fs.exists(current)) job.addInputPath(current);
+    for (int i = 0; i < segments.length; i++) {
+      Path hosts = new Path(segments[i], SEGMENT_DIR_NAME);
+      if (fs.exists(hosts)) job.addInputPath(hosts);
+    }
+
+    job.setMapperClass(HostDbMapper.class);
+    job.setCombinerClass(HostDbReducer.class);
+    job.setReducerClass(HostDbReducer.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(HostDatum.class);
+
+    job.setOutputPath(new Path(hostDb,
+        Integer.toString(new Random().nextInt(Integer.MAX_VALUE))));
+    job.setOutputFormat(MapFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(HostDatum.class);
+    return job;
+  }
+
+  private void install(JobConf job, Path hostDb) throws IOException {
+    FileSystem fs = FileSystem.get(job);
+    Path newHostDb = job.getOutputPath();
+    try {
+      JobClient.runJob(job);
+    } catch (IOException e) {
+      if (fs.exists(newHostDb)) fs.delete(newHostDb);
+      throw e;
+    }
+
+    Path current = new Path(hostDb, CURRENT_NAME);
+    Path old = new Path(hostDb, "old");
+    if (fs.exists(current)) {
+      if (fs.exists(old)) fs.delete(old);
+      fs.rename(current, old);
+    }
+    fs.rename(newHostDb, current);
+    if (fs.exists(old)) fs.delete(old);
+    if (LOG.isInfoEnabled()) { LOG.info("HostDb update: done"); }
+  }
+
+  /**
+   * Counts the urls of the crawl db by host and status, and passes on the
+   * url counts of {@link Counter} files, the fetch statistics of the
+   * segments, and those of the host db, aged. Unless the url counts are
+   * changes, the host db's own are dropped.
+   */
+  public static class HostDbMapper implements Mapper {
+    private HostDatum count = new HostDatum();
+    private Text host = new Text();
+    private float weight;
+    private boolean changes;
+    private boolean aging;
+
+    public void configure(JobConf job) {
+      weight = job.getFloat("hostdb.history.weight", 0.5f);
+      changes = job.getBoolean("hostdb.update.changes", false);
+      // the output of Fetcher2 and the url counts are new, the host db is old
+      String file = job.get("map.input.file", "");
+      aging = file.indexOf("/" + SEGMENT_DIR_NAME + "/") < 0
+        && !file.endsWith("/" + COUNTS_NAME);
+    }
+
+    public void close() {}
+
+    public void map(WritableComparable key, Writable value,
+                    OutputCollector output, Reporter reporter)
+      throws IOException {
+      if (value instanceof HostDatum) {
+        HostDatum datum = (HostDatum)value;
+        if (aging) {
+          datum.age(weight);
+          if (!changes) datum.clearCounts();
+        }
+        output.collect(key, datum);
+        return;
+      }
+      String name = getHost(key.toString());
+      if (name == null) return;
+      host.set(name);
+      count.clear();
+      count.count(((CrawlDatum)value).getStatus());
+      output.collect(host, count);
+    }
+  }
+
+  /** Adds up what is known about a host. */
+  public static class HostDbReducer implements Reducer {
+    private HostDatum result = new HostDatum();
+
+    public void configure(JobConf job) {}
+
+    public void close() {}
+
+    public void reduce(WritableComparable key, Iterator values,
+                       OutputCollector output, Reporter reporter)
+      throws IOException {
+      result.set((HostDatum)values.next());
+      while (values.hasNext()) {
+        result.add((HostDatum)values.next());
+      }
+      output.collect(key, result);
+    }
+  }
+
+  /**
+   * Counts the urls a crawl db reduce task writes, by host and status, into
+   * a {@link #COUNTS_NAME} file next to its output. Taking back the urls a
+   * delta replaces makes them changes to the counts of the host db. The
+   * urls of a host are reduced in a row, so only one host is counted at a
+   * time.
+   */
+  static class Counter {
+    private JobConf job;
+    private SequenceFile.Writer writer;
+    private String name;
+    private Text host = new Text();
+    private HostDatum count = new HostDatum();
+
+    Counter(JobConf job) {
+      this.job = job;
+    }
+
+    /** Count a url written with its entry. */
+    public void add(Text url, CrawlDatum datum) throws IOException {
+      if (countHost(url)) count.count(datum.getStatus());
+    }
+
+    /** Take back the count of an entry replaced by the one written. */
+    public void remove(Text url, CrawlDatum datum) throws IOException {
+      if (countHost(url)) count.uncount(datum.getStatus());
+    }
+
+    private boolean countHost(Text url) throws IOException {
+      String name = getHost(url.toString());
+      if (name == null) return false;
+      if (!name.equals(this.name)) {
+        flush();
+        this.name = name;
+      }
+      return true;
+    }
+
+    private void flush() throws IOException {
+      if (writer == null) {
+        Path path = new Path(CrawlDb.getTaskPart(job), COUNTS_NAME);
+        writer = SequenceFile.createWriter(FileSystem.get(job), job, path,
+                                           Text.class, HostDatum.class);
+      }
+      if (name == null) return;
+      host.set(name);
+      writer.append(host, count);
+      count.clear();
+    }
+
+    /** Write the last host. The file is written even if no url was. */
+    public void close() throws IOException {
+      flush();
+      writer.close();
+    }
+  }
+
+  /**
+   * Looks up hosts in a host db, remembering the answers. Safe for use by
+   * several threads.
+   */
+  public static class Reader {
+    private MapFile.Reader[] readers;
+    private HashPartitioner partitioner = new HashPartitioner();
+    private Map<String, HostDatum> cache = new HashMap<String, HostDatum>();
+
+    public Reader(Configuration conf, Path hostDb) throws IOException {
+      Path current = new Path(hostDb, CURRENT_NAME);
+      FileSystem fs = FileSystem.get(conf);
+      if (fs.exists(current)) {
+        readers = MapFileOutputFormat.getReaders(fs, current, conf);
+      }
+    }
+
+    /** What is known about a host, or null. */
+    public synchronized HostDatum get(String host) throws IOException {
+      if (cache.containsKey(host)) return cache.get(host);
+      HostDatum datum = null;
+      if (readers != null) {
+        datum = new HostDatum();
+        if (MapFileOutputFormat.getEntry(readers, partitioner, new Text(host),
+                                         datum) == null) {
+          datum = null;
+        }
+      }
+      cache.put(host, datum);
+      return datum;
+    }
+
+    public synchronized void close() {
+      if (readers == null) return;
+      for (int i = 0; i < readers.length; i++) {
+        try {
+          readers[i].close();
+        } catch (IOException e) {
+          LOG.warn("Error closing host db reader: " + e);
+        }
+      }
+      readers = null;
+    }
+  }
+
+  /** Read a whole host db, host by host. */
+  public static MapFile.Reader[] getReaders(Configuration conf, Path hostDb)
+    throws IOException {
+    Path current = new Path(hostDb, CURRENT_NAME);
+    FileSystem fs = FileSystem.get(conf);
+    if (!fs.exists(current)) return new MapFile.Reader[0];
+    return MapFileOutputFormat.getReaders(fs, current, conf);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = new HostDb().doMain(YuQingConfiguration.create(), args);
+    System.exit(res);
+  }
+
+  public int run(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: HostDb <hostdb> (<crawldb> (-dir <segments> | <seg1> <seg2> ...) | -get <host>)");
+      System.err.println("\thostdb\tHostDb to update");
+      System.err.println("\tcrawldb\tCrawlDb to count the urls of");
+      System.err.println("\t-dir segments\tparent directory containing all segments to update from");
+      System.err.println("\tseg1 seg2 ...\tlist of segment names to update from");
+      System.err.println("\t-get host\tprint what is known about a host");
+      return -1;
+    }
+    final FileSystem fs = FileSystem.get(getConf());
+    Path hostDb = new Path(args[0]);
+    try {
+      if (args[1].equals("-get")) {
+        Reader reader = new Reader(getConf(), hostDb);
+        HostDatum datum = reader.get(args[2].toLowerCase());
+        reader.close();
+        System.out.println(datum == null ? "not found" : datum.toString());
+        return 0;
+      }
+      HashSet<Path> dirs = new HashSet<Path>();
+      for (int i = 2; i < args.length; i++) {
+        if (args[i].equals("-dir")) {
+          Path[] paths = fs.listPaths(new Path(args[++i]), new PathFilter() {
+            public boolean accept(Path dir) {
+              try {
+                return fs.isDirectory(dir);
+              } catch (IOException ioe) {
+                return false;
+              }
+            }
+          });
+          dirs.addAll(Arrays.asList(paths));
+        } else {
+          dirs.add(new Path(args[i]));
+        }
+      }
+      update(hostDb, new Path(args[1]), dirs.toArray(new Path[dirs.size()]));
+      return 0;
+    } catch (Exception e) {
+      LOG.fatal("HostDb: " + StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+
+}
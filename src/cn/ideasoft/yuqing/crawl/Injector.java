@@ -46,7 +46,7 @@ public class Injector extends ToolBase {
   /** Normalize and filter injected urls. */
   public static class InjectMapper implements Mapper {
     private URLNormalizers urlNormalizers;
-    private float interval;
+    private FetchSchedule schedule;
     private float scoreInjected;
     private JobConf jobConf;
     private URLFilters filters;
@@ -56,7 +56,7 @@ public class Injector extends ToolBase {
     public void configure(JobConf job) {
       this.jobConf = job;
       urlNormalizers = new URLNormalizers(job, URLNormalizers.SCOPE_INJECT);
-      interval = jobConf.getFloat("db.default.fetch.interval", 30f);
+      schedule = FetchScheduleFactory.getFetchSchedule(jobConf);
       filters = new URLFilters(jobConf);
       scfilters = new ScoringFilters(jobConf);
       scoreInjected = jobConf.getFloat("db.score.injected", 1.0f);
@@ -80,7 +80,9 @@ public class Injector extends ToolBase {
       }
       if (url != null) {                          // if it passes
         value.set(url);                           // collect it
-        CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_INJECTED, interval);
+        CrawlDatum datum = new CrawlDatum();
+        datum.setStatus(CrawlDatum.STATUS_INJECTED);
+        schedule.initializeSchedule(value, datum);
         datum.setFetchTime(curTime);
         datum.setScore(scoreInjected);
         try {
@@ -99,8 +101,16 @@ public class Injector extends ToolBase {
 
   /** Combine multiple new entries for a url. */
   public static class InjectReducer implements Reducer {
-    public void configure(JobConf job) {}    
-    public void close() {}
+    private JobConf job;
+    private CrawlDbStats stats = new CrawlDbStats();
+
+    public void configure(JobConf job) {
+      this.job = job;
+    }
+
+    public void close() throws IOException {
+      CrawlDbStats.write(job, stats);
+    }
 
     public void reduce(WritableComparable key, Iterator values,
                        OutputCollector output, Reporter reporter)
@@ -120,6 +130,7 @@ public class Injector extends ToolBase {
       if (old != null) res = old; // don't overwrite existing value
       else res = injected;
 
+      stats.add(res);
       output.collect(key, res);
     }
   }
@@ -174,6 +185,12 @@ public class Injector extends ToolBase {
     // clean up
     FileSystem fs = new JobClient(getConf()).getFs();
     fs.delete(tempDir);
+
+    // the crawl db was rewritten without url counts, count them all
+    String hostDb = getConf().get(HostDb.HOSTDB_PATH, "");
+    if (hostDb.length() > 0) {
+      new HostDb(getConf()).update(new Path(hostDb), crawlDb, new Path[0]);
+    }
     if (LOG.isInfoEnabled()) { LOG.info("Injector: done"); }
 
   }
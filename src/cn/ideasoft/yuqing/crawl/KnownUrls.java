@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import cn.ideasoft.yuqing.util.BloomFilter;
+
+/**
+ * The urls of a crawl db, as Bloom filters. When
+ * <code>db.known.urls.filter</code> is set, {@link CrawlDbReducer} writes a
+ * filter of the urls of each part it writes into the part's directory, both
+ * in current and in deltas. Urls are looked up in the filters of their
+ * part only, since all of them are partitioned by the hash of the url.
+ */
+public class KnownUrls {
+  public static final Log LOG = LogFactory.getLog(KnownUrls.class);
+
+  public static final String FILTER_NAME = "known";
+
+  public static final String KNOWN_URLS_FILTER = "db.known.urls.filter";
+
+  public static final String KNOWN_URLS_FPP = "db.known.urls.fpp";
+
+  /** Filters of current and of the deltas, by part. */
+  private BloomFilter[][] filters;
+  private int numParts;
+
+  /** Load the filters of a crawl db. */
+  public KnownUrls(Configuration conf, Path crawlDb) throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    List<Path> dirs = new ArrayList<Path>();
+    dirs.add(new Path(crawlDb, CrawlDb.CURRENT_NAME));
+    dirs.addAll(Arrays.asList(CrawlDb.getDeltas(fs, crawlDb)));
+    numParts = getParts(fs, dirs.get(0)).length;
+    filters = new BloomFilter[dirs.size()][];
+    long size = 0;
+    for (int i = 0; i < filters.length; i++) {
+      Path[] parts = getParts(fs, dirs.get(i));
+      filters[i] = new BloomFilter[numParts];
+      for (int j = 0; j < parts.length && j < numParts; j++) {
+        Path path = new Path(parts[j], FILTER_NAME);
+        if (!fs.exists(path)) continue;
+        FSDataInputStream in = fs.open(path);
+        try {
+          filters[i][j] = new BloomFilter();
+          filters[i][j].readFields(in);
+          size += filters[i][j].getSize();
+        } finally {
+          in.close();
+        }
+      }
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Known urls of " + crawlDb + ": " + size / 1024 + " KB");
+    }
+  }
+
+  private static Path[] getParts(FileSystem fs, Path dir) throws IOException {
+    Path[] paths = fs.listPaths(dir);
+    if (paths == null) return new Path[0];
+    List<Path> parts = new ArrayList<Path>();
+    for (int i = 0; i < paths.length; i++) {
+      if (paths[i].getName().startsWith("part-")) parts.add(paths[i]);
+    }
+    Path[] result = parts.toArray(new Path[parts.size()]);
+    Arrays.sort(result);
+    return result;
+  }
+
+  /** Whether the url may be in the crawl db. */
+  public boolean contains(Text url) {
+    if (numParts == 0) return false;
+    // the part, as chosen by HashPartitioner
+    int part = (url.hashCode() & Integer.MAX_VALUE) % numParts;
+    long hash = BloomFilter.hash(url);
+    for (int i = 0; i < filters.length; i++) {
+      if (filters[i][part] != null && filters[i][part].contains(hash)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Collects the urls written by a crawl db reduce task and, on close, writes
+   * their filter next to its output. The hashes go to a local file as they
+   * come, so the filter is sized from the exact count without holding a
+   * hash per url in memory.
+   */
+  static class Writer {
+    private JobConf job;
+    private FileSystem localFs;
+    private Path local;
+    private FSDataOutputStream hashes;
+    private int count;
+
+    Writer(JobConf job) {
+      this.job = job;
+    }
+
+    public void add(Text url) throws IOException {
+      if (hashes == null) {
+        localFs = FileSystem.getLocal(job);
+        local = job.getLocalPath("known/" + CrawlDb.getTaskPart(job).getName());
+        hashes = localFs.create(local);
+      }
+      hashes.writeLong(BloomFilter.hash(url));
+      count++;
+    }
+
+    public void close() throws IOException {
+      BloomFilter filter =
+        new BloomFilter(count, job.getFloat(KNOWN_URLS_FPP, 0.01f));
+      if (hashes != null) {
+        hashes.close();
+        FSDataInputStream in = localFs.open(local);
+        try {
+          for (int i = 0; i < count; i++) {
+            filter.add(in.readLong());
+          }
+        } finally {
+          in.close();
+        }
+        localFs.delete(local);
+      }
+      Path path = new Path(CrawlDb.getTaskPart(job), FILTER_NAME);
+      FSDataOutputStream out = FileSystem.get(job).create(path);
+      try {
+        filter.write(out);
+      } finally {
+        out.close();
+      }
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Known urls: " + count + " urls, " + filter.getSize() / 1024
+                 + " KB, in " + path);
+      }
+    }
+  }
+
+}
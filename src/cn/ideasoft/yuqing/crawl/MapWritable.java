@@ -20,20 +20,20 @@ package cn.ideasoft.yuqing.crawl;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.DataInputBuffer;
-import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
@@ -42,7 +42,6 @@ import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
-import org.apache.hadoop.util.StringUtils;
 import cn.ideasoft.yuqing.protocol.ProtocolStatus;
 
 /**
@@ -55,30 +54,55 @@ import cn.ideasoft.yuqing.protocol.ProtocolStatus;
  * For these custom Writables we write the byte id - utf class name tuple
  * into the header of each MapWritable that uses these types.
  *
+ * <p>Entries are kept in arrays, in insertion order, and found through an
+ * open-addressing hash table. Keys and values read by
+ * {@link #readFields(DataInput)} are reused by the next call, like Hadoop
+ * reuses the records it reads. The copy constructor shares the entries of
+ * the copied map until either is changed through its methods, so values
+ * should be replaced with {@link #put(Writable, Writable)}, not modified in
+ * place.</p>
+ *
  * @author Stefan Groschupf
  */
 public class MapWritable implements Writable {
 
   public static final Log LOG = LogFactory.getLog(MapWritable.class);
 
-  private KeyValueEntry fFirst;
+  private static final Writable[] NO_ENTRIES = new Writable[0];
+
+  /** Most instances kept for reuse. */
+  private static final int MAX_SPARE = 64;
+
+  private Writable[] fKeys = NO_ENTRIES;
+
+  private Writable[] fValues = NO_ENTRIES;
 
-  private KeyValueEntry fLast;
+  /** Whether an entry was created by readFields, so it may be reused. */
+  private boolean[] fRead = new boolean[0];
 
-  private KeyValueEntry fOld;
+  /** Index + 1 of the entries, by hash of the key; 0 if empty. */
+  private int[] fTable = new int[0];
 
   private int fSize = 0;
 
-  private int fIdCount = 0;
+  /** The arrays are shared with a copy, and have to be copied on change. */
+  private boolean fArraysShared = false;
 
-  private ClassIdEntry fIdLast;
+  /** The keys and values are shared with a copy, and must not be reused. */
+  private boolean fEntriesShared = false;
 
-  private ClassIdEntry fIdFirst;
+  private Writable[] fSpare = NO_ENTRIES;
+
+  private int fSpareCount = 0;
 
   private static HashMap CLASS_ID_MAP = new HashMap();
 
   private static HashMap ID_CLASS_MAP = new HashMap();
 
+  /** Classes of custom Writables, by name, so they are loaded only once. */
+  private static Map<String, Class> CLASS_DICTIONARY =
+    new ConcurrentHashMap<String, Class>();
+
   static {
 
     addToMap(NullWritable.class, new Byte((byte) -127));
@@ -103,136 +127,161 @@ public class MapWritable implements Writable {
     CLASS_ID_MAP.put(clazz, byteId);
     ID_CLASS_MAP.put(byteId, clazz);
   }
+
+  /** The id of a class known to all maps, or -128 if it has none. */
+  static byte getKnownClassId(Class clazz) {
+    Byte classId = (Byte) CLASS_ID_MAP.get(clazz);
+    return classId == null ? -128 : classId.byteValue();
+  }
+
+  /** The class known to all maps by an id, or null. */
+  static Class getKnownClass(byte id) {
+    return (Class) ID_CLASS_MAP.get(new Byte(id));
+  }
+
+  /** Load a class by name, once per JVM. */
+  static Class getClassByName(String name) throws ClassNotFoundException {
+    Class clazz = CLASS_DICTIONARY.get(name);
+    if (clazz == null) {
+      clazz = Class.forName(name);
+      CLASS_DICTIONARY.put(name, clazz);
+    }
+    return clazz;
+  }
   
   public MapWritable() { }
   
   /**
-   * Copy constructor. This constructor makes a deep copy, using serialization /
-   * deserialization to break any possible references to contained objects.
+   * Copy constructor. The copy shares the entries of <code>map</code> until
+   * either map is changed, and then copies them.
    * 
    * @param map map to copy from
    */
   public MapWritable(MapWritable map) {
-    if (map != null) {
-      try {
-        DataOutputBuffer dob = new DataOutputBuffer();
-        map.write(dob);
-        DataInputBuffer dib = new DataInputBuffer();
-        dib.reset(dob.getData(), dob.getLength());
-        readFields(dib);
-      } catch (IOException e) {
-        throw new IllegalArgumentException("this map cannot be copied: " +
-                StringUtils.stringifyException(e));
-      }
+    if (map != null && map.fSize > 0) {
+      fKeys = map.fKeys;
+      fValues = map.fValues;
+      fRead = map.fRead;
+      fTable = map.fTable;
+      fSize = map.fSize;
+      fArraysShared = fEntriesShared = true;
+      map.fArraysShared = map.fEntriesShared = true;
     }
   }
 
   public void clear() {
-    fOld = fFirst;
-    fFirst = fLast = null;
+    if (fArraysShared) {
+      fKeys = fValues = NO_ENTRIES;
+      fRead = new boolean[0];
+      fTable = new int[0];
+    } else {
+      for (int i = 0; i < fSize; i++) {
+        if (fRead[i] && !fEntriesShared) {
+          addSpare(fKeys[i]);
+          addSpare(fValues[i]);
+        }
+        fKeys[i] = fValues[i] = null;
+      }
+      Arrays.fill(fTable, 0);
+    }
     fSize = 0;
+    fArraysShared = fEntriesShared = false;
   }
 
   public boolean containsKey(Writable key) {
-    return findEntryByKey(key) != null;
+    return indexOf(key) >= 0;
   }
 
   public boolean containsValue(Writable value) {
-    KeyValueEntry entry = fFirst;
-    while (entry != null) {
-      if (entry.fValue.equals(value)) {
+    for (int i = 0; i < fSize; i++) {
+      if (fValues[i].equals(value)) {
         return true;
       }
-      entry = entry.fNextEntry;
     }
     return false;
   }
 
   public Writable get(Writable key) {
-    KeyValueEntry entry = findEntryByKey(key);
-    if (entry != null) {
-      return entry.fValue;
-    }
-    return null;
+    int i = indexOf(key);
+    return i >= 0 ? fValues[i] : null;
   }
 
   public int hashCode() {
     final int seed = 23;
     int hash = 0;
-    KeyValueEntry entry = fFirst;
-    while (entry != null) {
-      hash += entry.fKey.hashCode() * seed;
-      hash += entry.fValue.hashCode() * seed;
-      entry = entry.fNextEntry;
+    for (int i = 0; i < fSize; i++) {
+      hash += fKeys[i].hashCode() * seed;
+      hash += fValues[i].hashCode() * seed;
     }
     return hash;
 
   }
 
   public boolean isEmpty() {
-    return fFirst == null;
+    return fSize == 0;
   }
 
   public Set keySet() {
     HashSet set = new HashSet();
-    set.add(fFirst.fKey);
-    KeyValueEntry entry = fFirst;
-    while ((entry = entry.fNextEntry) != null) {
-      set.add(entry.fKey);
+    for (int i = 0; i < fSize; i++) {
+      set.add(fKeys[i]);
     }
     return set;
   }
 
   public Writable put(Writable key, Writable value) {
-    KeyValueEntry entry = findEntryByKey(key);
-    if (entry != null) {
-      Writable oldValue = entry.fValue;
-      entry.fValue = value;
+    return put(key, value, false);
+  }
+
+  /** Put an entry read by the caller from instances of {@link #reuse(Class)}. */
+  Writable putReusable(Writable key, Writable value) {
+    return put(key, value, true);
+  }
+
+  private Writable put(Writable key, Writable value, boolean read) {
+    int i = indexOf(key);
+    unshareArrays();
+    if (i >= 0) {
+      Writable oldValue = fValues[i];
+      fValues[i] = value;
+      fRead[i] = false;
       return oldValue;
     }
-    KeyValueEntry newEntry = new KeyValueEntry(key, value);
-    fSize++;
-    if (fLast != null) {
-      fLast = fLast.fNextEntry = newEntry;
-      return null;
+    if (fSize == fKeys.length) {
+      grow(Math.max(4, fSize * 2));
     }
-    fLast = fFirst = newEntry;
+    fKeys[fSize] = key;
+    fValues[fSize] = value;
+    fRead[fSize] = read;
+    fSize++;
+    insert(fSize - 1);
     return null;
-
   }
 
   public void putAll(MapWritable map) {
     if (map == null || map.size() == 0) {
       return;
     }
-    Iterator iterator = map.keySet().iterator();
-    while (iterator.hasNext()) {
-      Writable key = (Writable) iterator.next();
-      Writable value = map.get(key);
-      put(key, value);
+    for (int i = 0; i < map.fSize; i++) {
+      put(map.fKeys[i], map.fValues[i]);
     }
   }
 
   public Writable remove(Writable key) {
-    Writable oldValue = null;
-    KeyValueEntry entry = fFirst;
-    KeyValueEntry predecessor = null;
-    while (entry != null) {
-      if (entry.fKey.equals(key)) {
-        oldValue = entry.fValue;
-        if (predecessor == null) {
-          fFirst = fFirst.fNextEntry;
-        } else {
-          predecessor.fNextEntry = entry.fNextEntry;
-        }
-        if (fLast.equals(entry)) {
-          fLast = predecessor;
-        }
-        fSize--;
-        return oldValue;
-      }
-      predecessor = entry;
-      entry = entry.fNextEntry;
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    unshareArrays();
+    Writable oldValue = fValues[i];
+    fSize--;
+    fKeys[i] = fKeys[fSize];
+    fValues[i] = fValues[fSize];
+    fRead[i] = fRead[fSize];
+    fKeys[fSize] = fValues[fSize] = null;
+    Arrays.fill(fTable, 0);
+    for (int j = 0; j < fSize; j++) {
+      insert(j);
     }
     return oldValue;
   }
@@ -242,56 +291,137 @@ public class MapWritable implements Writable {
   }
 
   public Collection values() {
-    LinkedList list = new LinkedList();
-    KeyValueEntry entry = fFirst;
-    while (entry != null) {
-      list.add(entry.fValue);
-      entry = entry.fNextEntry;
+    ArrayList list = new ArrayList(fSize);
+    for (int i = 0; i < fSize; i++) {
+      list.add(fValues[i]);
     }
     return list;
   }
 
+  /** The key of the i-th entry, in insertion order. */
+  Writable keyAt(int i) {
+    return fKeys[i];
+  }
+
+  /** The value of the i-th entry, in insertion order. */
+  Writable valueAt(int i) {
+    return fValues[i];
+  }
+
   public boolean equals(Object obj) {
     if (obj instanceof MapWritable) {
       MapWritable map = (MapWritable) obj;
       if (fSize != map.fSize) return false;
-      HashSet set1 = new HashSet();
-      KeyValueEntry e1 = fFirst;
-      while (e1 != null) {
-        set1.add(e1);
-        e1 = e1.fNextEntry;
-      }
-      HashSet set2 = new HashSet();
-      KeyValueEntry e2 = map.fFirst;
-      while (e2 != null) {
-        set2.add(e2);
-        e2 = e2.fNextEntry;
+      for (int i = 0; i < fSize; i++) {
+        Writable value = map.get(fKeys[i]);
+        if (value == null || !value.equals(fValues[i])) return false;
       }
-      return set1.equals(set2);
+      return true;
     }
     return false;
   }
 
   public String toString() {
-    if (fFirst != null) {
+    if (fSize > 0) {
       StringBuffer buffer = new StringBuffer();
-      KeyValueEntry entry = fFirst;
-      while (entry != null) {
-        buffer.append(entry.toString());
+      for (int i = 0; i < fSize; i++) {
+        buffer.append(fKeys[i].toString() + ":" + fValues[i].toString());
         buffer.append(" ");
-        entry = entry.fNextEntry;
       }
       return buffer.toString();
     }
     return null;
   }
 
-  private KeyValueEntry findEntryByKey(final Writable key) {
-    KeyValueEntry entry = fFirst;
-    while (entry != null && !entry.fKey.equals(key)) {
-      entry = entry.fNextEntry;
+  private static int hash(Writable key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private int indexOf(final Writable key) {
+    if (fSize == 0) {
+      return -1;
+    }
+    int mask = fTable.length - 1;
+    for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+      int i = fTable[slot];
+      if (i == 0) {
+        return -1;
+      }
+      if (fKeys[i - 1].equals(key)) {
+        return i - 1;
+      }
+    }
+  }
+
+  /** Add the i-th entry to the hash table. */
+  private void insert(int i) {
+    int mask = fTable.length - 1;
+    int slot = hash(fKeys[i]) & mask;
+    while (fTable[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    fTable[slot] = i + 1;
+  }
+
+  /** Make room for <code>capacity</code> entries. */
+  private void grow(int capacity) {
+    Writable[] keys = new Writable[capacity];
+    Writable[] values = new Writable[capacity];
+    boolean[] read = new boolean[capacity];
+    System.arraycopy(fKeys, 0, keys, 0, fSize);
+    System.arraycopy(fValues, 0, values, 0, fSize);
+    System.arraycopy(fRead, 0, read, 0, fSize);
+    fKeys = keys;
+    fValues = values;
+    fRead = read;
+    // at most half full
+    int tableSize = 1;
+    while (tableSize < capacity * 2) tableSize <<= 1;
+    fTable = new int[tableSize];
+    for (int i = 0; i < fSize; i++) {
+      insert(i);
+    }
+  }
+
+  private void unshareArrays() {
+    if (fArraysShared) {
+      fArraysShared = false;
+      fKeys = (Writable[]) fKeys.clone();
+      fValues = (Writable[]) fValues.clone();
+      fRead = (boolean[]) fRead.clone();
+      fTable = (int[]) fTable.clone();
+    }
+  }
+
+  private void addSpare(Writable instance) {
+    if (fSpareCount == MAX_SPARE) return;
+    if (fSpareCount == fSpare.length) {
+      Writable[] spare = new Writable[Math.max(4, fSpareCount * 2)];
+      System.arraycopy(fSpare, 0, spare, 0, fSpareCount);
+      fSpare = spare;
+    }
+    fSpare[fSpareCount++] = instance;
+  }
+
+  /**
+   * An instance of a class to read an entry into: one this map read before,
+   * or a new one.
+   */
+  Writable reuse(Class clazz) throws IOException {
+    for (int i = 0; i < fSpareCount; i++) {
+      if (fSpare[i].getClass() == clazz) {
+        Writable instance = fSpare[i];
+        fSpare[i] = fSpare[--fSpareCount];
+        fSpare[fSpareCount] = null;
+        return instance;
+      }
+    }
+    try {
+      return (Writable) clazz.newInstance();
+    } catch (Exception e) {
+      throw new IOException("unable to instantiate class: " + e.toString());
     }
-    return entry;
   }
 
   // serialization methods
@@ -301,27 +431,34 @@ public class MapWritable implements Writable {
 
     if (size() > 0) {
       // scan for unknown classes;
-      createInternalIdClassEntries();
-      // write internal map
-      out.writeByte(fIdCount);
-      if (fIdCount > 0) {
-        ClassIdEntry entry = fIdFirst;
-        while (entry != null) {
-          out.writeByte(entry.fId);
-          Text.writeString(out, entry.fclazz.getName());
-          entry = entry.fNextIdEntry;
+      Class[] custom = new Class[0];
+      int customCount = 0;
+      for (int i = 0; i < fSize * 2; i++) {
+        Class clazz = (i % 2 == 0 ? fKeys[i / 2] : fValues[i / 2]).getClass();
+        if (getKnownClassId(clazz) != -128
+            || getCustomClassId(clazz, custom, customCount) != -128) {
+          continue;
+        }
+        if (customCount == custom.length) {
+          Class[] grown = new Class[customCount + 4];
+          System.arraycopy(custom, 0, grown, 0, customCount);
+          custom = grown;
         }
+        custom[customCount++] = clazz;
+      }
+      // write internal map
+      out.writeByte(customCount);
+      for (int i = 0; i < customCount; i++) {
+        out.writeByte(getCustomClassId(custom[i], custom, customCount));
+        Text.writeString(out, custom[i].getName());
       }
       // write meta data
-      KeyValueEntry entry = fFirst;
-      while (entry != null) {
-        out.writeByte(entry.fKeyClassId);
-        out.writeByte(entry.fValueClassId);
-
-        entry.fKey.write(out);
-        entry.fValue.write(out);
+      for (int i = 0; i < fSize; i++) {
+        out.writeByte(getClassId(fKeys[i].getClass(), custom, customCount));
+        out.writeByte(getClassId(fValues[i].getClass(), custom, customCount));
 
-        entry = entry.fNextEntry;
+        fKeys[i].write(out);
+        fValues[i].write(out);
       }
 
     }
@@ -330,185 +467,72 @@ public class MapWritable implements Writable {
 
   public void readFields(DataInput in) throws IOException {
     clear();
-    fSize = in.readInt();
-    if (fSize > 0) {
+    int size = in.readInt();
+    if (size > 0) {
       // read class-id map
-      fIdCount = in.readByte();
-      byte id;
-      Class clazz;
-      for (int i = 0; i < fIdCount; i++) {
+      int idCount = in.readByte();
+      byte[] ids = new byte[Math.max(0, idCount)];
+      Class[] classes = new Class[ids.length];
+      int classCount = 0;
+      for (int i = 0; i < idCount; i++) {
         try {
-          id = in.readByte();
-          clazz = Class.forName(Text.readString(in));
-          addIdEntry(id, clazz);
+          ids[classCount] = in.readByte();
+          classes[classCount] = getClassByName(Text.readString(in));
+          classCount++;
         } catch (Exception e) {
           if (LOG.isWarnEnabled()) { 
             LOG.warn("Unable to load internal map entry" + e.toString());
           }
-          fIdCount--;
         }
       }
-      KeyValueEntry entry;
-      for (int i = 0; i < fSize; i++) {
+      if (fKeys.length < size) {
+        grow(size);
+      }
+      for (int i = 0; i < size; i++) {
         try {
-          entry = getKeyValueEntry(in.readByte(), in.readByte());
-          entry.fKey.readFields(in);
-          entry.fValue.readFields(in);
-          if (fFirst == null) {
-            fFirst = fLast = entry;
-          } else {
-            fLast = fLast.fNextEntry = entry;
-          }
+          Writable key = reuse(getClass(in.readByte(), ids, classes, classCount));
+          Writable value = reuse(getClass(in.readByte(), ids, classes, classCount));
+          key.readFields(in);
+          value.readFields(in);
+          putReusable(key, value);
         } catch (IOException e) {
           if (LOG.isWarnEnabled()) {
             LOG.warn("Unable to load meta data entry, ignoring.. : "  +
                      e.toString());
           }
-          fSize--;
         }
       }
     }
   }
 
-  private void createInternalIdClassEntries() {
-    KeyValueEntry entry = fFirst;
-    byte id;
-    while (entry != null) {
-      id = getClassId(entry.fKey.getClass());
-      if (id == -128) {
-        id = addIdEntry((byte) (-128 + CLASS_ID_MAP.size() + ++fIdCount),
-            entry.fKey.getClass());
-      }
-      entry.fKeyClassId = id;
-      id = getClassId(entry.fValue.getClass());
-      if (id == -128) {
-        id = addIdEntry((byte) (-128 + CLASS_ID_MAP.size() + ++fIdCount),
-            entry.fValue.getClass());
-      }
-      entry.fValueClassId = id;
-      entry = entry.fNextEntry;
-    }
-  }
-
-  private byte addIdEntry(byte id, Class clazz) {
-    if (fIdFirst == null) {
-      fIdFirst = fIdLast = new ClassIdEntry(id, clazz);
-    } else {
-      fIdLast.fNextIdEntry = fIdLast = new ClassIdEntry(id, clazz);
-    }
-    return id;
-  }
-
-  private byte getClassId(Class clazz) {
-    Byte classId = (Byte) CLASS_ID_MAP.get(clazz);
-    if (classId != null) {
-      return classId.byteValue();
-    }
-    ClassIdEntry entry = fIdFirst;
-    while (entry != null) {
-      if (entry.fclazz.equals(clazz)) {
-        return entry.fId;
+  /** Ids of custom classes follow those of the known ones. */
+  private static byte getCustomClassId(Class clazz, Class[] custom,
+                                       int customCount) {
+    for (int i = 0; i < customCount; i++) {
+      if (custom[i] == clazz) {
+        return (byte) (-128 + CLASS_ID_MAP.size() + i + 1);
       }
-      entry = entry.fNextIdEntry;
     }
     return -128;
   }
 
-  private KeyValueEntry getKeyValueEntry(final byte keyId, final byte valueId)
-      throws IOException {
-    KeyValueEntry entry = fOld;
-    KeyValueEntry last = null;
-    byte entryKeyId;
-    byte entryValueId;
-    while (entry != null) {
-      entryKeyId = getClassId(entry.fKey.getClass());
-      entryValueId = getClassId(entry.fValue.getClass());
-      if (entryKeyId == keyId && entryValueId == valueId) {
-        if (last != null) {
-          last.fNextEntry = entry.fNextEntry;
-        } else {
-          fOld = entry.fNextEntry;
-        }
-        entry.fNextEntry = null; // reset next entry
-        return entry;
-      }
-      last = entry;
-      entry = entry.fNextEntry;
-    }
-    Class keyClass = getClass(keyId);
-    Class valueClass = getClass(valueId);
-    try {
-      return new KeyValueEntry((Writable) keyClass.newInstance(),
-          (Writable) valueClass.newInstance());
-    } catch (Exception e) {
-      throw new IOException("unable to instantiate class: " + e.toString());
-    }
-
+  private static byte getClassId(Class clazz, Class[] custom, int customCount) {
+    byte id = getKnownClassId(clazz);
+    return id != -128 ? id : getCustomClassId(clazz, custom, customCount);
   }
 
-  private Class getClass(final byte id) throws IOException {
-    Class clazz = (Class) ID_CLASS_MAP.get(new Byte(id));
-    if (clazz == null) {
-      ClassIdEntry entry = fIdFirst;
-      while (entry != null) {
-        if (entry.fId == id) {
-          return entry.fclazz;
-        }
-
-        entry = entry.fNextIdEntry;
-      }
-    } else {
+  private static Class getClass(final byte id, byte[] ids, Class[] classes,
+                                int classCount) throws IOException {
+    Class clazz = getKnownClass(id);
+    if (clazz != null) {
       return clazz;
     }
-    throw new IOException("unable to load class for id: " + id);
-  }
-
-  /** an entry holds writable key and value */
-  private class KeyValueEntry {
-    private byte fKeyClassId;
-
-    private byte fValueClassId;
-
-    private Writable fKey;
-
-    private Writable fValue;
-
-    private KeyValueEntry fNextEntry;
-
-    public KeyValueEntry(Writable key, Writable value) {
-      this.fKey = key;
-      this.fValue = value;
-    }
-
-    public String toString() {
-      return fKey.toString() + ":" + fValue.toString();
-    }
-
-    public boolean equals(Object obj) {
-      if (obj instanceof KeyValueEntry) {
-        KeyValueEntry entry = (KeyValueEntry) obj;
-        return entry.fKey.equals(fKey) && entry.fValue.equals(fValue);
+    for (int i = 0; i < classCount; i++) {
+      if (ids[i] == id) {
+        return classes[i];
       }
-      return false;
-    }
-
-    public int hashCode() {
-      return toString().hashCode();
     }
-  }
-
-  /** container for Id class tuples */
-  private class ClassIdEntry {
-    public ClassIdEntry(byte id, Class clazz) {
-      fId = id;
-      fclazz = clazz;
-    }
-
-    private byte fId;
-
-    private Class fclazz;
-
-    private ClassIdEntry fNextIdEntry;
+    throw new IOException("unable to load class for id: " + id);
   }
 
 }
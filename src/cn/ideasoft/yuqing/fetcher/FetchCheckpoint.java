@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.fetcher;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+
+import cn.ideasoft.yuqing.crawl.CrawlDatum;
+import cn.ideasoft.yuqing.parse.ParseData;
+import cn.ideasoft.yuqing.parse.ParseText;
+import cn.ideasoft.yuqing.protocol.Content;
+
+
+/**
+ * Keeps a copy of the output of a fetcher task in the segment, so that a
+ * task that failed can resume where it stopped. The output is written to
+ * files in <code>_fetch_checkpoint/&lt;input file&gt;/</code>, a new file
+ * every <code>fetcher.checkpoint.interval</code> seconds; a file only counts
+ * once it is complete. A restarted task passes the records of the complete
+ * files on to its output again, and skips the urls they cover, so that the
+ * job produces a whole segment. The checkpoints are deleted when the fetch
+ * job succeeds.
+ */
+public class FetchCheckpoint implements OutputCollector {
+
+  public static final Log LOG = LogFactory.getLog(FetchCheckpoint.class);
+
+  public static final String DIR_NAME = "_fetch_checkpoint";
+
+  /** Skips files still being written. */
+  private static final PathFilter DONE = new PathFilter() {
+      public boolean accept(Path path) {
+        return !path.getName().startsWith("_");
+      }
+    };
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path dir;
+  private OutputCollector output;
+  private long interval;
+
+  private SequenceFile.Writer writer;
+  private Path current;
+  private long opened;
+  private int files = 0;
+
+  public FetchCheckpoint(Configuration conf, Path segment, String name,
+                         OutputCollector output) throws IOException {
+    this.conf = conf;
+    this.fs = FileSystem.get(conf);
+    this.dir = new Path(new Path(segment, DIR_NAME), name);
+    this.output = output;
+    this.interval = conf.getInt("fetcher.checkpoint.interval", 600) * 1000L;
+    fs.mkdirs(dir);
+  }
+
+  /** The key by which completed urls are remembered. */
+  public static long fingerprint(Text url) {
+    return MD5Hash.digest(url.getBytes(), 0, url.getLength()).halfDigest();
+  }
+
+  /**
+   * Pass the records of earlier attempts on to the output. Returns the
+   * fingerprints of the urls they fetched.
+   */
+  public Set<Long> replay() throws IOException {
+    Set<Long> done = new HashSet<Long>();
+    Path[] paths = fs.listPaths(dir, DONE);
+    int records = 0;
+    for (int i = 0; i < paths.length; i++) {
+      SequenceFile.Reader reader = new SequenceFile.Reader(fs, paths[i], conf);
+      try {
+        Text url = new Text();
+        FetcherOutput fo = new FetcherOutput();
+        fo.setConf(conf);
+        while (reader.next(url, fo)) {
+          output.collect(url, fo);
+          records++;
+          // outlinks found in redirects are new urls, not fetched ones
+          if (fo.getCrawlDatum().getStatus() != CrawlDatum.STATUS_LINKED) {
+            done.add(new Long(fingerprint(url)));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    files = paths.length;
+    if (paths.length > 0 && LOG.isInfoEnabled()) {
+      LOG.info("Fetcher: resuming from " + dir + ", " + records
+               + " records, " + done.size() + " urls done");
+    }
+    return done;
+  }
+
+  public synchronized void collect(WritableComparable key, Writable value)
+    throws IOException {
+    output.collect(key, value);
+    if (writer == null) {
+      current = new Path(dir, "_checkpoint-" + files);
+      writer = SequenceFile.createWriter(fs, conf, current,
+                                         Text.class, FetcherOutput.class);
+      opened = System.currentTimeMillis();
+    }
+    writer.append(key, value);
+  }
+
+  /** Complete the current file if it is older than the interval. */
+  public synchronized void roll() throws IOException {
+    if (writer != null && System.currentTimeMillis() - opened > interval) {
+      close();
+    }
+  }
+
+  /** Complete the current file. */
+  public synchronized void close() throws IOException {
+    if (writer == null) return;
+    writer.close();
+    writer = null;
+    fs.rename(current, new Path(dir, "checkpoint-" + files));
+    files++;
+  }
+
+  /**
+   * True if a fetch of the segment was started in resumable mode and
+   * hasn't finished.
+   */
+  public static boolean isResumable(FileSystem fs, JobConf job)
+    throws IOException {
+    return job.getBoolean("fetcher.resumable", false)
+      && fs.exists(new Path(job.getOutputPath(), DIR_NAME));
+  }
+
+  /** Delete the output of an unfinished fetch job, but not its checkpoints. */
+  public static void deletePartialOutput(FileSystem fs, Path segment)
+    throws IOException {
+    String[] dirs = new String[] {
+      CrawlDatum.FETCH_DIR_NAME, Content.DIR_NAME, CrawlDatum.PARSE_DIR_NAME,
+      ParseData.DIR_NAME, ParseText.DIR_NAME
+    };
+    for (int i = 0; i < dirs.length; i++) {
+      Path p = new Path(segment, dirs[i]);
+      if (fs.exists(p)) fs.delete(p);
+    }
+  }
+
+  /** Delete the checkpoints of a segment, once it is fetched. */
+  public static void delete(FileSystem fs, Path segment) throws IOException {
+    Path p = new Path(segment, DIR_NAME);
+    if (fs.exists(p)) fs.delete(p);
+  }
+
+}
@@ -18,6 +18,7 @@
 package cn.ideasoft.yuqing.fetcher;
 
 import java.io.IOException;
+import java.text.ParseException;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -35,6 +36,7 @@ import cn.ideasoft.yuqing.crawl.SignatureFactory;
 import cn.ideasoft.yuqing.metadata.Metadata;
 import cn.ideasoft.yuqing.metadata.YuQing;
 import cn.ideasoft.yuqing.net.*;
+import cn.ideasoft.yuqing.net.protocols.HttpDateFormat;
 import cn.ideasoft.yuqing.protocol.*;
 import cn.ideasoft.yuqing.parse.*;
 import cn.ideasoft.yuqing.scoring.ScoringFilters;
@@ -78,23 +80,19 @@ public class Fetcher extends ToolBase implements MapRunnable {
   private boolean storingContent;
   private boolean parsing;
 
-  private class FetcherThread extends Thread {
+  // plugins, shared by the fetcher tasks
+  private URLFilters urlFilters;
+  private ScoringFilters scfilters;
+  private ParseUtil parseUtil;
+  private URLNormalizers normalizers;
+  private ProtocolFactory protocolFactory;
+
+  /** Fetches input entries, in a platform or in a virtual thread. */
+  private class FetcherTask implements Runnable {
     private Configuration conf;
-    private URLFilters urlFilters;
-    private ScoringFilters scfilters;
-    private ParseUtil parseUtil;
-    private URLNormalizers normalizers;
-    private ProtocolFactory protocolFactory;
-
-    public FetcherThread(Configuration conf) {
-      this.setDaemon(true);                       // don't hang JVM on exit
-      this.setName("FetcherThread");              // use an informative name
+
+    public FetcherTask(Configuration conf) {
       this.conf = conf;
-      this.urlFilters = new URLFilters(conf);
-      this.scfilters = new ScoringFilters(conf);
-      this.parseUtil = new ParseUtil(conf);
-      this.protocolFactory = new ProtocolFactory(conf);
-      this.normalizers = new URLNormalizers(conf, URLNormalizers.SCOPE_FETCHER);
     }
 
     public void run() {
@@ -141,8 +139,10 @@ public class Fetcher extends ToolBase implements MapRunnable {
                 LOG.debug("redirectCount=" + redirectCount);
               }
               redirecting = false;
-              Protocol protocol = this.protocolFactory.getProtocol(url.toString());
+              Protocol protocol = protocolFactory.getProtocol(url.toString());
+              long started = System.currentTimeMillis();
               ProtocolOutput output = protocol.getProtocolOutput(url, datum);
+              FetcherMetrics.recordProcessFetchTime(System.currentTimeMillis() - started);
               ProtocolStatus status = output.getStatus();
               Content content = output.getContent();
               ParseStatus pstatus = null;
@@ -156,7 +156,7 @@ public class Fetcher extends ToolBase implements MapRunnable {
                         pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
                   String newUrl = pstatus.getMessage();
                   newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
-                  newUrl = this.urlFilters.filter(newUrl);
+                  newUrl = urlFilters.filter(newUrl);
                   if (newUrl != null && !newUrl.equals(url.toString())) {
                     // record that we were redirected
                     output(url, datum, null, status, CrawlDatum.STATUS_FETCH_REDIR_PERM);
@@ -191,7 +191,7 @@ public class Fetcher extends ToolBase implements MapRunnable {
                 output(url, datum, content, status, code);
                 String newUrl = status.getMessage();
                 newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
-                newUrl = this.urlFilters.filter(newUrl);
+                newUrl = urlFilters.filter(newUrl);
                 if (newUrl != null && !newUrl.equals(url.toString())) {
                   url = new Text(newUrl);
                   if (maxRedirect > 0) {
@@ -230,10 +230,13 @@ public class Fetcher extends ToolBase implements MapRunnable {
               case ProtocolStatus.NOTFOUND:
               case ProtocolStatus.ACCESS_DENIED:
               case ProtocolStatus.ROBOTS_DENIED:
-              case ProtocolStatus.NOTMODIFIED:
                 output(url, datum, null, status, CrawlDatum.STATUS_FETCH_GONE);
                 break;
 
+              case ProtocolStatus.NOTMODIFIED:    // unchanged, keep old data
+                output(url, datum, null, status, CrawlDatum.STATUS_FETCH_NOTMODIFIED);
+                break;
+
               default:
                 if (LOG.isWarnEnabled()) {
                   LOG.warn("Unknown ProtocolStatus: " + status.getCode());
@@ -287,6 +290,8 @@ public class Fetcher extends ToolBase implements MapRunnable {
       if (content == null) {
         String url = key.toString();
         content = new Content(url, url, new byte[0], "", new Metadata(), this.conf);
+      } else if (status == CrawlDatum.STATUS_FETCH_SUCCESS) {
+        setValidators(datum, content);
       }
       Metadata metadata = content.getMetadata();
       // add segment to metadata
@@ -305,7 +310,7 @@ public class Fetcher extends ToolBase implements MapRunnable {
       if (parsing && status == CrawlDatum.STATUS_FETCH_SUCCESS) {
         ParseStatus parseStatus;
         try {
-          parse = this.parseUtil.parse(content);
+          parse = parseUtil.parse(content);
           parseStatus = parse.getData().getStatus();
         } catch (Exception e) {
           parseStatus = new ParseStatus(e);
@@ -339,7 +344,8 @@ public class Fetcher extends ToolBase implements MapRunnable {
         output.collect
           (key,
            new FetcherOutput(datum,
-                             storingContent ? content : null,
+                             storingContent && status != CrawlDatum.STATUS_FETCH_NOTMODIFIED
+                               ? content : null,
                              parse != null ? new ParseImpl(parse) : null));
       } catch (IOException e) {
         if (LOG.isFatalEnabled()) {
@@ -400,6 +406,28 @@ public class Fetcher extends ToolBase implements MapRunnable {
     return conf.getBoolean("fetcher.store.content", true);
   }
 
+  /**
+   * Record the Last-Modified time and the ETag of a fetched page in its
+   * datum, so that the protocol can send a conditional request next time.
+   */
+  static void setValidators(CrawlDatum datum, Content content) {
+    Metadata headers = content.getMetadata();
+    String lastModified = headers.get(Metadata.LAST_MODIFIED);
+    if (lastModified != null) {
+      try {
+        datum.setModifiedTime(HttpDateFormat.toLong(lastModified));
+      } catch (ParseException e) {
+        // keep the previous value
+      }
+    }
+    String etag = headers.get(Metadata.ETAG);
+    if (etag != null) {
+      datum.getMetaData().put(YuQing.WRITABLE_ETAG_KEY, new Text(etag));
+    } else {
+      datum.getMetaData().remove(YuQing.WRITABLE_ETAG_KEY);
+    }
+  }
+
   public void run(RecordReader input, OutputCollector output,
                   Reporter reporter) throws IOException {
 
@@ -412,8 +440,18 @@ public class Fetcher extends ToolBase implements MapRunnable {
     int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: threads: " + threadCount); }
 
+    boolean virtual = VirtualThreads.isEnabled(getConf(), "fetcher.threads.virtual");
+    if (virtual && LOG.isInfoEnabled()) {
+      LOG.info("Fetcher: using virtual threads");
+    }
+    urlFilters = new URLFilters(getConf());
+    scfilters = new ScoringFilters(getConf());
+    parseUtil = new ParseUtil(getConf());
+    protocolFactory = new ProtocolFactory(getConf());
+    normalizers = new URLNormalizers(getConf(), URLNormalizers.SCOPE_FETCHER);
     for (int i = 0; i < threadCount; i++) {       // spawn threads
-      new FetcherThread(getConf()).start();
+      VirtualThreads.start("FetcherThread-" + i, new FetcherTask(getConf()),
+                           virtual);
     }
 
     // select a timeout that avoids a task timeout
@@ -21,8 +21,17 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -34,10 +43,13 @@ import org.apache.hadoop.conf.*;
 import org.apache.hadoop.mapred.*;
 
 import cn.ideasoft.yuqing.crawl.CrawlDatum;
+import cn.ideasoft.yuqing.crawl.HostDatum;
+import cn.ideasoft.yuqing.crawl.HostDb;
 import cn.ideasoft.yuqing.crawl.SignatureFactory;
 import cn.ideasoft.yuqing.metadata.Metadata;
 import cn.ideasoft.yuqing.metadata.YuQing;
 import cn.ideasoft.yuqing.net.*;
+import cn.ideasoft.yuqing.net.protocols.Response;
 import cn.ideasoft.yuqing.protocol.*;
 import cn.ideasoft.yuqing.parse.*;
 import cn.ideasoft.yuqing.scoring.ScoringFilters;
@@ -77,6 +89,27 @@ import cn.ideasoft.yuqing.util.*;
  * available, or a timeout is reached (at which point the Fetcher will abort,
  * assuming the task is hung).
  * 
+ * <p>With <code>fetcher.queue.scheduler</code> set to "deadline" the queues
+ * are instead kept ordered by the time at which they become eligible, and
+ * FetcherThread-s block until the earliest queue is ready, rather than
+ * scanning all queues and spin-waiting.
+ * 
+ * <p>With <code>fetcher.threads.virtual</code> set to true, and a JVM which
+ * supports them, FetcherThread-s run as virtual threads, so that a much
+ * larger number of them can wait for network I/O at the same time.
+ * 
+ * <p>With <code>fetcher.engine</code> set to "nio", http requests are sent
+ * through a non-blocking {@link NioHttpClient} instead of being fetched by
+ * the FetcherThread-s themselves. A few threads then pick items from the
+ * queues, check robots.txt rules and submit requests, and process completed
+ * requests, so that thousands of requests can be in progress at once, while
+ * each queue still keeps its items in progress until their requests complete.
+ * 
+ * <p>The fetcher writes what it learned about each host, response times,
+ * connection failures and Crawl-Delay, to <code>crawl_host</code> in the
+ * segment, for the {@link HostDb}. With <code>hostdb.path</code> set, the
+ * queue of a host starts with the Crawl-Delay and response time found there.
+ * 
  * @author Andrzej Bialecki
  */
 public class Fetcher2 extends Configured implements MapRunnable { 
@@ -110,12 +143,40 @@ public class Fetcher2 extends Configured implements MapRunnable {
   private AtomicLong bytes = new AtomicLong(0);        // total bytes fetched
   private AtomicInteger pages = new AtomicInteger(0);  // total pages fetched
   private AtomicInteger errors = new AtomicInteger(0); // total pages errored
+  private AtomicInteger parsed = new AtomicInteger(0); // total pages parsed
 
   private boolean storingContent;
   private boolean parsing;
   FetchItemQueues fetchQueues;
+  FetcherMetrics metrics;
+  FetchCheckpoint checkpoint;
   QueueFeeder feeder;
   
+  public static final String ENGINE_THREADS = "threads";
+  public static final String ENGINE_NIO = "nio";
+  
+  // nio engine state
+  private NioHttpClient nioClient;
+  private LinkedBlockingQueue<NioResult> nioCompleted;
+  private AtomicInteger nioInFlight = new AtomicInteger(0);
+  private int nioMaxInFlight;
+  
+  // what was learned about each host, for the host db
+  private ConcurrentHashMap<String, HostDatum> hostStats =
+    new ConcurrentHashMap<String, HostDatum>();
+  
+  // plugins, shared by the fetcher tasks
+  private URLFilters urlFilters;
+  private ScoringFilters scfilters;
+  private ParseUtil parseUtil;
+  private URLNormalizers normalizers;
+  private ProtocolFactory protocolFactory;
+  
+  // pipelined parsing state, see fetcher.parse.pipelined
+  private ThreadPoolExecutor parseExecutor;
+  private Semaphore parseSlots;
+  private AtomicInteger parseWaiting = new AtomicInteger(0); // threads waiting for a slot
+  
   /**
    * This class described the item to be fetched.
    */
@@ -124,6 +185,9 @@ public class Fetcher2 extends Configured implements MapRunnable {
     Text url;
     URL u;
     CrawlDatum datum;
+    // when the item was queued and its request started
+    long queued;
+    long started;
     
     public FetchItem(Text url, URL u, CrawlDatum datum, String queueID) {
       this.url = url;
@@ -134,9 +198,10 @@ public class Fetcher2 extends Configured implements MapRunnable {
     
     /** Create an item. Queue id will be created based on <code>byIP</code>
      * argument, either as a protocol + hostname pair, or protocol + IP
-     * address pair.
+     * address pair, resolved through <code>dns</code>.
      */
-    public static FetchItem create(Text url, CrawlDatum datum, boolean byIP) {
+    public static FetchItem create(Text url, CrawlDatum datum, boolean byIP,
+                                   DnsCache dns) {
       String queueID;
       URL u = null;
       try {
@@ -149,7 +214,7 @@ public class Fetcher2 extends Configured implements MapRunnable {
       String host;
       if (byIP) {
         try {
-          InetAddress addr = InetAddress.getByName(u.getHost());
+          InetAddress addr = dns.resolve(u.getHost());
           host = addr.getHostAddress();
         } catch (UnknownHostException e) {
           // unable to resolve it, so don't fall back to host name
@@ -198,6 +263,17 @@ public class Fetcher2 extends Configured implements MapRunnable {
     long minCrawlDelay;
     int maxThreads;
     Configuration conf;
+    // used only by the deadline scheduler
+    long seq;
+    long deadline;
+    boolean scheduled = false;
+    // used only with fetcher.adaptive.delay
+    long robotsDelay = 0;
+    long adaptedDelay = -1;
+    long responseTime = -1;
+    int errors = 0;
+    // set once the host db was asked about the queue
+    boolean seeded = false;
     
     public FetchItemQueue(Configuration conf, int maxThreads, long crawlDelay, long minCrawlDelay) {
       this.conf = conf;
@@ -225,6 +301,7 @@ public class Fetcher2 extends Configured implements MapRunnable {
     
     public void addFetchItem(FetchItem it) {
       if (it == null) return;
+      it.queued = System.currentTimeMillis();
       queue.add(it);
     }
     
@@ -233,10 +310,21 @@ public class Fetcher2 extends Configured implements MapRunnable {
       inProgress.add(it);
     }
     
+    /** Time at which this queue may hand out its next item. */
+    public long getNextFetchTime() {
+      if (adaptedDelay >= 0) return endTime.get() + adaptedDelay;
+      return endTime.get() + (maxThreads > 1 ? crawlDelay : minCrawlDelay);
+    }
+    
+    /** True if this queue has items and a free slot for another request. */
+    public boolean isSchedulable() {
+      return queue.size() > 0 && inProgress.size() < maxThreads;
+    }
+    
     public FetchItem getFetchItem() {
       if (inProgress.size() >= maxThreads) return null;
       long now = System.currentTimeMillis();
-      long last = endTime.get() + (maxThreads > 1 ? crawlDelay : minCrawlDelay);
+      long last = getNextFetchTime();
       if (last > now) return null;
       FetchItem it = null;
       if (queue.size() == 0) return null;
@@ -254,6 +342,11 @@ public class Fetcher2 extends Configured implements MapRunnable {
       LOG.info("  inProgress    = " + inProgress.size());
       LOG.info("  crawlDelay    = " + crawlDelay);
       LOG.info("  minCrawlDelay = " + minCrawlDelay);
+      if (adaptedDelay >= 0) {
+        LOG.info("  adaptedDelay  = " + adaptedDelay);
+        LOG.info("  responseTime  = " + responseTime);
+        LOG.info("  errors        = " + errors);
+      }
       LOG.info("  endTime       = " + endTime.get());
       LOG.info("  now           = " + System.currentTimeMillis());
       for (int i = 0; i < queue.size(); i++) {
@@ -269,6 +362,20 @@ public class Fetcher2 extends Configured implements MapRunnable {
    */
   private static class FetchItemQueues {
     public static final String DEFAULT_ID = "default";
+    public static final String SCHEDULER_SCAN = "scan";
+    public static final String SCHEDULER_DEADLINE = "deadline";
+    private static final HostDatum UNKNOWN_HOST = new HostDatum();
+    
+    /** Orders scheduled queues by deadline, ties broken by creation order. */
+    private static final Comparator<FetchItemQueue> DEADLINE_ORDER =
+      new Comparator<FetchItemQueue>() {
+        public int compare(FetchItemQueue a, FetchItemQueue b) {
+          if (a.deadline != b.deadline) return a.deadline < b.deadline ? -1 : 1;
+          if (a.seq != b.seq) return a.seq < b.seq ? -1 : 1;
+          return 0;
+        }
+      };
+    
     Map<String, FetchItemQueue> queues = new HashMap<String, FetchItemQueue>();
     AtomicInteger totalSize = new AtomicInteger(0);
     int maxThreads;
@@ -276,6 +383,30 @@ public class Fetcher2 extends Configured implements MapRunnable {
     long crawlDelay;
     long minCrawlDelay;
     Configuration conf;    
+    DnsCache dns;
+    // an explicit lock rather than the monitor, so that waiting threads
+    // don't pin their carrier threads when running as virtual threads
+    ReentrantLock lock = new ReentrantLock();
+    Condition eligible = lock.newCondition();
+    // deadline scheduler state, guarded by lock
+    boolean deadlineScheduling;
+    TreeSet<FetchItemQueue> schedule;
+    long queueSeq = 0;
+    boolean feederFinished = false;
+    // adaptive politeness, guarded by lock
+    boolean adaptiveDelay;
+    long adaptiveMinDelay;
+    long adaptiveMaxDelay;
+    float adaptiveFactor;
+    int maxHostErrors;
+    Set<String> givenUp = new HashSet<String>();
+    // items not to be fetched in this run, see drainDropped()
+    List<FetchItem> dropped = new ArrayList<FetchItem>();
+    volatile boolean halted = false;
+    HostDb.Reader hostDb;
+    // host db entries by host name, UNKNOWN_HOST for hosts it doesn't have
+    Map<String, HostDatum> hosts = new ConcurrentHashMap<String, HostDatum>();
+    long maxCrawlDelay;
     
     public FetchItemQueues(Configuration conf) {
       this.conf = conf;
@@ -284,6 +415,33 @@ public class Fetcher2 extends Configured implements MapRunnable {
       this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", false);
       this.crawlDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
       this.minCrawlDelay = (long) (conf.getFloat("fetcher.server.min.delay", 0.0f) * 1000);
+      this.dns = DnsCache.get(conf);
+      this.adaptiveDelay = conf.getBoolean("fetcher.adaptive.delay", false);
+      this.adaptiveMinDelay = (long) (conf.getFloat("fetcher.adaptive.delay.min", 0.5f) * 1000);
+      this.adaptiveMaxDelay = (long) (conf.getFloat("fetcher.adaptive.delay.max", 30.0f) * 1000);
+      this.adaptiveFactor = conf.getFloat("fetcher.adaptive.delay.factor", 2.0f);
+      this.maxHostErrors = conf.getInt("fetcher.adaptive.max.errors", 10);
+      String scheduler = conf.get("fetcher.queue.scheduler", SCHEDULER_SCAN);
+      if (SCHEDULER_DEADLINE.equalsIgnoreCase(scheduler)) {
+        this.deadlineScheduling = true;
+        this.schedule = new TreeSet<FetchItemQueue>(DEADLINE_ORDER);
+      } else if (!SCHEDULER_SCAN.equalsIgnoreCase(scheduler)) {
+        LOG.warn("Unknown fetcher.queue.scheduler '" + scheduler
+                 + "', using '" + SCHEDULER_SCAN + "'");
+      }
+      this.maxCrawlDelay = conf.getInt("fetcher.max.crawl.delay", 30) * 1000;
+      String hostDbPath = conf.get(HostDb.HOSTDB_PATH, "");
+      if (hostDbPath.length() > 0) {
+        try {
+          this.hostDb = new HostDb.Reader(conf, new Path(hostDbPath));
+        } catch (IOException e) {
+          LOG.warn("Cannot open host db " + hostDbPath + ": " + e);
+        }
+      }
+    }
+    
+    public boolean isDeadlineScheduling() {
+      return deadlineScheduling;
     }
     
     public int getTotalSize() {
@@ -294,18 +452,126 @@ public class Fetcher2 extends Configured implements MapRunnable {
       return queues.size();
     }
     
+    /** Number of items being fetched, over all queues. */
+    public int getInProgressSize() {
+      lock.lock();
+      try {
+        int n = 0;
+        for (FetchItemQueue fiq : queues.values()) {
+          n += fiq.getInProgressSize();
+        }
+        return n;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
     public void addFetchItem(Text url, CrawlDatum datum) {
-      FetchItem it = FetchItem.create(url, datum, byIP);
+      FetchItem it = FetchItem.create(url, datum, byIP, dns);
       if (it != null) addFetchItem(it);
     }
     
+    /** Start resolving the host of a url which will be queued soon. */
+    public void prefetch(Text url) {
+      try {
+        dns.prefetch(new URL(url.toString()).getHost());
+      } catch (Exception e) {
+        // bad url, it is skipped when queued
+      }
+    }
+    
     public void addFetchItem(FetchItem it) {
+      if ((adaptiveDelay || halted) && drop(it)) return;
+      // the host db seek is done before taking the lock, which only
+      // guards applying what it found
+      HostDatum host = lookUp(it);
+      if (deadlineScheduling) {
+        lock.lock();
+        try {
+          FetchItemQueue fiq = getFetchItemQueue(it.queueID);
+          if (!fiq.seeded) seed(fiq, host);
+          fiq.addFetchItem(it);
+          totalSize.incrementAndGet();
+          if (!fiq.scheduled) reschedule(fiq);
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
       FetchItemQueue fiq = getFetchItemQueue(it.queueID);
+      if (!fiq.seeded) {
+        lock.lock();
+        try {
+          if (!fiq.seeded) seed(fiq, host);
+        } finally {
+          lock.unlock();
+        }
+      }
       fiq.addFetchItem(it);
       totalSize.incrementAndGet();
     }
     
+    /**
+     * What the host db knows about the host of an item, or null. Each host
+     * is looked up once, later calls are answered from {@link #hosts}.
+     */
+    private HostDatum lookUp(FetchItem it) {
+      if (hostDb == null) return null;
+      String name = it.u.getHost().toLowerCase();
+      HostDatum host = hosts.get(name);
+      if (host == null) {
+        try {
+          host = hostDb.get(name);
+        } catch (IOException e) {
+          LOG.warn("Cannot look up " + name + " in host db: " + e);
+        }
+        if (host == null) host = UNKNOWN_HOST;
+        hosts.put(name, host);
+      }
+      return host == UNKNOWN_HOST ? null : host;
+    }
+    
+    /**
+     * Start a new queue with what the host db knows about the host of its
+     * first item: its Crawl-Delay and, with adaptive delays, its response
+     * time. Caller must hold the lock.
+     */
+    private void seed(FetchItemQueue fiq, HostDatum host) {
+      fiq.seeded = true;
+      if (host == null) return;
+      if (host.getCrawlDelay() > 0 && host.getCrawlDelay() <= maxCrawlDelay) {
+        applyCrawlDelay(fiq, host.getCrawlDelay());
+      }
+      if (!adaptiveDelay || host.getResponseTime() <= 0) return;
+      fiq.responseTime = (long) host.getResponseTime();
+      long delay = (long) (fiq.responseTime * adaptiveFactor);
+      delay = Math.max(adaptiveMinDelay, Math.min(adaptiveMaxDelay, delay));
+      fiq.adaptedDelay = Math.max(delay, fiq.robotsDelay);
+      if (deadlineScheduling && fiq.scheduled) reschedule(fiq);
+    }
+    
     public void finishFetchItem(FetchItem it) {
+      if (deadlineScheduling) {
+        lock.lock();
+        try {
+          FetchItemQueue fiq = queues.get(it.queueID);
+          if (fiq == null) {
+            LOG.warn("Attempting to finish item from unknown queue: " + it);
+            return;
+          }
+          fiq.finishFetchItem(it);
+          if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
+            // reap empty queue
+            unschedule(fiq);
+            queues.remove(it.queueID);
+          } else {
+            reschedule(fiq);
+          }
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
       FetchItemQueue fiq = queues.get(it.queueID);
       if (fiq == null) {
         LOG.warn("Attempting to finish item from unknown queue: " + it);
@@ -314,40 +580,337 @@ public class Fetcher2 extends Configured implements MapRunnable {
       fiq.finishFetchItem(it);
     }
     
-    public synchronized FetchItemQueue getFetchItemQueue(String id) {
-      FetchItemQueue fiq = queues.get(id);
-      if (fiq == null) {
-        // initialize queue
-        fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
-        queues.put(id, fiq);
+    /** Set the crawl delay of a queue, e.g. from robots.txt Crawl-Delay. */
+    public void setCrawlDelay(FetchItemQueue fiq, long delay) {
+      lock.lock();
+      try {
+        applyCrawlDelay(fiq, delay);
+      } finally {
+        lock.unlock();
       }
-      return fiq;
     }
     
-    public synchronized FetchItem getFetchItem() {
-      Iterator it = queues.keySet().iterator();
-      while (it.hasNext()) {
-        FetchItemQueue fiq = queues.get(it.next());
-        // reap empty queues
-        if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
-          it.remove();
-          continue;
+    /** Caller must hold the lock. */
+    private void applyCrawlDelay(FetchItemQueue fiq, long delay) {
+      // an adapted delay never goes below the delay asked for by the site
+      fiq.robotsDelay = delay;
+      if (fiq.adaptedDelay >= 0 && fiq.adaptedDelay < delay) {
+        fiq.adaptedDelay = delay;
+        if (deadlineScheduling && fiq.scheduled) reschedule(fiq);
+      }
+      if (fiq.crawlDelay == delay) return;
+      fiq.crawlDelay = delay;
+      if (deadlineScheduling && fiq.scheduled) reschedule(fiq);
+    }
+    
+    /**
+     * Adapt the delay of the queue of an item to the outcome of its fetch,
+     * which took <code>elapsed</code> milliseconds. Successful fetches set
+     * the delay to fetcher.adaptive.delay.factor times the average response
+     * time of the host, errors double it, in both cases within
+     * fetcher.adaptive.delay.min and fetcher.adaptive.delay.max and never
+     * below the robots.txt Crawl-Delay. After fetcher.adaptive.max.errors
+     * errors in a row the remaining items of the queue are dropped, see
+     * {@link #drainDropped()}. Must be called before the item is finished.
+     */
+    public void reportFetch(FetchItem it, long elapsed, boolean error) {
+      if (!adaptiveDelay) return;
+      lock.lock();
+      try {
+        FetchItemQueue fiq = queues.get(it.queueID);
+        if (fiq == null) return;
+        long current = fiq.adaptedDelay >= 0 ? fiq.adaptedDelay
+          : (fiq.maxThreads > 1 ? fiq.crawlDelay : fiq.minCrawlDelay);
+        long delay;
+        if (error) {
+          fiq.errors++;
+          if (maxHostErrors > 0 && fiq.errors >= maxHostErrors) {
+            giveUp(it.queueID, fiq);
+            return;
+          }
+          delay = Math.max(current, Math.max(adaptiveMinDelay, crawlDelay)) * 2;
+        } else {
+          fiq.errors = 0;
+          // exponentially weighted moving average
+          fiq.responseTime = fiq.responseTime < 0 ? elapsed
+            : (fiq.responseTime * 7 + elapsed * 3) / 10;
+          delay = (long) (fiq.responseTime * adaptiveFactor);
+          // recover gradually from a backoff
+          if (delay < current / 2) delay = current / 2;
         }
-        FetchItem fit = fiq.getFetchItem();
-        if (fit != null) {
-          totalSize.decrementAndGet();
-          return fit;
+        delay = Math.max(adaptiveMinDelay, Math.min(adaptiveMaxDelay, delay));
+        delay = Math.max(delay, fiq.robotsDelay);
+        if (fiq.adaptedDelay == delay) return;
+        fiq.adaptedDelay = delay;
+        if (deadlineScheduling && fiq.scheduled) reschedule(fiq);
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /**
+     * Stop fetching from a queue: its queued items, and items added for it
+     * later on, are moved to the dropped list. Caller must hold the lock.
+     */
+    private void giveUp(String id, FetchItemQueue fiq) {
+      LOG.warn("Giving up " + id + " after " + fiq.errors + " errors, "
+               + fiq.getQueueSize() + " queued urls left for later");
+      givenUp.add(id);
+      dropQueue(fiq);
+    }
+    
+    /**
+     * Stop fetching altogether: all queued items, and items added later on,
+     * are moved to the dropped list. Items being fetched are finished.
+     * Returns the number of items dropped.
+     */
+    public int halt() {
+      lock.lock();
+      try {
+        halted = true;
+        int n = 0;
+        for (FetchItemQueue fiq : queues.values()) {
+          n += dropQueue(fiq);
         }
+        return n;
+      } finally {
+        lock.unlock();
       }
-      return null;
     }
     
-    public synchronized void dump() {
-      for (String id : queues.keySet()) {
+    /** Move the queued items of a queue to the dropped list. Caller must hold the lock. */
+    private int dropQueue(FetchItemQueue fiq) {
+      int n;
+      synchronized (fiq.queue) {
+        n = fiq.queue.size();
+        if (n > 0) addDropped(fiq.queue);
+        totalSize.addAndGet(-n);
+        fiq.queue.clear();
+      }
+      if (deadlineScheduling) {
+        unschedule(fiq);
+        if (feederFinished && totalSize.get() == 0) eligible.signalAll();
+      }
+      return n;
+    }
+    
+    /** Caller must hold the lock. */
+    private void addDropped(Collection<FetchItem> items) {
+      if (dropped.isEmpty() && deadlineScheduling) {
+        // wake up a thread to write them out
+        eligible.signal();
+      }
+      dropped.addAll(items);
+    }
+    
+    /** Move an item to the dropped list if its queue was given up. */
+    private boolean drop(FetchItem it) {
+      lock.lock();
+      try {
+        if (!halted && !givenUp.contains(it.queueID)) return false;
+        addDropped(Collections.singletonList(it));
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /** Add an item to the dropped list, whatever its queue. */
+    public void dropFetchItem(FetchItem it) {
+      lock.lock();
+      try {
+        addDropped(Collections.singletonList(it));
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    public int getDroppedSize() {
+      lock.lock();
+      try {
+        return dropped.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /** True if the feeder has finished and all its items were taken. */
+    public boolean isFinished() {
+      lock.lock();
+      try {
+        return feederFinished && totalSize.get() == 0;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /** Return and forget the items of queues given up so far. */
+    public List<FetchItem> drainDropped() {
+      lock.lock();
+      try {
+        if (dropped.isEmpty()) return Collections.emptyList();
+        List<FetchItem> items = dropped;
+        dropped = new ArrayList<FetchItem>();
+        return items;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    public FetchItemQueue getFetchItemQueue(String id) {
+      lock.lock();
+      try {
         FetchItemQueue fiq = queues.get(id);
-        if (fiq.getQueueSize() == 0) continue;
-        LOG.info("* queue: " + id);
-        fiq.dump();
+        if (fiq == null) {
+          // initialize queue
+          fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
+          fiq.seq = queueSeq++;
+          queues.put(id, fiq);
+        }
+        return fiq;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /** Remove a queue from the schedule. Caller must hold the lock. */
+    private void unschedule(FetchItemQueue fiq) {
+      if (fiq.scheduled) {
+        schedule.remove(fiq);
+        fiq.scheduled = false;
+      }
+    }
+    
+    /**
+     * Re-insert a queue into the schedule under its current deadline, if it
+     * has items and a free slot. Caller must hold the lock.
+     */
+    private void reschedule(FetchItemQueue fiq) {
+      unschedule(fiq);
+      if (!fiq.isSchedulable()) return;
+      fiq.deadline = fiq.getNextFetchTime();
+      fiq.scheduled = true;
+      schedule.add(fiq);
+      if (schedule.first() == fiq) {
+        // new earliest deadline - let a waiting thread re-arm its timer
+        eligible.signal();
+      }
+    }
+    
+    /** Signal that no more input items will be added by the feeder. */
+    public void setFeederFinished() {
+      lock.lock();
+      try {
+        feederFinished = true;
+        eligible.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /**
+     * Block until an item is eligible for fetching, according to the
+     * politeness settings of its queue, and return it. Returns null when the
+     * feeder has finished and no more items are queued, see
+     * {@link #isFinished()}, or when there are dropped items to write out.
+     * Used by the deadline scheduler only.
+     */
+    public FetchItem awaitFetchItem() throws InterruptedException {
+      lock.lock();
+      try {
+        while (true) {
+          if (!dropped.isEmpty()) return null;
+          if (schedule.isEmpty()) {
+            if (feederFinished && totalSize.get() == 0) return null;
+            // woken up by reschedule() or setFeederFinished()
+            eligible.await();
+            continue;
+          }
+          FetchItemQueue fiq = schedule.first();
+          long delay = fiq.deadline - System.currentTimeMillis();
+          if (delay > 0) {
+            eligible.await(delay, TimeUnit.MILLISECONDS);
+            continue;
+          }
+          FetchItem fit = takeFetchItem(fiq);
+          if (fit != null) return fit;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /**
+     * Return an item eligible for fetching, or null if there is none at the
+     * moment. Does not block.
+     */
+    public FetchItem pollFetchItem() {
+      if (!deadlineScheduling) return getFetchItem();
+      lock.lock();
+      try {
+        while (!schedule.isEmpty()) {
+          FetchItemQueue fiq = schedule.first();
+          if (fiq.deadline > System.currentTimeMillis()) return null;
+          FetchItem fit = takeFetchItem(fiq);
+          if (fit != null) return fit;
+        }
+        return null;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    /** Take an item from a queue due for fetching. Caller must hold the lock. */
+    private FetchItem takeFetchItem(FetchItemQueue fiq) {
+      unschedule(fiq);
+      FetchItem fit = fiq.getFetchItem();
+      reschedule(fiq);
+      if (fit == null) return null;
+      totalSize.decrementAndGet();
+      if (feederFinished && totalSize.get() == 0) {
+        // release threads waiting for more work
+        eligible.signalAll();
+      } else if (!schedule.isEmpty()) {
+        // pass the wake-up on to another waiting thread
+        eligible.signal();
+      }
+      return fit;
+    }
+    
+    public FetchItem getFetchItem() {
+      lock.lock();
+      try {
+        Iterator it = queues.keySet().iterator();
+        while (it.hasNext()) {
+          FetchItemQueue fiq = queues.get(it.next());
+          // reap empty queues
+          if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
+            it.remove();
+            continue;
+          }
+          FetchItem fit = fiq.getFetchItem();
+          if (fit != null) {
+            totalSize.decrementAndGet();
+            return fit;
+          }
+        }
+        return null;
+      } finally {
+        lock.unlock();
+      }
+    }
+    
+    public void dump() {
+      lock.lock();
+      try {
+        for (String id : queues.keySet()) {
+          FetchItemQueue fiq = queues.get(id);
+          if (fiq.getQueueSize() == 0) continue;
+          LOG.info("* queue: " + id);
+          fiq.dump();
+        }
+      } finally {
+        lock.unlock();
       }
     }
   }
@@ -360,21 +923,57 @@ public class Fetcher2 extends Configured implements MapRunnable {
     private RecordReader reader;
     private FetchItemQueues queues;
     private int size;
+    private int lookahead;
+    private Semaphore parseSlots;
+    private Set<Long> done;
+    private volatile boolean halted = false;
     
-    public QueueFeeder(RecordReader reader, FetchItemQueues queues, int size) {
+    public QueueFeeder(RecordReader reader, FetchItemQueues queues, int size,
+                       int lookahead, Semaphore parseSlots, Set<Long> done) {
       this.reader = reader;
       this.queues = queues;
       this.size = size;
+      this.lookahead = lookahead;
+      this.parseSlots = parseSlots;
+      this.done = done;
       this.setDaemon(true);
       this.setName("QueueFeeder");
     }
     
     public void run() {
+      try {
+        feed();
+      } finally {
+        queues.setFeederFinished();
+      }
+    }
+    
+    /**
+     * Stop feeding the queues. The records not queued yet are dropped, so
+     * that they are written out as retries.
+     */
+    public void halt() {
+      halted = true;
+    }
+    
+    private void feed() {
       boolean hasMore = true;
       int cnt = 0;
+      int skipped = 0;
+      // records read but not queued yet, whose hosts are being resolved
+      LinkedList<Text> urls = new LinkedList<Text>();
+      LinkedList<CrawlDatum> datums = new LinkedList<CrawlDatum>();
       
-      while (hasMore) {
-        int feed = size - queues.getTotalSize();
+      while (hasMore || !urls.isEmpty()) {
+        if (halted) {
+          spill(urls, datums, hasMore);
+          return;
+        }
+        int feed = size - queues.getTotalSize() - queues.getDroppedSize();
+        if (parseSlots != null && parseSlots.availablePermits() == 0) {
+          // parsing falls behind - don't fetch more than it can handle
+          feed = 0;
+        }
         if (feed <= 0) {
           // queues are full - spin-wait until they have some free space
           try {
@@ -383,54 +982,89 @@ public class Fetcher2 extends Configured implements MapRunnable {
           continue;
         } else {
           LOG.debug("-feeding " + feed + " input urls ...");
-          while (feed > 0 && hasMore) {
+          while (feed > 0 && (hasMore || !urls.isEmpty()) && !halted) {
             try {
-              Text url = new Text();
-              CrawlDatum datum = new CrawlDatum();
-              hasMore = reader.next(url, datum);
-              if (hasMore) {
-                queues.addFetchItem(url, datum);
-                cnt++;
-                feed--;
+              while (hasMore && urls.size() <= lookahead) {
+                Text url = new Text();
+                CrawlDatum datum = new CrawlDatum();
+                hasMore = reader.next(url, datum);
+                if (hasMore && done != null
+                    && done.contains(new Long(FetchCheckpoint.fingerprint(url)))) {
+                  // fetched by an earlier attempt
+                  skipped++;
+                } else if (hasMore) {
+                  queues.prefetch(url);
+                  urls.add(url);
+                  datums.add(datum);
+                }
               }
             } catch (IOException e) {
               LOG.fatal("QueueFeeder error reading input, record " + cnt, e);
               return;
             }
+            if (urls.isEmpty()) break;
+            queues.addFetchItem(urls.removeFirst(), datums.removeFirst());
+            cnt++;
+            feed--;
+          }
+        }
+      }
+      LOG.info("QueueFeeder finished: total " + cnt + " records"
+               + (skipped > 0 ? ", " + skipped + " fetched before." : "."));
+    }
+    
+    /** Drop the buffered and the remaining input records. */
+    private void spill(LinkedList<Text> urls, LinkedList<CrawlDatum> datums,
+                       boolean hasMore) {
+      int cnt = 0;
+      while (hasMore || !urls.isEmpty()) {
+        if (queues.getDroppedSize() >= size) {
+          // let the fetcher threads write out the dropped items first
+          try {
+            Thread.sleep(100);
+          } catch (Exception e) {};
+          continue;
+        }
+        if (urls.isEmpty()) {
+          Text url = new Text();
+          CrawlDatum datum = new CrawlDatum();
+          try {
+            hasMore = reader.next(url, datum);
+          } catch (IOException e) {
+            LOG.fatal("QueueFeeder error reading input", e);
+            return;
           }
+          if (!hasMore) break;
+          urls.add(url);
+          datums.add(datum);
         }
+        queues.dropFetchItem(new FetchItem(urls.removeFirst(), null,
+                                           datums.removeFirst(), null));
+        cnt++;
       }
-      LOG.info("QueueFeeder finished: total " + cnt + " records.");
+      LOG.info("QueueFeeder halted: " + cnt + " records left for later.");
     }
   }
   
   /**
-   * This class picks items from queues and fetches the pages.
+   * This class picks items from queues and fetches the pages. It runs in a
+   * platform or in a virtual thread, and uses the plugins of the fetcher,
+   * which all tasks share.
    */
-  private class FetcherThread extends Thread {
-    private Configuration conf;
-    private URLFilters urlFilters;
-    private ScoringFilters scfilters;
-    private ParseUtil parseUtil;
-    private URLNormalizers normalizers;
-    private ProtocolFactory protocolFactory;
-    private long maxCrawlDelay;
-    private boolean byIP;
-    private int maxRedirect;
-
-    public FetcherThread(Configuration conf) {
-      this.setDaemon(true);                       // don't hang JVM on exit
-      this.setName("FetcherThread");              // use an informative name
+  private class FetcherTask implements Runnable {
+    Configuration conf;
+    long maxCrawlDelay;
+    boolean byIP;
+    int maxRedirect;
+    DnsCache dns;
+
+    public FetcherTask(Configuration conf) {
       this.conf = conf;
-      this.urlFilters = new URLFilters(conf);
-      this.scfilters = new ScoringFilters(conf);
-      this.parseUtil = new ParseUtil(conf);
-      this.protocolFactory = new ProtocolFactory(conf);
-      this.normalizers = new URLNormalizers(conf, URLNormalizers.SCOPE_FETCHER);
       this.maxCrawlDelay = conf.getInt("fetcher.max.crawl.delay", 30) * 1000;
       // backward-compatible default setting
       this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", true);
       this.maxRedirect = conf.getInt("http.redirect.max", 3);
+      this.dns = DnsCache.get(conf);
     }
 
     public void run() {
@@ -440,10 +1074,28 @@ public class Fetcher2 extends Configured implements MapRunnable {
       try {
         
         while (true) {
-          fit = fetchQueues.getFetchItem();
+          outputDropped();
+          if (fetchQueues.isDeadlineScheduling()) {
+            // block until the earliest queue becomes eligible
+            spinWaiting.incrementAndGet();
+            try {
+              fit = fetchQueues.awaitFetchItem();
+            } finally {
+              spinWaiting.decrementAndGet();
+            }
+            if (fit == null) {
+              // dropped items to write out
+              if (!fetchQueues.isFinished()) continue;
+              // all done, finish this thread
+              outputDropped();
+              return;
+            }
+          } else {
+            fit = fetchQueues.getFetchItem();
+          }
           if (fit == null) {
             if (feeder.isAlive() || fetchQueues.getTotalSize() > 0) {
-              LOG.debug(getName() + " spin-waiting ...");
+              LOG.debug(Thread.currentThread().getName() + " spin-waiting ...");
               // spin-wait.
               spinWaiting.incrementAndGet();
               try {
@@ -453,6 +1105,7 @@ public class Fetcher2 extends Configured implements MapRunnable {
               continue;
             } else {
               // all done, finish this thread
+              outputDropped();
               return;
             }
           }
@@ -468,7 +1121,7 @@ public class Fetcher2 extends Configured implements MapRunnable {
                 LOG.debug("redirectCount=" + redirectCount);
               }
               redirecting = false;
-              Protocol protocol = this.protocolFactory.getProtocol(fit.url.toString());
+              Protocol protocol = protocolFactory.getProtocol(fit.url.toString());
               RobotRules rules = protocol.getRobotRules(fit.url, fit.datum);
               if (!rules.isAllowed(fit.u)) {
                 // unblock
@@ -488,13 +1141,19 @@ public class Fetcher2 extends Configured implements MapRunnable {
                   continue;
                 } else {
                   FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
-                  fiq.crawlDelay = rules.getCrawlDelay();
+                  fetchQueues.setCrawlDelay(fiq, rules.getCrawlDelay());
+                  HostDatum host = getHostStats(fit);
+                  synchronized (host) {
+                    host.setCrawlDelay(rules.getCrawlDelay());
+                  }
                 }
               }
+              fit.started = System.currentTimeMillis();
               ProtocolOutput output = protocol.getProtocolOutput(fit.url, fit.datum);
               ProtocolStatus status = output.getStatus();
               Content content = output.getContent();
               ParseStatus pstatus = null;
+              reportFetch(fit, output);
               // unblock queue
               fetchQueues.finishFetchItem(fit);
 
@@ -514,14 +1173,15 @@ public class Fetcher2 extends Configured implements MapRunnable {
                         pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
                   String newUrl = pstatus.getMessage();
                   newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
-                  newUrl = this.urlFilters.filter(newUrl);
+                  newUrl = urlFilters.filter(newUrl);
                   if (newUrl != null && !newUrl.equals(fit.url.toString())) {
                     output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_REDIR_PERM);
                     Text redirUrl = new Text(newUrl);
+                    metrics.redirected();
                     if (maxRedirect > 0) {
                       redirecting = true;
                       redirectCount++;
-                      fit = FetchItem.create(redirUrl, new CrawlDatum(), byIP);
+                      fit = FetchItem.create(redirUrl, new CrawlDatum(), byIP, dns);
                       FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
                       fiq.addInProgressFetchItem(fit);
                       if (LOG.isDebugEnabled()) {
@@ -551,13 +1211,14 @@ public class Fetcher2 extends Configured implements MapRunnable {
                 output(fit.url, fit.datum, content, status, code);
                 String newUrl = status.getMessage();
                 newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
-                newUrl = this.urlFilters.filter(newUrl);
+                newUrl = urlFilters.filter(newUrl);
                 if (newUrl != null && !newUrl.equals(fit.url.toString())) {
                   Text redirUrl = new Text(newUrl);
+                  metrics.redirected();
                   if (maxRedirect > 0) {
                     redirecting = true;
                     redirectCount++;
-                    fit = FetchItem.create(redirUrl, new CrawlDatum(), byIP);
+                    fit = FetchItem.create(redirUrl, new CrawlDatum(), byIP, dns);
                     FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
                     fiq.addInProgressFetchItem(fit);
                     if (LOG.isDebugEnabled()) {
@@ -590,10 +1251,13 @@ public class Fetcher2 extends Configured implements MapRunnable {
               case ProtocolStatus.NOTFOUND:
               case ProtocolStatus.ACCESS_DENIED:
               case ProtocolStatus.ROBOTS_DENIED:
-              case ProtocolStatus.NOTMODIFIED:
                 output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_GONE);
                 break;
 
+              case ProtocolStatus.NOTMODIFIED:    // unchanged, keep old data
+                output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_NOTMODIFIED);
+                break;
+
               default:
                 if (LOG.isWarnEnabled()) {
                   LOG.warn("Unknown ProtocolStatus: " + status.getCode());
@@ -627,18 +1291,74 @@ public class Fetcher2 extends Configured implements MapRunnable {
       } finally {
         if (fit != null) fetchQueues.finishFetchItem(fit);
         activeThreads.decrementAndGet(); // count threads
-        LOG.info("-finishing thread " + getName() + ", activeThreads=" + activeThreads);
+        LOG.info("-finishing thread " + Thread.currentThread().getName()
+                 + ", activeThreads=" + activeThreads);
+      }
+    }
+
+    /**
+     * Record the outcome of a fetch in the metrics, and let the queue of the
+     * item adapt its delay to it.
+     */
+    void reportFetch(FetchItem fit, ProtocolOutput output) {
+      long elapsed = System.currentTimeMillis() - fit.started;
+      ProtocolStatus status = output.getStatus();
+      Content content = output.getContent();
+      if (fit.queued > 0) metrics.waited(fit.started - fit.queued);
+      metrics.fetched(fit.queueID, elapsed, status,
+                      content != null && content.getContent() != null
+                        ? content.getContent().length : 0);
+      boolean error = status.getCode() == ProtocolStatus.EXCEPTION;
+      fetchQueues.reportFetch(fit, elapsed, error);
+      HostDatum host = getHostStats(fit);
+      synchronized (host) {
+        host.fetched(elapsed, error);
+      }
+    }
+
+    /**
+     * Record a redirect target for later fetching. A content redirect also
+     * records the original url as permanently redirected.
+     */
+    void redirect(Text url, CrawlDatum datum, String newUrl,
+                  ProtocolStatus status, String type) throws Exception {
+      newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
+      newUrl = urlFilters.filter(newUrl);
+      if (newUrl != null && !newUrl.equals(url.toString())) {
+        if (status != null) {
+          output(url, datum, null, status, CrawlDatum.STATUS_FETCH_REDIR_PERM);
+        }
+        Text redirUrl = new Text(newUrl);
+        metrics.redirected();
+        output(redirUrl, new CrawlDatum(), null, null, CrawlDatum.STATUS_LINKED);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(" - " + type + " redirect to " + redirUrl + " (fetching later)");
+        }
+      } else if (LOG.isDebugEnabled()) {
+        LOG.debug(" - " + type + " redirect skipped: " +
+                 (newUrl != null ? "to same url" : "filtered"));
+      }
+    }
+
+    /** Send the items of given up queues back to the crawldb for a retry. */
+    void outputDropped() {
+      List<FetchItem> items = fetchQueues.drainDropped();
+      for (int i = 0; i < items.size(); i++) {
+        FetchItem it = items.get(i);
+        output(it.url, it.datum, null, ProtocolStatus.STATUS_RETRY,
+               CrawlDatum.STATUS_FETCH_RETRY);
       }
     }
 
-    private void logError(Text url, String message) {
+    void logError(Text url, String message) {
       if (LOG.isInfoEnabled()) {
         LOG.info("fetch of " + url + " failed with: " + message);
       }
       errors.incrementAndGet();
+      metrics.error();
     }
 
-    private ParseStatus output(Text key, CrawlDatum datum,
+    ParseStatus output(Text key, CrawlDatum datum,
                         Content content, ProtocolStatus pstatus, int status) {
 
       datum.setStatus(status);
@@ -648,6 +1368,8 @@ public class Fetcher2 extends Configured implements MapRunnable {
       if (content == null) {
         String url = key.toString();
         content = new Content(url, url, new byte[0], "", new Metadata(), this.conf);
+      } else if (status == CrawlDatum.STATUS_FETCH_SUCCESS) {
+        Fetcher.setValidators(datum, content);
       }
       Metadata metadata = content.getMetadata();
       // add segment to metadata
@@ -662,45 +1384,109 @@ public class Fetcher2 extends Configured implements MapRunnable {
         }
       }
 
+      if (parsing && status == CrawlDatum.STATUS_FETCH_SUCCESS
+          && parseExecutor != null) {
+        parseLater(key, datum, content, pstatus);
+        return null;
+      }
+
       Parse parse = null;
       if (parsing && status == CrawlDatum.STATUS_FETCH_SUCCESS) {
-        ParseStatus parseStatus;
-        try {
-          parse = this.parseUtil.parse(content);
-          parseStatus = parse.getData().getStatus();
-        } catch (Exception e) {
-          parseStatus = new ParseStatus(e);
+        parse = parse(key, datum, content);
+      }
+      collect(key, datum, content, parse, status);
+      if (parse != null) return parse.getData().getStatus();
+      else return null;
+    }
+
+    /**
+     * Hand a fetched page over to the parse workers, waiting while
+     * fetcher.parse.queue pages are pending already. A content redirect
+     * found by the parser is recorded for a later fetch.
+     */
+    private void parseLater(final Text key, final CrawlDatum datum,
+                            final Content content, final ProtocolStatus status) {
+      parseWaiting.incrementAndGet();
+      try {
+        parseSlots.acquireUninterruptibly();
+      } finally {
+        parseWaiting.decrementAndGet();
+      }
+      try {
+        parseExecutor.execute(new Runnable() {
+            public void run() {
+              try {
+                Parse parse = parse(key, datum, content);
+                collect(key, datum, content, parse, CrawlDatum.STATUS_FETCH_SUCCESS);
+                ParseStatus pstatus = parse.getData().getStatus();
+                if (pstatus.isSuccess() &&
+                    pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+                  redirect(key, datum, pstatus.getMessage(), status, "content");
+                }
+              } catch (Throwable t) {
+                if (LOG.isWarnEnabled()) {
+                  LOG.warn("Error parsing: " + key + ": " + t);
+                }
+              } finally {
+                parseSlots.release();
+              }
+            }
+          });
+      } catch (RejectedExecutionException e) {
+        // shutting down, parse in this thread
+        parseSlots.release();
+        collect(key, datum, content, parse(key, datum, content),
+                CrawlDatum.STATUS_FETCH_SUCCESS);
+      }
+    }
+
+    /** Parse a page, and compute its signature and score. */
+    private Parse parse(Text key, CrawlDatum datum, Content content) {
+      Metadata metadata = content.getMetadata();
+      Parse parse = null;
+      ParseStatus parseStatus;
+      long start = System.currentTimeMillis();
+      try {
+        parse = parseUtil.parse(content);
+        parseStatus = parse.getData().getStatus();
+      } catch (Exception e) {
+        parseStatus = new ParseStatus(e);
+      }
+      if (!parseStatus.isSuccess()) {
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Error parsing: " + key + ": " + parseStatus);
         }
-        if (!parseStatus.isSuccess()) {
-          if (LOG.isWarnEnabled()) {
-            LOG.warn("Error parsing: " + key + ": " + parseStatus);
-          }
-          parse = parseStatus.getEmptyParse(getConf());
-        }
-        // Calculate page signature. For non-parsing fetchers this will
-        // be done in ParseSegment
-        byte[] signature = SignatureFactory.getSignature(getConf()).calculate(content, parse);
-        metadata.set(YuQing.SIGNATURE_KEY, StringUtil.toHexString(signature));
-        datum.setSignature(signature);
-        // Ensure segment name and score are in parseData metadata
-        parse.getData().getContentMeta().set(YuQing.SEGMENT_NAME_KEY, segmentName);
-        parse.getData().getContentMeta().set(YuQing.SIGNATURE_KEY, StringUtil.toHexString(signature));
-        try {
-          scfilters.passScoreAfterParsing(key, content, parse);
-        } catch (Exception e) {
-          if (LOG.isWarnEnabled()) {
-            e.printStackTrace(LogUtil.getWarnStream(LOG));
-            LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
-          }
+        parse = parseStatus.getEmptyParse(getConf());
+      }
+      // Calculate page signature. For non-parsing fetchers this will
+      // be done in ParseSegment
+      byte[] signature = SignatureFactory.getSignature(getConf()).calculate(content, parse);
+      metadata.set(YuQing.SIGNATURE_KEY, StringUtil.toHexString(signature));
+      datum.setSignature(signature);
+      // Ensure segment name and score are in parseData metadata
+      parse.getData().getContentMeta().set(YuQing.SEGMENT_NAME_KEY, segmentName);
+      parse.getData().getContentMeta().set(YuQing.SIGNATURE_KEY, StringUtil.toHexString(signature));
+      try {
+        scfilters.passScoreAfterParsing(key, content, parse);
+      } catch (Exception e) {
+        if (LOG.isWarnEnabled()) {
+          e.printStackTrace(LogUtil.getWarnStream(LOG));
+          LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
         }
-        
       }
+      parsed.incrementAndGet();
+      metrics.parsed(System.currentTimeMillis() - start);
+      return parse;
+    }
 
+    private void collect(Text key, CrawlDatum datum, Content content,
+                         Parse parse, int status) {
       try {
         output.collect
           (key,
            new FetcherOutput(datum,
-                             storingContent ? content : null,
+                             storingContent && status != CrawlDatum.STATUS_FETCH_NOTMODIFIED
+                               ? content : null,
                              parse != null ? new ParseImpl(parse) : null));
       } catch (IOException e) {
         if (LOG.isFatalEnabled()) {
@@ -708,12 +1494,227 @@ public class Fetcher2 extends Configured implements MapRunnable {
           LOG.fatal("fetcher caught:"+e.toString());
         }
       }
-      if (parse != null) return parse.getData().getStatus();
-      else return null;
     }
     
   }
 
+  /** A completed request of the nio engine. */
+  private static class NioResult {
+    FetchItem fit;
+    ProtocolOutput output;
+    
+    NioResult(FetchItem fit, ProtocolOutput output) {
+      this.fit = fit;
+      this.output = output;
+    }
+  }
+  
+  /**
+   * Receives completed requests from the {@link NioHttpClient} selector
+   * threads, and hands them over to NioFetcherTask-s.
+   */
+  private class NioCallback implements NioHttpClient.Callback {
+    
+    public void completed(URL url, Object attachment, Response response) {
+      ProtocolOutput output;
+      try {
+        output = nioClient.toProtocolOutput(response);
+      } catch (Throwable t) {
+        output = new ProtocolOutput(null, new ProtocolStatus(t));
+      }
+      done((FetchItem) attachment, output);
+    }
+    
+    public void failed(URL url, Object attachment, Throwable t) {
+      done((FetchItem) attachment, new ProtocolOutput(null, new ProtocolStatus(t)));
+    }
+    
+    private void done(FetchItem fit, ProtocolOutput output) {
+      // enqueue before decrementing, so that a result is always either
+      // counted as in flight or visible in the completion queue
+      nioCompleted.add(new NioResult(fit, output));
+      nioInFlight.decrementAndGet();
+    }
+  }
+  
+  /**
+   * This class picks items from queues and submits http requests to the
+   * {@link NioHttpClient}, without waiting for them to complete. It also
+   * processes completed requests. Redirects are not followed immediately,
+   * but recorded for later fetching. Non-http urls are fetched
+   * synchronously by the protocol plugins.
+   */
+  private class NioFetcherTask extends FetcherTask {
+    private NioCallback callback = new NioCallback();
+    
+    public NioFetcherTask(Configuration conf) {
+      super(conf);
+    }
+    
+    public void run() {
+      activeThreads.incrementAndGet(); // count threads
+      try {
+        while (true) {
+          // process completed requests first, so that their queues unblock
+          NioResult result;
+          while ((result = nioCompleted.poll()) != null) {
+            complete(result.fit, result.output);
+          }
+          outputDropped();
+          FetchItem fit = null;
+          if (nioInFlight.get() < nioMaxInFlight) {
+            fit = fetchQueues.pollFetchItem();
+          }
+          if (fit != null) {
+            dispatch(fit);
+            continue;
+          }
+          if (!feeder.isAlive() && fetchQueues.getTotalSize() == 0
+              && nioInFlight.get() == 0 && nioCompleted.isEmpty()
+              && fetchQueues.getDroppedSize() == 0) {
+            // all done, finish this thread
+            return;
+          }
+          // wait for completed requests, or for queues to become ready
+          spinWaiting.incrementAndGet();
+          try {
+            result = nioCompleted.poll(500, TimeUnit.MILLISECONDS);
+          } finally {
+            spinWaiting.decrementAndGet();
+          }
+          if (result != null) complete(result.fit, result.output);
+        }
+      } catch (Throwable e) {
+        if (LOG.isFatalEnabled()) {
+          e.printStackTrace(LogUtil.getFatalStream(LOG));
+          LOG.fatal("fetcher caught:"+e.toString());
+        }
+      } finally {
+        activeThreads.decrementAndGet(); // count threads
+        LOG.info("-finishing thread " + Thread.currentThread().getName()
+                 + ", activeThreads=" + activeThreads);
+      }
+    }
+    
+    private void dispatch(FetchItem fit) {
+      lastRequestStart.set(System.currentTimeMillis());
+      try {
+        if (LOG.isInfoEnabled()) { LOG.info("fetching " + fit.url); }
+        Protocol protocol = protocolFactory.getProtocol(fit.url.toString());
+        RobotRules rules = protocol.getRobotRules(fit.url, fit.datum);
+        if (!rules.isAllowed(fit.u)) {
+          // unblock
+          fetchQueues.finishFetchItem(fit);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Denied by robots.txt: " + fit.url);
+          }
+          output(fit.url, fit.datum, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatum.STATUS_FETCH_GONE);
+          return;
+        }
+        if (rules.getCrawlDelay() > 0) {
+          if (rules.getCrawlDelay() > maxCrawlDelay) {
+            // unblock
+            fetchQueues.finishFetchItem(fit);
+            LOG.debug("Crawl-Delay for " + fit.url + " too long (" + rules.getCrawlDelay() + "), skipping");
+            output(fit.url, fit.datum, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatum.STATUS_FETCH_GONE);
+            return;
+          } else {
+            FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
+            fetchQueues.setCrawlDelay(fiq, rules.getCrawlDelay());
+          }
+        }
+        fit.started = System.currentTimeMillis();
+        if ("http".equals(fit.u.getProtocol())) {
+          nioInFlight.incrementAndGet();
+          try {
+            nioClient.submit(fit.u, fit.datum, fit, callback);
+          } catch (IOException e) {
+            nioInFlight.decrementAndGet();
+            complete(fit, new ProtocolOutput(null, new ProtocolStatus(e)));
+          }
+        } else {
+          complete(fit, protocol.getProtocolOutput(fit.url, fit.datum));
+        }
+      } catch (Throwable t) {                 // unexpected exception
+        // unblock
+        fetchQueues.finishFetchItem(fit);
+        logError(fit.url, t.toString());
+        output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED, CrawlDatum.STATUS_FETCH_RETRY);
+      }
+    }
+    
+    private void complete(FetchItem fit, ProtocolOutput output) {
+      try {
+        ProtocolStatus status = output.getStatus();
+        Content content = output.getContent();
+        ParseStatus pstatus = null;
+        reportFetch(fit, output);
+        // unblock queue
+        fetchQueues.finishFetchItem(fit);
+        
+        switch(status.getCode()) {
+        
+        case ProtocolStatus.WOULDBLOCK:
+          // retry ?
+          fetchQueues.addFetchItem(fit);
+          break;
+          
+        case ProtocolStatus.SUCCESS:        // got a page
+          pstatus = output(fit.url, fit.datum, content, status, CrawlDatum.STATUS_FETCH_SUCCESS);
+          updateStatus(content.getContent().length);
+          if (pstatus != null && pstatus.isSuccess() &&
+              pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+            redirect(fit.url, fit.datum, pstatus.getMessage(), status, "content");
+          }
+          break;
+          
+        case ProtocolStatus.MOVED:         // redirect
+        case ProtocolStatus.TEMP_MOVED:
+          int code;
+          if (status.getCode() == ProtocolStatus.MOVED) {
+            code = CrawlDatum.STATUS_FETCH_REDIR_PERM;
+          } else {
+            code = CrawlDatum.STATUS_FETCH_REDIR_TEMP;
+          }
+          output(fit.url, fit.datum, content, status, code);
+          redirect(fit.url, fit.datum, status.getMessage(), null, "protocol");
+          break;
+          
+        case ProtocolStatus.EXCEPTION:
+          logError(fit.url, status.getMessage());
+          /* FALLTHROUGH */
+        case ProtocolStatus.RETRY:          // retry
+          fit.datum.setRetriesSinceFetch(fit.datum.getRetriesSinceFetch()+1);
+          /* FALLTHROUGH */
+          // intermittent blocking - retry without increasing the counter
+        case ProtocolStatus.BLOCKED:
+          output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_RETRY);
+          break;
+          
+        case ProtocolStatus.GONE:           // gone
+        case ProtocolStatus.NOTFOUND:
+        case ProtocolStatus.ACCESS_DENIED:
+        case ProtocolStatus.ROBOTS_DENIED:
+          output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_GONE);
+          break;
+          
+        case ProtocolStatus.NOTMODIFIED:    // unchanged, keep old data
+          output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_NOTMODIFIED);
+          break;
+          
+        default:
+          if (LOG.isWarnEnabled()) {
+            LOG.warn("Unknown ProtocolStatus: " + status.getCode());
+          }
+          output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_GONE);
+        }
+      } catch (Throwable t) {                 // unexpected exception
+        logError(fit.url, t.toString());
+        output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED, CrawlDatum.STATUS_FETCH_RETRY);
+      }
+    }
+  }
+
   public Fetcher2() { super(null); }
 
   public Fetcher2(Configuration conf) { super(conf); }
@@ -731,7 +1732,95 @@ public class Fetcher2 extends Configured implements MapRunnable {
       pages+" pages, "+errors+" errors, "
       + Math.round(((float)pages.get()*10)/elapsed)/10.0+" pages/s, "
       + Math.round(((((float)bytes.get())*8)/1024)/elapsed)+" kb/s, ";
+    if (parseExecutor != null) {
+      status += parsed + " parsed, "
+        + Math.round(((float)parsed.get()*10)/elapsed)/10.0+" parsed/s, "
+        + (parseQueueSize() - parseSlots.availablePermits()) + " to parse, ";
+    }
     reporter.setStatus(status);
+
+    metrics.setGauge("activeThreads", activeThreads);
+    metrics.setGauge("spinWaiting", spinWaiting);
+    metrics.setGauge("queuedUrls", fetchQueues.getTotalSize());
+    metrics.setGauge("queues", fetchQueues.getQueueCount());
+    metrics.setGauge("inProgress", fetchQueues.getInProgressSize());
+    if (nioClient != null) metrics.setGauge("inFlight", nioInFlight);
+    if (parseExecutor != null) {
+      metrics.setGauge("toParse", parseQueueSize() - parseSlots.availablePermits());
+    }
+    metrics.setGauge("dnsHitRate", fetchQueues.dns.getHitRate());
+    metrics.setGauge("dnsQueryMs", fetchQueues.dns.getAverageLookupTime());
+    metrics.rollup(reporter);
+  }
+
+  /**
+   * Stop fetching: the feeder stops, and the urls not fetched yet are
+   * written out as retries, to be fetched in a later segment.
+   */
+  private void halt(String reason) {
+    feeder.halt();
+    int dropped = fetchQueues.halt();
+    if (LOG.isWarnEnabled()) {
+      LOG.warn("Fetcher: " + reason + ", stopping. " + dropped
+               + " queued urls left for later.");
+    }
+  }
+
+  /**
+   * What was learned about the host of an item so far. The address of the
+   * host is taken from the DNS cache while it is being fetched, as the
+   * feeder or the protocol resolved it just before.
+   */
+  HostDatum getHostStats(FetchItem fit) {
+    String host = fit.u.getHost().toLowerCase();
+    HostDatum datum = hostStats.get(host);
+    if (datum == null) {
+      datum = new HostDatum();
+      HostDatum old = hostStats.putIfAbsent(host, datum);
+      if (old != null) datum = old;
+    }
+    if (datum.getIp().length() == 0) {
+      InetAddress addr = fetchQueues.dns.getCachedAddress(host);
+      if (addr != null) {
+        synchronized (datum) {
+          datum.setIp(addr.getHostAddress());
+        }
+      }
+    }
+    return datum;
+  }
+
+  /**
+   * Write what was learned about the hosts to <code>crawl_host</code> in
+   * the segment, one file per task, for the host db.
+   */
+  private void writeHostStats() throws IOException {
+    if (hostStats.isEmpty()) return;
+    String name = getConf().get("map.input.file");
+    name = name != null ? new Path(name).getName()
+                        : "part-" + getConf().getInt("mapred.task.partition", 0);
+    Path path = new Path(new Path(((JobConf) getConf()).getOutputPath(),
+                                  HostDb.SEGMENT_DIR_NAME), name);
+    FileSystem fs = FileSystem.get(getConf());
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, getConf(),
+        path, Text.class, HostDatum.class);
+    try {
+      Text key = new Text();
+      for (Map.Entry<String, HostDatum> e : hostStats.entrySet()) {
+        HostDatum datum = e.getValue();
+        key.set(e.getKey());
+        synchronized (datum) {
+          writer.append(key, datum);
+        }
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /** Number of fetched pages which may wait for a parse worker. */
+  private int parseQueueSize() {
+    return getConf().getInt("fetcher.parse.queue", 100);
   }
 
   public void configure(JobConf job) {
@@ -761,12 +1850,62 @@ public class Fetcher2 extends Configured implements MapRunnable {
 
     this.output = output;
     this.reporter = reporter;
+    Set<Long> done = null;
+    if (getConf().getBoolean("fetcher.resumable", false)) {
+      String name = getConf().get("map.input.file");
+      name = name != null ? new Path(name).getName()
+                          : "part-" + getConf().getInt("mapred.task.partition", 0);
+      checkpoint = new FetchCheckpoint(getConf(),
+                                       ((JobConf) getConf()).getOutputPath(),
+                                       name, output);
+      done = checkpoint.replay();
+      this.output = checkpoint;
+    }
     this.fetchQueues = new FetchItemQueues(getConf());
+    this.metrics = new FetcherMetrics(getConf());
+    metrics.start(getConf(), getConf().get("mapred.task.id", segmentName));
 
     int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: threads: " + threadCount); }
 
-    feeder = new QueueFeeder(input, fetchQueues, threadCount * 50);
+    String engine = getConf().get("fetcher.engine", ENGINE_THREADS);
+    boolean nio = ENGINE_NIO.equalsIgnoreCase(engine);
+    int queueSize = threadCount * 50;
+    if (nio) {
+      nioMaxInFlight = getConf().getInt("fetcher.nio.max.inflight", 1000);
+      nioCompleted = new LinkedBlockingQueue<NioResult>();
+      nioClient = new NioHttpClient(getConf());
+      nioClient.start();
+      queueSize = Math.max(queueSize, nioMaxInFlight * 2);
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Fetcher: nio engine, max in-flight requests: " + nioMaxInFlight);
+      }
+    }
+
+    if (parsing && getConf().getBoolean("fetcher.parse.pipelined", false)) {
+      int parseThreads = getConf().getInt("fetcher.parse.threads", 0);
+      if (parseThreads <= 0) {
+        parseThreads = Runtime.getRuntime().availableProcessors();
+      }
+      parseSlots = new Semaphore(parseQueueSize());
+      parseExecutor = new ThreadPoolExecutor(parseThreads, parseThreads,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "ParseWorker-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Fetcher: parse threads: " + parseThreads);
+      }
+    }
+
+    feeder = new QueueFeeder(input, fetchQueues, queueSize,
+                             getConf().getInt("fetcher.dns.lookahead", 100),
+                             parseSlots, done);
     //feeder.setPriority((Thread.MAX_PRIORITY + Thread.NORM_PRIORITY) / 2);
     feeder.start();
 
@@ -774,35 +1913,122 @@ public class Fetcher2 extends Configured implements MapRunnable {
     getConf().setBoolean("http.plugin.check.blocking", false);
     getConf().setBoolean("http.plugin.check.robots", false);
     
+    boolean virtual = VirtualThreads.isEnabled(getConf(), "fetcher.threads.virtual");
+    if (virtual && LOG.isInfoEnabled()) {
+      LOG.info("Fetcher: using virtual threads");
+    }
+    urlFilters = new URLFilters(getConf());
+    scfilters = new ScoringFilters(getConf());
+    parseUtil = new ParseUtil(getConf());
+    protocolFactory = new ProtocolFactory(getConf());
+    normalizers = new URLNormalizers(getConf(), URLNormalizers.SCOPE_FETCHER);
     for (int i = 0; i < threadCount; i++) {       // spawn threads
-      new FetcherThread(getConf()).start();
+      FetcherTask task = nio ? new NioFetcherTask(getConf())
+                             : new FetcherTask(getConf());
+      VirtualThreads.start((nio ? "NioFetcherThread-" : "FetcherThread-") + i,
+                           task, virtual);
     }
 
     // select a timeout that avoids a task timeout
     long timeout = getConf().getInt("mapred.task.timeout", 10*60*1000)/2;
 
-    do {                                          // wait for threads to exit
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {}
+    // stop fetching when out of time, or when the fetch rate stays too low
+    long timeLimit = getConf().getLong("fetcher.timelimit.mins", -1);
+    if (timeLimit > 0) timeLimit = start + timeLimit * 60 * 1000;
+    float minPagesPerSec = getConf().getFloat("fetcher.throughput.threshold.pages", -1);
+    int maxLowChecks = getConf().getInt("fetcher.throughput.threshold.sequence", 5);
+    long checkAfter = start + getConf().getInt("fetcher.throughput.threshold.check.after", 120) * 1000L;
+    int lowChecks = 0;
+    int lastPages = 0;
+    int lastParsed = 0;
+    long lastCheck = start;
+    boolean halted = false;
+
+    try {
+      do {                                        // wait for threads to exit
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {}
+
+        reportStatus();
+        if (checkpoint != null) checkpoint.roll();
+        LOG.info("-activeThreads=" + activeThreads + ", spinWaiting=" + spinWaiting.get()
+            + ", fetchQueues.totalSize=" + fetchQueues.getTotalSize()
+            + (nio ? ", inFlight=" + nioInFlight.get() : ""));
+
+        long now = System.currentTimeMillis();
+        if (!halted && minPagesPerSec > 0 && now > checkAfter) {
+          float rate = (pages.get() - lastPages) * 1000.0f / Math.max(1, now - lastCheck);
+          lowChecks = rate < minPagesPerSec ? lowChecks + 1 : 0;
+          if (lowChecks >= maxLowChecks) {
+            halted = true;
+            halt("fetch rate " + rate + " pages/s below threshold "
+                 + minPagesPerSec);
+          }
+        }
+        lastPages = pages.get();
+        lastCheck = now;
+        if (!halted && timeLimit > 0 && now > timeLimit) {
+          halted = true;
+          halt("time limit reached");
+        }
 
-      reportStatus();
-      LOG.info("-activeThreads=" + activeThreads + ", spinWaiting=" + spinWaiting.get()
-          + ", fetchQueues.totalSize=" + fetchQueues.getTotalSize());
+        if (!feeder.isAlive() && fetchQueues.getTotalSize() < 5) {
+          fetchQueues.dump();
+        }
+        // threads waiting for a parse slot aren't hung while the parse
+        // workers make progress
+        if (parseWaiting.get() > 0 && parsed.get() != lastParsed) {
+          lastRequestStart.set(now);
+        }
+        lastParsed = parsed.get();
+        // some requests seem to hang, despite all intentions
+        if ((System.currentTimeMillis() - lastRequestStart.get()) > timeout) {
+          if (LOG.isWarnEnabled()) {
+            LOG.warn("Aborting with "+activeThreads+" hung threads.");
+          }
+          break;                                  // but parse what was fetched
+        }
 
-      if (!feeder.isAlive() && fetchQueues.getTotalSize() < 5) {
-        fetchQueues.dump();
+      } while (activeThreads.get() > 0);
+      LOG.info("-activeThreads=" + activeThreads);
+      if (parseExecutor != null) {
+        // let the parse workers finish the pages fetched so far
+        parseExecutor.shutdown();
+        lastParsed = parsed.get();
+        long lastProgress = System.currentTimeMillis();
+        try {
+          while (!parseExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+            reportStatus();
+            LOG.info("-parsing, " + parseExecutor.getQueue().size() + " pages left");
+            if (parsed.get() != lastParsed) {
+              lastParsed = parsed.get();
+              lastProgress = System.currentTimeMillis();
+            } else if ((System.currentTimeMillis() - lastProgress) > timeout) {
+              if (LOG.isWarnEnabled()) {
+                LOG.warn("Aborting with hung parse workers.");
+              }
+              break;
+            }
+          }
+        } catch (InterruptedException e) {}
       }
-      // some requests seem to hang, despite all intentions
-      if ((System.currentTimeMillis() - lastRequestStart.get()) > timeout) {
-        if (LOG.isWarnEnabled()) {
-          LOG.warn("Aborting with "+activeThreads+" hung threads.");
-        }
-        return;
+    } finally {
+      if (parseExecutor != null) parseExecutor.shutdownNow();
+      if (checkpoint != null) checkpoint.close();
+      if (nioClient != null) nioClient.stop();
+      try {
+        writeHostStats();
+      } catch (IOException e) {
+        LOG.warn("Cannot write host statistics: " + e);
       }
-
-    } while (activeThreads.get() > 0);
-    LOG.info("-activeThreads=" + activeThreads);
+      if (fetchQueues.hostDb != null) fetchQueues.hostDb.close();
+      metrics.stop();
+      if (LOG.isInfoEnabled()) {
+        LOG.info("dns cache: " + fetchQueues.dns);
+        LOG.info("metrics: " + metrics);
+      }
+    }
     
   }
 
@@ -835,6 +2061,8 @@ public class Fetcher2 extends Configured implements MapRunnable {
     job.setOutputValueClass(FetcherOutput.class);
 
     JobClient.runJob(job);
+    // the segment is complete, earlier attempts aren't needed anymore
+    FetchCheckpoint.delete(FileSystem.get(job), segment);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: done"); }
   }
 
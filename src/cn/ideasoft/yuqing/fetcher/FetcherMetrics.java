@@ -0,0 +1,406 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.fetcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.Reporter;
+
+import cn.ideasoft.yuqing.protocol.ProtocolStatus;
+import cn.ideasoft.yuqing.util.Histogram;
+import cn.ideasoft.yuqing.util.StripedCounter;
+
+
+/**
+ * Runtime metrics of a fetcher task: request, queue wait and parse times,
+ * per-host request times, and counts of requests by protocol status.
+ * Fetcher threads record into striped counters and histograms, which is
+ * cheap enough for every request. The fetcher's main thread sets the
+ * gauges and rolls the counters up into Hadoop counters. While the task
+ * runs the metrics can be read through JMX (if <code>fetcher.metrics.jmx</code>
+ * is set) and, as plain text, from an http endpoint on
+ * <code>fetcher.metrics.http.port</code>.
+ */
+public class FetcherMetrics implements FetcherMetricsMBean {
+
+  public static final Log LOG = LogFactory.getLog(FetcherMetrics.class);
+
+  /** Hadoop counters. Times are in milliseconds. */
+  public static enum Counter {
+    FETCHED, BYTES, ERRORS, REDIRECTS, FETCH_TIME, QUEUE_WAIT_TIME, PARSE_TIME
+  }
+
+  /** Hadoop counters of requests by protocol status. */
+  public static enum Status {
+    SUCCESS(ProtocolStatus.SUCCESS),
+    FAILED(ProtocolStatus.FAILED),
+    PROTO_NOT_FOUND(ProtocolStatus.PROTO_NOT_FOUND),
+    GONE(ProtocolStatus.GONE),
+    MOVED(ProtocolStatus.MOVED),
+    TEMP_MOVED(ProtocolStatus.TEMP_MOVED),
+    NOTFOUND(ProtocolStatus.NOTFOUND),
+    RETRY(ProtocolStatus.RETRY),
+    EXCEPTION(ProtocolStatus.EXCEPTION),
+    ACCESS_DENIED(ProtocolStatus.ACCESS_DENIED),
+    ROBOTS_DENIED(ProtocolStatus.ROBOTS_DENIED),
+    REDIR_EXCEEDED(ProtocolStatus.REDIR_EXCEEDED),
+    NOTFETCHING(ProtocolStatus.NOTFETCHING),
+    NOTMODIFIED(ProtocolStatus.NOTMODIFIED),
+    WOULDBLOCK(ProtocolStatus.WOULDBLOCK),
+    BLOCKED(ProtocolStatus.BLOCKED),
+    OTHER(-1);
+
+    private static final Status[] BY_CODE = new Status[32];
+    static {
+      Status[] all = values();
+      for (int i = 0; i < all.length; i++) {
+        if (all[i].code >= 0) BY_CODE[all[i].code] = all[i];
+      }
+    }
+
+    private int code;
+
+    Status(int code) {
+      this.code = code;
+    }
+
+    public static Status forCode(int code) {
+      if (code < 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+        return OTHER;
+      }
+      return BY_CODE[code];
+    }
+  }
+
+  // longest time recorded in histograms: 20 minutes
+  private static final long MAX_TIME = 20 * 60 * 1000L;
+
+  private static final AtomicInteger INSTANCES = new AtomicInteger(0);
+
+  // fetch times of all fetchers of this JVM, if wanted
+  private static volatile Histogram processFetchTime = null;
+
+  private StripedCounter fetched = new StripedCounter();
+  private StripedCounter bytes = new StripedCounter();
+  private StripedCounter errors = new StripedCounter();
+  private StripedCounter redirects = new StripedCounter();
+  private StripedCounter[] statusCounts;
+
+  private Histogram fetchTime = new Histogram(MAX_TIME);
+  private Histogram queueWait = new Histogram(MAX_TIME);
+  private Histogram parseTime = new Histogram(MAX_TIME);
+
+  private ConcurrentHashMap<String, Histogram> hostFetchTime =
+    new ConcurrentHashMap<String, Histogram>();
+  private int maxHosts;
+
+  private Map<String, Object> gauges = new TreeMap<String, Object>();
+
+  // values last passed on to Hadoop counters
+  private long[] reportedCounters = new long[Counter.values().length];
+  private long[] reportedStatus = new long[Status.values().length];
+
+  private ObjectName mbeanName;
+  private HttpServer httpServer;
+
+  public FetcherMetrics(Configuration conf) {
+    this.maxHosts = conf.getInt("fetcher.metrics.hosts", 1000);
+    this.statusCounts = new StripedCounter[Status.values().length];
+    for (int i = 0; i < statusCounts.length; i++) {
+      statusCounts[i] = new StripedCounter();
+    }
+  }
+
+  /**
+   * Record the request times of all fetchers running in this JVM into a
+   * histogram, or stop if it is null. For tools running fetchers in
+   * process, such as FetcherBenchmark.
+   */
+  public static void setProcessFetchTime(Histogram histogram) {
+    processFetchTime = histogram;
+  }
+
+  /** Record a request time of a fetcher in this JVM, if wanted. */
+  public static void recordProcessFetchTime(long elapsed) {
+    Histogram h = processFetchTime;
+    if (h != null) h.record(elapsed);
+  }
+
+  /**
+   * Record a request to the host (queue) <code>host</code>, which took
+   * <code>elapsed</code> milliseconds and returned <code>bytes</code> bytes.
+   */
+  public void fetched(String host, long elapsed, ProtocolStatus status,
+                      int bytes) {
+    fetched.increment();
+    this.bytes.add(bytes);
+    fetchTime.record(elapsed);
+    recordProcessFetchTime(elapsed);
+    statusCounts[Status.forCode(status.getCode()).ordinal()].increment();
+    Histogram h = hostFetchTime.get(host);
+    if (h == null && hostFetchTime.size() < maxHosts) {
+      h = new Histogram(MAX_TIME);
+      Histogram old = hostFetchTime.putIfAbsent(host, h);
+      if (old != null) h = old;
+    }
+    if (h != null) h.record(elapsed);
+  }
+
+  /** Record the time an item waited in its queue before being fetched. */
+  public void waited(long elapsed) {
+    queueWait.record(elapsed);
+  }
+
+  /** Record the time taken to parse a page. */
+  public void parsed(long elapsed) {
+    parseTime.record(elapsed);
+  }
+
+  public void redirected() {
+    redirects.increment();
+  }
+
+  public void error() {
+    errors.increment();
+  }
+
+  /** Set a value describing the current state of the fetcher. */
+  public void setGauge(String name, Object value) {
+    synchronized (gauges) {
+      gauges.put(name, value);
+    }
+  }
+
+  /** Add the changes since the last call to the task's Hadoop counters. */
+  public synchronized void rollup(Reporter reporter) {
+    long[] counters = new long[] {
+      fetched.get(), bytes.get(), errors.get(), redirects.get(),
+      fetchTime.getSum(), queueWait.getSum(), parseTime.getSum()
+    };
+    Counter[] keys = Counter.values();
+    for (int i = 0; i < keys.length; i++) {
+      if (counters[i] != reportedCounters[i]) {
+        reporter.incrCounter(keys[i], counters[i] - reportedCounters[i]);
+        reportedCounters[i] = counters[i];
+      }
+    }
+    Status[] status = Status.values();
+    for (int i = 0; i < status.length; i++) {
+      long n = statusCounts[i].get();
+      if (n != reportedStatus[i]) {
+        reporter.incrCounter(status[i], n - reportedStatus[i]);
+        reportedStatus[i] = n;
+      }
+    }
+  }
+
+  /**
+   * Start serving the metrics through JMX and http, as configured. Failures
+   * are logged, the fetcher runs without them.
+   */
+  public void start(Configuration conf, String name) {
+    if (conf.getBoolean("fetcher.metrics.jmx", false)) {
+      try {
+        mbeanName = new ObjectName("cn.ideasoft.yuqing:type=Fetcher,name="
+                                   + ObjectName.quote(name + "-"
+                                       + INSTANCES.incrementAndGet()));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, mbeanName);
+      } catch (Exception e) {
+        LOG.warn("Couldn't register fetcher metrics with JMX: " + e);
+        mbeanName = null;
+      }
+    }
+    int port = conf.getInt("fetcher.metrics.http.port", -1);
+    if (port >= 0) {
+      try {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+              byte[] body = getReport().getBytes("UTF-8");
+              exchange.getResponseHeaders().set("Content-Type",
+                                                "text/plain; charset=UTF-8");
+              exchange.sendResponseHeaders(200, body.length);
+              OutputStream out = exchange.getResponseBody();
+              try {
+                out.write(body);
+              } finally {
+                out.close();
+              }
+            }
+          });
+        httpServer.start();
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Fetcher metrics at http://"
+                   + InetAddress.getLocalHost().getHostName() + ":"
+                   + httpServer.getAddress().getPort() + "/");
+        }
+      } catch (IOException e) {
+        LOG.warn("Couldn't start fetcher metrics http server on port "
+                 + port + ": " + e);
+        httpServer = null;
+      }
+    }
+  }
+
+  public void stop() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+      httpServer = null;
+    }
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (Exception e) {
+        LOG.warn("Couldn't unregister fetcher metrics: " + e);
+      }
+      mbeanName = null;
+    }
+  }
+
+  public long getFetched() {
+    return fetched.get();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getRedirects() {
+    return redirects.get();
+  }
+
+  public double getFetchTimeMean() {
+    return fetchTime.getMean();
+  }
+
+  public long getFetchTime90() {
+    return fetchTime.getPercentile(0.9);
+  }
+
+  public long getFetchTime99() {
+    return fetchTime.getPercentile(0.99);
+  }
+
+  public double getQueueWaitMean() {
+    return queueWait.getMean();
+  }
+
+  public long getQueueWait90() {
+    return queueWait.getPercentile(0.9);
+  }
+
+  public double getParseTimeMean() {
+    return parseTime.getMean();
+  }
+
+  public long getParseTime90() {
+    return parseTime.getPercentile(0.9);
+  }
+
+  public String getStatusCounts() {
+    StringBuffer buf = new StringBuffer();
+    Status[] status = Status.values();
+    for (int i = 0; i < status.length; i++) {
+      long n = statusCounts[i].get();
+      if (n == 0) continue;
+      if (buf.length() > 0) buf.append(", ");
+      buf.append(status[i]).append('=').append(n);
+    }
+    return buf.toString();
+  }
+
+  public String getGauges() {
+    StringBuffer buf = new StringBuffer();
+    synchronized (gauges) {
+      Iterator<Map.Entry<String, Object>> it = gauges.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Object> e = it.next();
+        if (buf.length() > 0) buf.append(", ");
+        buf.append(e.getKey()).append('=').append(e.getValue());
+      }
+    }
+    return buf.toString();
+  }
+
+  public String getReport() {
+    StringBuffer buf = new StringBuffer();
+    buf.append("fetched: ").append(fetched)
+      .append(", bytes: ").append(bytes)
+      .append(", errors: ").append(errors)
+      .append(", redirects: ").append(redirects).append('\n');
+    buf.append("status: ").append(getStatusCounts()).append('\n');
+    buf.append("gauges: ").append(getGauges()).append('\n');
+    buf.append("fetch time: ").append(fetchTime).append('\n');
+    buf.append("queue wait: ").append(queueWait).append('\n');
+    buf.append("parse time: ").append(parseTime).append('\n');
+    // slowest hosts first
+    List<Map.Entry<String, Histogram>> hosts =
+      new ArrayList<Map.Entry<String, Histogram>>(hostFetchTime.entrySet());
+    Collections.sort(hosts, new Comparator<Map.Entry<String, Histogram>>() {
+        public int compare(Map.Entry<String, Histogram> a,
+                           Map.Entry<String, Histogram> b) {
+          double ma = a.getValue().getMean();
+          double mb = b.getValue().getMean();
+          return ma > mb ? -1 : (ma < mb ? 1 : 0);
+        }
+      });
+    buf.append("fetch time by host (" + hosts.size() + " hosts):\n");
+    for (int i = 0; i < hosts.size(); i++) {
+      Map.Entry<String, Histogram> e = hosts.get(i);
+      buf.append("  ").append(e.getKey()).append(": ")
+        .append(e.getValue()).append('\n');
+    }
+    return buf.toString();
+  }
+
+  public String toString() {
+    return "fetched=" + fetched + ", bytes=" + bytes + ", errors=" + errors
+      + ", redirects=" + redirects + ", " + getStatusCounts()
+      + ", fetch time: " + fetchTime + ", queue wait: " + queueWait
+      + ", parse time: " + parseTime;
+  }
+
+}
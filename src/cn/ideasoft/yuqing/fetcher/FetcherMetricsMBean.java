@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.fetcher;
+
+
+/** JMX view of {@link FetcherMetrics}. Times are in milliseconds. */
+public interface FetcherMetricsMBean {
+
+  long getFetched();
+
+  long getBytes();
+
+  long getErrors();
+
+  long getRedirects();
+
+  double getFetchTimeMean();
+
+  long getFetchTime90();
+
+  long getFetchTime99();
+
+  double getQueueWaitMean();
+
+  long getQueueWait90();
+
+  double getParseTimeMean();
+
+  long getParseTime90();
+
+  /** Number of requests per protocol status. */
+  String getStatusCounts();
+
+  /** Current values of the fetcher's queues and threads. */
+  String getGauges();
+
+  /** Everything, as shown by the http endpoint. */
+  String getReport();
+
+}
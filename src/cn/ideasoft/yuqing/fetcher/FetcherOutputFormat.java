@@ -41,8 +41,14 @@ import cn.ideasoft.yuqing.protocol.Content;
 public class FetcherOutputFormat implements OutputFormat {
 
   public void checkOutputSpecs(FileSystem fs, JobConf job) throws IOException {
-    if (fs.exists(new Path(job.getOutputPath(), CrawlDatum.FETCH_DIR_NAME)))
-      throw new IOException("Segment already fetched!");
+    if (fs.exists(new Path(job.getOutputPath(), CrawlDatum.FETCH_DIR_NAME))) {
+      if (FetchCheckpoint.isResumable(fs, job)) {
+        // an unfinished resumable fetch, to be completed from its checkpoints
+        FetchCheckpoint.deletePartialOutput(fs, job.getOutputPath());
+      } else {
+        throw new IOException("Segment already fetched!");
+      }
+    }
   }
 
   public RecordWriter getRecordWriter(final FileSystem fs,
@@ -0,0 +1,625 @@
+/**
+ * Copyright 2005 The Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.fetcher;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+
+import cn.ideasoft.yuqing.crawl.CrawlDatum;
+import cn.ideasoft.yuqing.metadata.Metadata;
+import cn.ideasoft.yuqing.metadata.SpellCheckedMetadata;
+import cn.ideasoft.yuqing.metadata.YuQing;
+import cn.ideasoft.yuqing.net.DnsCache;
+import cn.ideasoft.yuqing.net.protocols.HttpDateFormat;
+import cn.ideasoft.yuqing.net.protocols.Response;
+import cn.ideasoft.yuqing.protocol.Content;
+import cn.ideasoft.yuqing.protocol.ProtocolOutput;
+import cn.ideasoft.yuqing.protocol.ProtocolStatus;
+import cn.ideasoft.yuqing.util.GZIPUtils;
+
+
+/**
+ * A non-blocking HTTP client, which multiplexes many concurrent GET requests
+ * over a few selector threads.
+ *
+ * <p>Requests are sent as HTTP/1.0 with one connection per request, so the
+ * response body is delimited either by Content-Length or by the end of the
+ * stream. The client uses the same <code>http.*</code> properties as the
+ * protocol-http plugin (agent, proxy, timeout and content limit), and maps
+ * responses to {@link ProtocolOutput}-s the same way.
+ *
+ * <p>Callbacks are invoked on the selector threads, so they must return
+ * quickly and must not block.
+ */
+public class NioHttpClient {
+
+  public static final Log LOG = LogFactory.getLog(NioHttpClient.class);
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /** Maximum size of the status line and headers. */
+  private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+  /** How often the selector threads look for timed out requests. */
+  private static final long TIMEOUT_CHECK_INTERVAL = 500;
+
+  private static final byte[] EMPTY_CONTENT = new byte[0];
+
+  /** Receives the outcome of a request submitted to the client. */
+  public static interface Callback {
+    /** The request completed, with any HTTP status code. */
+    public void completed(URL url, Object attachment, Response response);
+
+    /** The request failed with a network or protocol error. */
+    public void failed(URL url, Object attachment, Throwable t);
+  }
+
+  private Configuration conf;
+  private DnsCache dns;
+  private int timeout;
+  private int maxContent;
+  private String userAgent;
+  private String proxyHost;
+  private int proxyPort;
+  private boolean useProxy;
+  private boolean conditionalGet;
+
+  private IOThread[] ioThreads;
+  private AtomicInteger nextThread = new AtomicInteger(0);
+  private AtomicInteger inFlight = new AtomicInteger(0);
+
+  public NioHttpClient(Configuration conf) {
+    this.conf = conf;
+    this.dns = DnsCache.get(conf);
+    this.timeout = conf.getInt("http.timeout", 10000);
+    this.maxContent = conf.getInt("http.content.limit", 64 * 1024);
+    this.proxyHost = conf.get("http.proxy.host");
+    this.proxyPort = conf.getInt("http.proxy.port", 8080);
+    this.useProxy = (proxyHost != null && proxyHost.length() > 0);
+    this.conditionalGet = conf.getBoolean("http.conditional.get", true);
+    this.userAgent = getAgentString(conf);
+    this.ioThreads = new IOThread[Math.max(1, conf.getInt("fetcher.nio.io.threads", 2))];
+  }
+
+  /** Start the selector threads. */
+  public void start() throws IOException {
+    for (int i = 0; i < ioThreads.length; i++) {
+      ioThreads[i] = new IOThread(i);
+      ioThreads[i].start();
+    }
+  }
+
+  /** Stop the selector threads. Requests still in progress fail. */
+  public void stop() {
+    for (int i = 0; i < ioThreads.length; i++) {
+      if (ioThreads[i] != null) ioThreads[i].shutdown();
+    }
+  }
+
+  /** Returns the number of submitted requests which haven't completed yet. */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Submit a GET request for an http URL. The outcome is reported to the
+   * callback, together with the attachment. If a datum is given and
+   * <code>http.conditional.get</code> is set, the request is conditional on
+   * the page having changed since it was last fetched.
+   */
+  public void submit(URL url, CrawlDatum datum, Object attachment,
+                     Callback callback) throws IOException {
+    if (!"http".equals(url.getProtocol())) {
+      throw new IOException("Not an HTTP url: " + url);
+    }
+    String host = url.getHost();
+    int port = url.getPort() == -1 ? 80 : url.getPort();
+    String portString = url.getPort() == -1 ? "" : ":" + url.getPort();
+    String path = "".equals(url.getFile()) ? "/" : url.getFile();
+
+    StringBuffer req = new StringBuffer("GET ");
+    if (useProxy) {
+      req.append(url.getProtocol() + "://" + host + portString + path);
+    } else {
+      req.append(path);
+    }
+    req.append(" HTTP/1.0\r\n");
+    req.append("Host: ").append(host).append(portString).append("\r\n");
+    req.append("Accept-Encoding: x-gzip, gzip\r\n");
+    if (userAgent != null && userAgent.length() > 0) {
+      req.append("User-Agent: ").append(userAgent).append("\r\n");
+    }
+    if (conditionalGet && datum != null) {
+      if (datum.getModifiedTime() > 0) {
+        req.append("If-Modified-Since: ")
+          .append(HttpDateFormat.toString(datum.getModifiedTime())).append("\r\n");
+      }
+      Writable etag = datum.getMetaData().get(YuQing.WRITABLE_ETAG_KEY);
+      if (etag != null) {
+        req.append("If-None-Match: ").append(etag).append("\r\n");
+      }
+    }
+    req.append("\r\n");
+
+    // address resolution happens here, in the caller's thread, but is
+    // usually answered from the cache filled by the queue feeder
+    InetSocketAddress addr;
+    try {
+      addr = useProxy
+        ? new InetSocketAddress(dns.resolve(proxyHost), proxyPort)
+        : new InetSocketAddress(dns.resolve(host), port);
+    } catch (UnknownHostException e) {
+      throw new IOException("Unable to resolve: " + e.getMessage());
+    }
+
+    Exchange ex = new Exchange(url, attachment, callback, addr,
+        ByteBuffer.wrap(req.toString().getBytes("ISO-8859-1")));
+    inFlight.incrementAndGet();
+    int i = (nextThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length;
+    ioThreads[i].register(ex);
+  }
+
+  /**
+   * Convert a response to a protocol output, mapping HTTP status codes to
+   * protocol status codes like the http protocol plugins do.
+   */
+  public ProtocolOutput toProtocolOutput(Response response) throws IOException {
+    URL u = response.getUrl();
+    int code = response.getCode();
+    byte[] content = response.getContent();
+    Content c = new Content(u.toString(), u.toString(),
+                            (content == null ? EMPTY_CONTENT : content),
+                            response.getHeader("Content-Type"),
+                            response.getHeaders(), conf);
+
+    if (code == 200) {                          // got a good response
+      return new ProtocolOutput(c);
+    } else if (code == 410) {                   // page is gone
+      return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.GONE, "Http: " + code + " url=" + u));
+    } else if (code >= 300 && code < 400) {     // handle redirect
+      String location = response.getHeader("Location");
+      if (location == null) location = response.getHeader("location");
+      if (location == null) location = "";
+      URL redir = new URL(u, location);
+      int protocolStatusCode;
+      switch (code) {
+        case 302:   // found (temporarily moved)
+        case 303:   // see other (redirect after POST)
+        case 307:   // temporary redirect
+          protocolStatusCode = ProtocolStatus.TEMP_MOVED;
+          break;
+        case 304:   // not modified
+          protocolStatusCode = ProtocolStatus.NOTMODIFIED;
+          break;
+        default:
+          protocolStatusCode = ProtocolStatus.MOVED;
+      }
+      return new ProtocolOutput(c, new ProtocolStatus(protocolStatusCode, redir));
+    } else if (code == 400) {                   // bad request, mark as GONE
+      return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.GONE, u));
+    } else if (code == 401) {                   // requires authorization
+      return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.ACCESS_DENIED,
+          "Authentication required: " + u));
+    } else if (code == 404) {
+      return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.NOTFOUND, u));
+    } else {
+      return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.EXCEPTION,
+          "Http code=" + code + ", url=" + u));
+    }
+  }
+
+  /** The state of a single request. */
+  private static class Exchange {
+    URL url;
+    Object attachment;
+    Callback callback;
+    InetSocketAddress addr;
+    ByteBuffer request;
+    SocketChannel channel;
+    long deadline;
+
+    // response buffer, holding headers followed by the body
+    byte[] buf = new byte[BUFFER_SIZE];
+    int len = 0;
+    int scanned = 0;
+    int headerEnd = -1;
+    int code;
+    Metadata headers;
+    int contentLength = -1;
+
+    Exchange(URL url, Object attachment, Callback callback,
+             InetSocketAddress addr, ByteBuffer request) {
+      this.url = url;
+      this.attachment = attachment;
+      this.callback = callback;
+      this.addr = addr;
+      this.request = request;
+    }
+
+    void append(ByteBuffer src) {
+      int n = src.remaining();
+      if (len + n > buf.length) {
+        byte[] b = new byte[Math.max(buf.length * 2, len + n)];
+        System.arraycopy(buf, 0, b, 0, len);
+        buf = b;
+      }
+      src.get(buf, len, n);
+      len += n;
+    }
+
+    int getBodyLength() {
+      return headerEnd < 0 ? 0 : len - headerEnd;
+    }
+  }
+
+  /** A fully read response. */
+  private static class NioResponse implements Response {
+    private URL url;
+    private int code;
+    private Metadata headers;
+    private byte[] content;
+
+    NioResponse(URL url, int code, Metadata headers, byte[] content) {
+      this.url = url;
+      this.code = code;
+      this.headers = headers;
+      this.content = content;
+    }
+
+    public URL getUrl() {
+      return url;
+    }
+
+    public int getCode() {
+      return code;
+    }
+
+    public String getHeader(String name) {
+      return headers.get(name);
+    }
+
+    public Metadata getHeaders() {
+      return headers;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+  }
+
+  /** A selector loop serving a share of the requests. */
+  private class IOThread extends Thread {
+    private Selector selector;
+    private ConcurrentLinkedQueue<Exchange> pending =
+      new ConcurrentLinkedQueue<Exchange>();
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private volatile boolean running = true;
+    private long nextTimeoutCheck = 0;
+
+    IOThread(int i) throws IOException {
+      this.selector = Selector.open();
+      this.setDaemon(true);
+      this.setName("NioHttpClient-" + i);
+    }
+
+    void register(Exchange ex) {
+      pending.add(ex);
+      selector.wakeup();
+    }
+
+    void shutdown() {
+      running = false;
+      selector.wakeup();
+    }
+
+    public void run() {
+      try {
+        while (running) {
+          selector.select(TIMEOUT_CHECK_INTERVAL);
+          Exchange ex;
+          while ((ex = pending.poll()) != null) {
+            open(ex);
+          }
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            handle(key);
+          }
+          long now = System.currentTimeMillis();
+          if (now >= nextTimeoutCheck) {
+            expire(now);
+            nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+          }
+        }
+      } catch (Throwable t) {
+        LOG.fatal(getName() + " caught: " + t, t);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          fail(key, (Exchange) key.attachment(), new IOException("client stopped"));
+        }
+        Exchange ex;
+        while ((ex = pending.poll()) != null) {
+          fail(null, ex, new IOException("client stopped"));
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {}
+      }
+    }
+
+    private void open(Exchange ex) {
+      try {
+        ex.channel = SocketChannel.open();
+        ex.channel.configureBlocking(false);
+        ex.deadline = System.currentTimeMillis() + timeout;
+        if (ex.channel.connect(ex.addr)) {
+          ex.channel.register(selector, SelectionKey.OP_WRITE, ex);
+        } else {
+          ex.channel.register(selector, SelectionKey.OP_CONNECT, ex);
+        }
+      } catch (Throwable t) {
+        fail(null, ex, t);
+      }
+    }
+
+    private void handle(SelectionKey key) {
+      Exchange ex = (Exchange) key.attachment();
+      try {
+        if (!key.isValid()) return;
+        if (key.isConnectable()) {
+          if (ex.channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+          }
+        } else if (key.isWritable()) {
+          ex.channel.write(ex.request);
+          if (!ex.request.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } else if (key.isReadable()) {
+          readBuffer.clear();
+          int n = ex.channel.read(readBuffer);
+          if (n == -1) {
+            if (ex.headerEnd < 0) {
+              throw new IOException("connection closed before response headers");
+            }
+            complete(key, ex);
+            return;
+          }
+          readBuffer.flip();
+          ex.append(readBuffer);
+          if (ex.headerEnd < 0) parseHeaders(ex);
+          if (ex.headerEnd >= 0 && isBodyComplete(ex)) {
+            complete(key, ex);
+            return;
+          }
+        }
+        // like a socket timeout, the deadline is reset on every activity
+        ex.deadline = System.currentTimeMillis() + timeout;
+      } catch (Throwable t) {
+        fail(key, ex, t);
+      }
+    }
+
+    private void expire(long now) {
+      for (SelectionKey key : selector.keys()) {
+        Exchange ex = (Exchange) key.attachment();
+        if (ex != null && ex.deadline < now) {
+          fail(key, ex, new SocketTimeoutException("Read timed out"));
+        }
+      }
+    }
+
+    private void complete(SelectionKey key, Exchange ex) {
+      close(key, ex);
+      NioResponse response;
+      try {
+        int bodyLength = ex.getBodyLength();
+        if (maxContent >= 0 && bodyLength > maxContent) bodyLength = maxContent;
+        if (ex.contentLength >= 0 && bodyLength > ex.contentLength) bodyLength = ex.contentLength;
+        byte[] content = new byte[bodyLength];
+        System.arraycopy(ex.buf, ex.headerEnd, content, 0, bodyLength);
+        ex.buf = null;
+        String contentEncoding = ex.headers.get(Response.CONTENT_ENCODING);
+        if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+          content = maxContent >= 0
+            ? GZIPUtils.unzipBestEffort(content, maxContent)
+            : GZIPUtils.unzipBestEffort(content);
+          if (content == null) throw new IOException("unzipBestEffort returned null");
+        }
+        response = new NioResponse(ex.url, ex.code, ex.headers, content);
+      } catch (Throwable t) {
+        notifyFailed(ex, t);
+        return;
+      }
+      inFlight.decrementAndGet();
+      try {
+        ex.callback.completed(ex.url, ex.attachment, response);
+      } catch (Throwable t) {
+        LOG.warn("Callback failed for " + ex.url + ": " + t);
+      }
+    }
+
+    private void fail(SelectionKey key, Exchange ex, Throwable t) {
+      close(key, ex);
+      notifyFailed(ex, t);
+    }
+
+    private void notifyFailed(Exchange ex, Throwable t) {
+      inFlight.decrementAndGet();
+      try {
+        ex.callback.failed(ex.url, ex.attachment, t);
+      } catch (Throwable e) {
+        LOG.warn("Callback failed for " + ex.url + ": " + e);
+      }
+    }
+
+    private void close(SelectionKey key, Exchange ex) {
+      if (key != null) key.cancel();
+      if (ex.channel != null) {
+        try {
+          ex.channel.close();
+        } catch (IOException e) {}
+      }
+    }
+  }
+
+  /**
+   * Look for the end of the headers in the buffer, and parse the status line
+   * and the headers once it is found. Interim 100 (Continue) responses are
+   * skipped.
+   */
+  private void parseHeaders(Exchange ex) throws IOException {
+    while (true) {
+      int end = -1;
+      for (int i = Math.max(0, ex.scanned - 3); i < ex.len; i++) {
+        if (ex.buf[i] == '\n') {
+          if (i + 1 < ex.len && ex.buf[i + 1] == '\n') {
+            end = i + 2;
+            break;
+          }
+          if (i + 2 < ex.len && ex.buf[i + 1] == '\r' && ex.buf[i + 2] == '\n') {
+            end = i + 3;
+            break;
+          }
+        }
+      }
+      if (end < 0) {
+        ex.scanned = ex.len;
+        if (ex.len > MAX_HEADER_SIZE) {
+          throw new IOException("response headers too long");
+        }
+        return;
+      }
+
+      String[] lines = toString(ex.buf, 0, end).split("\r?\n");
+      int code = parseStatusLine(lines[0]);
+      if (code == 100) {                        // 100 is "Continue"
+        System.arraycopy(ex.buf, end, ex.buf, 0, ex.len - end);
+        ex.len -= end;
+        ex.scanned = 0;
+        continue;
+      }
+      Metadata headers = new SpellCheckedMetadata();
+      String last = null;
+      for (int i = 1; i < lines.length; i++) {
+        String line = lines[i];
+        if (line.length() == 0) continue;
+        if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && last != null) {
+          // continued line
+          headers.set(last, headers.get(last) + " " + line.trim());
+          continue;
+        }
+        int colon = line.indexOf(':');
+        if (colon <= 0) continue;
+        last = line.substring(0, colon).trim();
+        headers.set(last, line.substring(colon + 1).trim());
+      }
+      String contentLength = headers.get(Response.CONTENT_LENGTH);
+      if (contentLength != null) {
+        try {
+          ex.contentLength = Integer.parseInt(contentLength.trim());
+        } catch (NumberFormatException e) {
+          throw new IOException("bad content length: " + contentLength);
+        }
+      }
+      if (code == 204 || code == 304) {         // no message body
+        ex.contentLength = 0;
+      }
+      ex.code = code;
+      ex.headers = headers;
+      ex.headerEnd = end;
+      return;
+    }
+  }
+
+  private boolean isBodyComplete(Exchange ex) {
+    int bodyLength = ex.getBodyLength();
+    if (ex.contentLength >= 0 && bodyLength >= ex.contentLength) return true;
+    if (maxContent >= 0 && bodyLength >= maxContent) return true;
+    return false;
+  }
+
+  private static int parseStatusLine(String line) throws IOException {
+    int codeStart = line.indexOf(" ");
+    int codeEnd = line.indexOf(" ", codeStart + 1);
+    // handle lines with no plaintext result code, ie:
+    // "HTTP/1.1 200" vs "HTTP/1.1 200 OK"
+    if (codeEnd == -1) codeEnd = line.length();
+    try {
+      return Integer.parseInt(line.substring(codeStart + 1, codeEnd).trim());
+    } catch (Exception e) {
+      throw new IOException("bad status line '" + line + "': " + e.getMessage());
+    }
+  }
+
+  private static String toString(byte[] buf, int off, int len) {
+    try {
+      return new String(buf, off, len, "ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      return new String(buf, off, len);
+    }
+  }
+
+  private static String getAgentString(Configuration conf) {
+    String agentName = conf.get("http.agent.name");
+    String agentVersion = conf.get("http.agent.version");
+    String agentDesc = conf.get("http.agent.description");
+    String agentURL = conf.get("http.agent.url");
+    String agentEmail = conf.get("http.agent.email");
+    if (agentName == null || agentName.trim().length() == 0) {
+      if (LOG.isFatalEnabled()) {
+        LOG.fatal("No User-Agent string set (http.agent.name)!");
+      }
+      return null;
+    }
+    StringBuffer buf = new StringBuffer(agentName);
+    if (agentVersion != null) {
+      buf.append("/").append(agentVersion);
+    }
+    StringBuffer comment = new StringBuffer();
+    String[] parts = { agentDesc, agentURL, agentEmail };
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i] == null || parts[i].length() == 0) continue;
+      if (comment.length() > 0) comment.append("; ");
+      comment.append(parts[i]);
+    }
+    if (comment.length() > 0) {
+      buf.append(" (").append(comment).append(")");
+    }
+    return buf.toString();
+  }
+
+}
@@ -32,6 +32,7 @@ import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.ToolBase;
 
+import cn.ideasoft.yuqing.crawl.FingerprintedUrl;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
 import cn.ideasoft.yuqing.util.YuQingJob;
 
@@ -426,7 +427,12 @@ public class DeleteDuplicates extends ToolBase
     job.setJobName("dedup 1: urls by time");
 
     job.setInputFormat(InputFormat.class);
-    job.setMapOutputKeyClass(Text.class);
+    if (FingerprintedUrl.isEnabled(job)) {
+      job.setMapperClass(FingerprintedUrl.KeyMapper.class);
+      job.setMapOutputKeyClass(FingerprintedUrl.class);
+    } else {
+      job.setMapOutputKeyClass(Text.class);
+    }
     job.setMapOutputValueClass(IndexDoc.class);
 
     job.setReducerClass(UrlsReducer.class);
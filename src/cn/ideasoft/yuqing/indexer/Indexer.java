@@ -41,6 +41,8 @@ import cn.ideasoft.yuqing.util.YuQingJob;
 
 import cn.ideasoft.yuqing.crawl.CrawlDatum;
 import cn.ideasoft.yuqing.crawl.CrawlDb;
+import cn.ideasoft.yuqing.crawl.CrawlDbInputFormat;
+import cn.ideasoft.yuqing.crawl.FingerprintedUrl;
 import cn.ideasoft.yuqing.crawl.Inlinks;
 import cn.ideasoft.yuqing.crawl.LinkDb;
 
@@ -129,6 +131,7 @@ public class Indexer extends ToolBase implements Reducer, Mapper {
 
   private IndexingFilters filters;
   private ScoringFilters scfilters;
+  private boolean fingerprintKeys;
 
   public Indexer() {
     
@@ -142,6 +145,7 @@ public class Indexer extends ToolBase implements Reducer, Mapper {
     setConf(job);
     this.filters = new IndexingFilters(getConf());
     this.scfilters = new ScoringFilters(getConf());
+    this.fingerprintKeys = FingerprintedUrl.isEnabled(job);
   }
 
   public void close() {}
@@ -149,6 +153,7 @@ public class Indexer extends ToolBase implements Reducer, Mapper {
   public void reduce(WritableComparable key, Iterator values,
                      OutputCollector output, Reporter reporter)
     throws IOException {
+    if (key instanceof FingerprintedUrl) key = ((FingerprintedUrl)key).getUrl();
     Inlinks inlinks = null;
     CrawlDatum dbDatum = null;
     CrawlDatum fetchDatum = null;
@@ -260,10 +265,14 @@ public class Indexer extends ToolBase implements Reducer, Mapper {
 
     job.addInputPath(new Path(crawlDb, CrawlDb.CURRENT_NAME));
     job.addInputPath(new Path(linkDb, LinkDb.CURRENT_NAME));
-    job.setInputFormat(SequenceFileInputFormat.class);
+    job.setInputFormat(CrawlDbInputFormat.class);
 
     job.setMapperClass(Indexer.class);
     job.setReducerClass(Indexer.class);
+    if (FingerprintedUrl.isEnabled(job)) {
+      job.setMapOutputKeyClass(FingerprintedUrl.class);
+      job.setMapOutputValueClass(ObjectWritable.class);
+    }
 
     job.setOutputPath(indexDir);
     job.setOutputFormat(OutputFormat.class);
@@ -303,6 +312,7 @@ public class Indexer extends ToolBase implements Reducer, Mapper {
 
   public void map(WritableComparable key, Writable value,
       OutputCollector output, Reporter reporter) throws IOException {
+    if (fingerprintKeys) key = new FingerprintedUrl((Text)key);
     output.collect(key, new ObjectWritable(value));
   }
 
@@ -28,6 +28,8 @@ package cn.ideasoft.yuqing.metadata;
  */
 public interface HttpHeaders {
 
+  public final static String CONNECTION = "Connection";
+
   public final static String CONTENT_ENCODING = "Content-Encoding";
   
   public final static String CONTENT_LANGUAGE = "Content-Language";
@@ -42,8 +44,12 @@ public interface HttpHeaders {
   
   public final static String CONTENT_TYPE = "Content-Type";
   
+  public final static String ETAG = "ETag";
+  
   public final static String LAST_MODIFIED = "Last-Modified";
   
   public final static String LOCATION = "Location";
 
+  public final static String TRANSFER_ENCODING = "Transfer-Encoding";
+
 }
@@ -45,6 +45,19 @@ public interface YuQing {
 
   public static final Text WRITABLE_PROTO_STATUS_KEY = new Text(PROTO_STATUS_KEY);
 
+  /**
+   * Entity tag of the last fetched version of a page, in CrawlDatum metadata.
+   * The http plugins read it under the same name, see HttpBase.
+   */
+  public static final String ETAG_KEY = "_etag_";
+
+  public static final Text WRITABLE_ETAG_KEY = new Text(ETAG_KEY);
+
+  /** Number of links a combined STATUS_LINKED CrawlDatum stands for. */
+  public static final String INLINK_COUNT_KEY = "_lnc_";
+
+  public static final Text WRITABLE_INLINK_COUNT_KEY = new Text(INLINK_COUNT_KEY);
+
   /** Sites may request that search engines don't provide access to cached documents. */
   public static final String CACHING_FORBIDDEN_KEY = "caching.forbidden";
 
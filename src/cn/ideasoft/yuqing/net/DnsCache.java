@@ -0,0 +1,257 @@
+/**
+ * Copyright 2005 The Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+
+
+/**
+ * A host name resolver shared by all tasks in a JVM. Resolved addresses are
+ * kept for <code>dns.cache.ttl</code> milliseconds and failed lookups for
+ * <code>dns.cache.negative.ttl</code> milliseconds, in a cache of at most
+ * <code>dns.cache.size</code> hosts. Hosts can be handed to
+ * {@link #prefetch(String)}, which resolves them in a pool of
+ * <code>dns.resolver.threads</code> threads, so that a later
+ * {@link #resolve(String)} finds them in the cache. Concurrent lookups of the
+ * same host share a single query.
+ */
+public class DnsCache {
+
+  public static final Log LOG = LogFactory.getLog(DnsCache.class);
+
+  private static DnsCache instance = null;
+
+  /** A cached lookup result. A null address means the host is unknown. */
+  private static class CachedAddress {
+    InetAddress addr;
+    long expires;
+
+    CachedAddress(InetAddress addr, long expires) {
+      this.addr = addr;
+      this.expires = expires;
+    }
+
+    InetAddress getAddress(String host) throws UnknownHostException {
+      if (addr == null) throw new UnknownHostException(host);
+      return addr;
+    }
+  }
+
+  /** Resolves a host, caches the result and removes itself from pending. */
+  private class Lookup implements Callable<CachedAddress> {
+    private String host;
+
+    Lookup(String host) {
+      this.host = host;
+    }
+
+    public CachedAddress call() {
+      long start = System.currentTimeMillis();
+      InetAddress addr = null;
+      try {
+        addr = InetAddress.getByName(host);
+      } catch (UnknownHostException e) {
+        failures.incrementAndGet();
+      }
+      long end = System.currentTimeMillis();
+      lookups.incrementAndGet();
+      lookupTime.addAndGet(end - start);
+      CachedAddress e =
+        new CachedAddress(addr, end + (addr != null ? ttl : negativeTtl));
+      synchronized (cache) {
+        cache.put(host, e);
+      }
+      pending.remove(host);
+      return e;
+    }
+  }
+
+  private Map<String, CachedAddress> cache;
+  private ConcurrentHashMap<String, FutureTask<CachedAddress>> pending =
+    new ConcurrentHashMap<String, FutureTask<CachedAddress>>();
+  private ThreadPoolExecutor resolvers;
+
+  private long ttl;
+  private long negativeTtl;
+
+  private AtomicLong hits = new AtomicLong(0);
+  private AtomicLong misses = new AtomicLong(0);
+  private AtomicLong lookups = new AtomicLong(0);
+  private AtomicLong failures = new AtomicLong(0);
+  private AtomicLong lookupTime = new AtomicLong(0);
+  private AtomicLong prefetches = new AtomicLong(0);
+
+  /**
+   * Returns the resolver of this JVM, creating it from the given
+   * configuration on first use.
+   */
+  public static synchronized DnsCache get(Configuration conf) {
+    if (instance == null) {
+      instance = new DnsCache(conf);
+    }
+    return instance;
+  }
+
+  private DnsCache(Configuration conf) {
+    this.ttl = conf.getLong("dns.cache.ttl", 30 * 60 * 1000L);
+    this.negativeTtl = conf.getLong("dns.cache.negative.ttl", 5 * 60 * 1000L);
+    final int maxSize = conf.getInt("dns.cache.size", 100000);
+    this.cache = new LinkedHashMap<String, CachedAddress>(1024, 0.75f, true) {
+      protected boolean removeEldestEntry(
+          Map.Entry<String, CachedAddress> eldest) {
+        return size() > maxSize;
+      }
+    };
+    int threads = Math.max(1, conf.getInt("dns.resolver.threads", 10));
+    this.resolvers = new ThreadPoolExecutor(threads, threads,
+        60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(
+            conf.getInt("dns.resolver.queue", 10000)),
+        new ThreadFactory() {
+          private AtomicInteger count = new AtomicInteger(0);
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DnsResolver-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Resolve a host name, from the cache if possible. If the host is being
+   * resolved already the caller waits for that lookup, otherwise it
+   * resolves the host in its own thread.
+   * @throws UnknownHostException if the host can't be resolved, or couldn't
+   * be resolved the last time within <code>dns.cache.negative.ttl</code>
+   */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    host = host.toLowerCase();
+    CachedAddress e = getCached(host);
+    if (e != null) {
+      hits.incrementAndGet();
+      return e.getAddress(host);
+    }
+    misses.incrementAndGet();
+    FutureTask<CachedAddress> task =
+      new FutureTask<CachedAddress>(new Lookup(host));
+    FutureTask<CachedAddress> running = pending.putIfAbsent(host, task);
+    if (running == null) {
+      task.run();
+    } else {
+      task = running;
+    }
+    try {
+      return task.get().getAddress(host);
+    } catch (InterruptedException ie) {
+      throw new UnknownHostException(host + ": interrupted");
+    } catch (ExecutionException ee) {
+      throw new UnknownHostException(host + ": " + ee.getCause());
+    }
+  }
+
+  /**
+   * Start resolving a host in the background, unless it is cached or being
+   * resolved already. Hosts are dropped when the resolver queue is full.
+   */
+  public void prefetch(String host) {
+    if (host == null) return;
+    host = host.toLowerCase();
+    if (getCached(host) != null || pending.containsKey(host)) return;
+    FutureTask<CachedAddress> task =
+      new FutureTask<CachedAddress>(new Lookup(host));
+    if (pending.putIfAbsent(host, task) != null) return;
+    try {
+      resolvers.execute(task);
+      prefetches.incrementAndGet();
+    } catch (RejectedExecutionException e) {
+      // queue is full, the host will be resolved when it is needed
+      pending.remove(host, task);
+    }
+  }
+
+  /**
+   * The cached address of a host, or null if the host is unknown, expired
+   * or not cached. Never queries the resolver.
+   */
+  public InetAddress getCachedAddress(String host) {
+    CachedAddress e = getCached(host.toLowerCase());
+    return e == null ? null : e.addr;
+  }
+
+  /** Number of lookups answered from the cache. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Number of lookups that had to query, or wait for, the resolver. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Fraction of lookups answered from the cache. */
+  public float getHitRate() {
+    long total = hits.get() + misses.get();
+    return total == 0 ? 0.0f : (float)hits.get() / total;
+  }
+
+  /** Average time of a resolver query, in milliseconds. */
+  public float getAverageLookupTime() {
+    long n = lookups.get();
+    return n == 0 ? 0.0f : (float)lookupTime.get() / n;
+  }
+
+  public String toString() {
+    return "hits=" + hits + ", misses=" + misses
+      + ", hitRate=" + getHitRate()
+      + ", queries=" + lookups + ", failures=" + failures
+      + ", prefetches=" + prefetches
+      + ", avgQueryMs=" + getAverageLookupTime();
+  }
+
+  private CachedAddress getCached(String host) {
+    synchronized (cache) {
+      CachedAddress e = cache.get(host);
+      if (e == null) return null;
+      if (e.expires < System.currentTimeMillis()) {
+        cache.remove(host);
+        return null;
+      }
+      return e;
+    }
+  }
+
+}
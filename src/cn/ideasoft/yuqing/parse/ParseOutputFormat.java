@@ -24,6 +24,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import cn.ideasoft.yuqing.crawl.CrawlDatum;
+import cn.ideasoft.yuqing.crawl.KnownUrls;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.mapred.*;
 import cn.ideasoft.yuqing.scoring.ScoringFilterException;
@@ -59,6 +60,11 @@ public class ParseOutputFormat implements OutputFormat {
     this.scfilters = new ScoringFilters(job);
     final float interval = job.getFloat("db.default.fetch.interval", 30f);
     final boolean ignoreExternalLinks = job.getBoolean("db.ignore.external.links", false);
+    // links to urls already in the crawl db, if they needn't be scored
+    String knownDb = job.get("parse.known.urls.crawldb", "");
+    final KnownUrls knownUrls =
+      job.getBoolean("parse.skip.known.urls", false) && knownDb.length() > 0
+      ? new KnownUrls(job, new Path(knownDb)) : null;
     
     Path text =
       new Path(new Path(job.getOutputPath(), ParseText.DIR_NAME), name);
@@ -77,7 +83,7 @@ public class ParseOutputFormat implements OutputFormat {
       SequenceFile.createWriter(fs, job, crawl, Text.class, CrawlDatum.class);
     
     return new RecordWriter() {
-
+        private long skippedKnown = 0;
 
         public void write(WritableComparable key, Writable value)
           throws IOException {
@@ -142,8 +148,12 @@ public class ParseOutputFormat implements OutputFormat {
                 continue; // skip it
               }
             }
-            CrawlDatum target = new CrawlDatum(CrawlDatum.STATUS_LINKED, interval);
             Text targetUrl = new Text(toUrls[i]);
+            if (knownUrls != null && knownUrls.contains(targetUrl)) {
+              skippedKnown++;
+              continue;
+            }
+            CrawlDatum target = new CrawlDatum(CrawlDatum.STATUS_LINKED, interval);
             adjust = null;
             try {
               adjust = scfilters.distributeScoreToOutlink((Text)key, targetUrl,
@@ -162,6 +172,9 @@ public class ParseOutputFormat implements OutputFormat {
         }
         
         public void close(Reporter reporter) throws IOException {
+          if (knownUrls != null && LOG.isInfoEnabled()) {
+            LOG.info("Skipped " + skippedKnown + " links to known urls");
+          }
           textOut.close();
           dataOut.close();
           crawlOut.close();
@@ -134,10 +134,26 @@ public interface ScoringFilter extends Configurable, Pluggable {
    * fetchlist was generated. Filters should update this in-place, and it will be saved in
    * the crawldb.
    * @param inlinked (partial) list of CrawlDatum-s (with their scores) from
-   * links pointing to this page, found in the current update batch.
+   * links pointing to this page, found in the current update batch. Links are
+   * combined with {@link #combineInlinkScore(Text, CrawlDatum, CrawlDatum)}
+   * before they get here, so this usually holds a single aggregate.
    * @throws ScoringFilterException
    */
   public void updateDbScore(Text url, CrawlDatum old, CrawlDatum datum, List inlinked) throws ScoringFilterException;
+
+  /**
+   * Add the score contribution of a link to an aggregate of links pointing
+   * to the same page. CrawlDb update uses this to collapse the links to a page
+   * into one CrawlDatum, in a combiner and again in the reducer, so it may be
+   * applied to the partial aggregates in any order.
+   * @param url url of the page the links point to
+   * @param aggregate a {@link CrawlDatum#STATUS_LINKED} datum, starting as a
+   * copy of the first link. Filters should update this in-place.
+   * @param linked another link, or an aggregate of links, to add. NOTE:
+   * changes made to this instance are not persisted.
+   * @throws ScoringFilterException
+   */
+  public void combineInlinkScore(Text url, CrawlDatum aggregate, CrawlDatum linked) throws ScoringFilterException;
   
   /**
    * This method calculates a Lucene document boost.
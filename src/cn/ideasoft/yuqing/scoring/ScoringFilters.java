@@ -114,6 +114,13 @@ public class ScoringFilters extends Configured implements ScoringFilter {
     }
   }
 
+  /** Add a link to an aggregate of links during CrawlDb.update(). */
+  public void combineInlinkScore(Text url, CrawlDatum aggregate, CrawlDatum linked) throws ScoringFilterException {
+    for (int i = 0; i < this.filters.length; i++) {
+      this.filters[i].combineInlinkScore(url, aggregate, linked);
+    }
+  }
+
   public void passScoreBeforeParsing(Text url, CrawlDatum datum, Content content) throws ScoringFilterException {
     for (int i = 0; i < this.filters.length; i++) {
       this.filters[i].passScoreBeforeParsing(url, datum, content);
@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.util.ToolBase;
+
+import cn.ideasoft.yuqing.crawl.CrawlDatum;
+import cn.ideasoft.yuqing.crawl.Generator;
+import cn.ideasoft.yuqing.fetcher.Fetcher;
+import cn.ideasoft.yuqing.fetcher.Fetcher2;
+import cn.ideasoft.yuqing.fetcher.FetcherMetrics;
+import cn.ideasoft.yuqing.util.Histogram;
+import cn.ideasoft.yuqing.util.YuQingConfiguration;
+
+
+/**
+ * Measures fetchers against a {@link SimulatedWeb} in the same JVM, with
+ * the local job runner, so that it runs on a single machine without network
+ * access. For each fetcher it generates a fetchlist cycling through the
+ * hosts of the simulated web, fetches it, and reports pages fetched per
+ * second, request times as seen by the fetcher and by the server, and CPU
+ * time and bytes allocated per page by all threads but the server's. The
+ * properties of the simulated web (see {@link SimulatedWeb}) and of the
+ * fetchers are taken from the configuration.
+ */
+public class FetcherBenchmark extends ToolBase {
+
+  public static final Log LOG = LogFactory.getLog(FetcherBenchmark.class);
+
+  /**
+   * Samples CPU time and allocated bytes of all threads, since threads
+   * which died can't be asked anymore.
+   */
+  private static class ThreadSampler extends Thread {
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private Map<Long, long[]> samples = new HashMap<Long, long[]>();
+    private Set<Long> excluded = new HashSet<Long>();
+    private volatile boolean stopped = false;
+
+    ThreadSampler() {
+      setDaemon(true);
+      setName("ThreadSampler");
+      if (threads.isThreadCpuTimeSupported()) threads.setThreadCpuTimeEnabled(true);
+    }
+
+    public void run() {
+      while (!stopped) {
+        sample();
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {}
+      }
+    }
+
+    synchronized void sample() {
+      long[] ids = threads.getAllThreadIds();
+      for (int i = 0; i < ids.length; i++) {
+        Long id = new Long(ids[i]);
+        if (excluded.contains(id)) continue;
+        ThreadInfo info = threads.getThreadInfo(ids[i]);
+        if (info == null) continue;
+        if (info.getThreadName().startsWith("SimulatedWeb")
+            || info.getThreadName().startsWith("HTTP-Dispatcher")
+            || info.getThreadName().equals(getName())) {
+          excluded.add(id);
+          continue;
+        }
+        long cpu = threads.getThreadCpuTime(ids[i]);
+        long alloc = -1;
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+          alloc = ((com.sun.management.ThreadMXBean) threads)
+            .getThreadAllocatedBytes(ids[i]);
+        }
+        long[] s = samples.get(id);
+        if (s == null) {
+          s = new long[2];
+          samples.put(id, s);
+        }
+        s[0] = Math.max(s[0], cpu);
+        s[1] = Math.max(s[1], alloc);
+      }
+    }
+
+    /** Total CPU nanoseconds and allocated bytes, so far. */
+    synchronized long[] getTotals() {
+      long[] t = new long[2];
+      Iterator<long[]> it = samples.values().iterator();
+      while (it.hasNext()) {
+        long[] s = it.next();
+        t[0] += s[0];
+        t[1] += s[1];
+      }
+      return t;
+    }
+
+    void finish() {
+      stopped = true;
+      interrupt();
+      sample();
+    }
+  }
+
+  /** Write a fetchlist of <code>urls</code> urls, cycling through the hosts. */
+  private void generate(SimulatedWeb web, Path segment, int urls, int hosts)
+    throws Exception {
+    FileSystem fs = FileSystem.get(getConf());
+    Path part = new Path(new Path(segment, CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, getConf(), part,
+        Text.class, CrawlDatum.class);
+    try {
+      for (int i = 0; i < urls; i++) {
+        CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 30.0f);
+        writer.append(new Text(web.getUrl(i % hosts, i / hosts)), datum);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /** Count the fetched urls of a segment by status. */
+  private Map<String, Integer> countStatus(Path segment) throws Exception {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    MapFile.Reader[] readers = MapFileOutputFormat.getReaders(
+        FileSystem.get(getConf()), new Path(segment, CrawlDatum.FETCH_DIR_NAME),
+        getConf());
+    Text url = new Text();
+    CrawlDatum datum = new CrawlDatum();
+    for (int i = 0; i < readers.length; i++) {
+      while (readers[i].next(url, datum)) {
+        String status = CrawlDatum.getStatusName(datum.getStatus());
+        Integer n = counts.get(status);
+        counts.put(status, new Integer(n == null ? 1 : n.intValue() + 1));
+      }
+      readers[i].close();
+    }
+    return counts;
+  }
+
+  /** Fetch with one fetcher and print its results. */
+  private void bench(String fetcher, Path dir, int urls, int hosts,
+                     int threads) throws Exception {
+    int pagesPerHost = (urls + hosts - 1) / hosts;
+    SimulatedWeb web = new SimulatedWeb(getConf(), hosts, pagesPerHost);
+    web.start(0);
+    Path segment = new Path(dir, Generator.generateSegmentName());
+    try {
+      generate(web, segment, urls, hosts);
+      System.gc();
+      ThreadSampler sampler = new ThreadSampler();
+      sampler.start();
+      long[] before = sampler.getTotals();
+      // request times as seen by the fetcher, queueing in the client included
+      Histogram fetchTime = new Histogram(20 * 60 * 1000L);
+      FetcherMetrics.setProcessFetchTime(fetchTime);
+      long start = System.currentTimeMillis();
+      if ("fetcher".equals(fetcher)) {
+        Fetcher f = new Fetcher(getConf());
+        f.fetch(segment, threads);
+      } else {
+        Fetcher2 f = new Fetcher2(getConf());
+        f.fetch(segment, threads, getConf().getBoolean("fetcher.parse", true));
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      FetcherMetrics.setProcessFetchTime(null);
+      sampler.finish();
+      long[] after = sampler.getTotals();
+
+      Map<String, Integer> status = countStatus(segment);
+      Integer success = status.get(CrawlDatum.getStatusName(CrawlDatum.STATUS_FETCH_SUCCESS));
+      int pages = success == null ? 0 : success.intValue();
+      Histogram latency = web.getLatency();
+      float secs = elapsed / 1000.0f;
+      System.out.println(fetcher + ": " + pages + " pages in " + secs + " s, "
+          + Math.round(pages * 10 / secs) / 10.0 + " pages/s, "
+          + Math.round(web.getBytes() / 1024 / secs) + " KB/s");
+      System.out.println("  fetch time (ms): p50=" + fetchTime.getPercentile(0.5)
+          + ", p99=" + fetchTime.getPercentile(0.99)
+          + ", max=" + fetchTime.getMax()
+          + ", requests=" + fetchTime.getCount());
+      System.out.println("  server time (ms): p50=" + latency.getPercentile(0.5)
+          + ", p99=" + latency.getPercentile(0.99)
+          + ", max=" + latency.getMax()
+          + ", requests=" + latency.getCount());
+      if (pages > 0) {
+        System.out.println("  per page: "
+            + (after[0] - before[0]) / 1000000 / pages + " ms CPU, "
+            + (after[1] - before[1]) / 1024 / pages + " KB allocated; "
+            + Math.round((after[1] - before[1]) / 1048576.0 / secs) + " MB/s allocated");
+      }
+      System.out.println("  status: " + status);
+    } finally {
+      web.stop();
+    }
+  }
+
+  public int run(String[] args) throws Exception {
+    String usage = "Usage: FetcherBenchmark <dir> [-fetcher fetcher2|fetcher|both]"
+      + " [-urls n] [-hosts n] [-threads n]";
+    if (args.length < 1) {
+      System.err.println(usage);
+      return -1;
+    }
+    Path dir = new Path(args[0]);
+    String fetcher = "both";
+    int urls = 10000;
+    int hosts = 500;
+    int threads = getConf().getInt("fetcher.threads.fetch", 10);
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-fetcher")) {
+        fetcher = args[++i];
+      } else if (args[i].equals("-urls")) {
+        urls = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-hosts")) {
+        hosts = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println(usage);
+        return -1;
+      }
+    }
+    if (hosts > 62500) {
+      System.err.println("At most 62500 hosts");
+      return -1;
+    }
+
+    // all in this JVM
+    Configuration conf = getConf();
+    conf.set("fs.default.name", "local");
+    conf.set("mapred.job.tracker", "local");
+    if (conf.get("http.agent.name", "").length() == 0) {
+      conf.set("http.agent.name", "FetcherBenchmark");
+    }
+
+    if (fetcher.equals("fetcher2") || fetcher.equals("both")) {
+      bench("fetcher2", dir, urls, hosts, threads);
+    }
+    if (fetcher.equals("fetcher") || fetcher.equals("both")) {
+      bench("fetcher", dir, urls, hosts, threads);
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = new FetcherBenchmark().doMain(YuQingConfiguration.create(), args);
+    System.exit(res);
+  }
+
+}
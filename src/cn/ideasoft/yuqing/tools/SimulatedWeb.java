@@ -0,0 +1,350 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+
+import cn.ideasoft.yuqing.util.Histogram;
+import cn.ideasoft.yuqing.util.StripedCounter;
+import cn.ideasoft.yuqing.util.YuQingConfiguration;
+
+
+/**
+ * An http server simulating a web of many hosts, for measuring fetchers
+ * without network access. Host <i>i</i> is the loopback address
+ * <code>127.1.(i / 250).(i % 250 + 1)</code>, all served on the same port,
+ * so the fetcher needs neither DNS nor a proxy. Each host has pages
+ * <code>/page-N.html</code> linking to each other and to other hosts, a
+ * robots.txt, and a profile drawn at random from these properties:
+ * <ul>
+ * <li><code>simweb.seed</code>: seed of all random choices (1)</li>
+ * <li><code>simweb.latency.ms</code>: median response time of a host (200)</li>
+ * <li><code>simweb.latency.spread</code>: log-normal sigma of host response
+ * times (1.0); requests vary with sigma 0.3 around their host's</li>
+ * <li><code>simweb.bandwidth.kbps</code>: median bandwidth of a host, in KB/s
+ * (256)</li>
+ * <li><code>simweb.page.size</code>: median page size in bytes (20000)</li>
+ * <li><code>simweb.error.rate</code>: fraction of requests answered with
+ * 500 or 503 (0.01)</li>
+ * <li><code>simweb.bad.hosts</code>: fraction of hosts answering half of
+ * the requests with errors, or not at all for <code>simweb.hang.ms</code>
+ * (0.02, 30000)</li>
+ * <li><code>simweb.redirect.rate</code>: fraction of pages redirecting to
+ * another page (0.05)</li>
+ * <li><code>simweb.gzip.rate</code>: fraction of hosts using gzip (0.5)</li>
+ * <li><code>simweb.crawl.delay.rate</code>: fraction of hosts with a
+ * robots.txt Crawl-Delay of 1 second (0.1)</li>
+ * </ul>
+ * All robots.txt files disallow <code>/private/</code>, which pages link
+ * to. Pages have an ETag and answer If-None-Match with 304.
+ */
+public class SimulatedWeb {
+
+  public static final Log LOG = LogFactory.getLog(SimulatedWeb.class);
+
+  /** The profile of a simulated host. */
+  private class Host {
+    long latency;
+    int bandwidth;
+    boolean bad;
+    boolean gzip;
+    boolean crawlDelay;
+
+    Host(int i) {
+      Random r = new Random(seed * 31 + i);
+      latency = (long) (latencyMs * Math.exp(latencySpread * r.nextGaussian()));
+      bandwidth = (int) Math.max(1024, bandwidthKbps * 1024 * Math.exp(0.5 * r.nextGaussian()));
+      bad = r.nextFloat() < badHosts;
+      gzip = r.nextFloat() < gzipRate;
+      crawlDelay = r.nextFloat() < crawlDelayRate;
+    }
+  }
+
+  private long seed;
+  private int hosts;
+  private int pagesPerHost;
+  private double latencyMs;
+  private double latencySpread;
+  private double bandwidthKbps;
+  private int pageSize;
+  private float errorRate;
+  private float badHosts;
+  private long hangMs;
+  private float redirectRate;
+  private float gzipRate;
+  private float crawlDelayRate;
+
+  private Host[] profiles;
+  private HttpServer server;
+  private List<Thread> threads = new ArrayList<Thread>();
+
+  private StripedCounter requests = new StripedCounter();
+  private StripedCounter bytes = new StripedCounter();
+  private Histogram latency = new Histogram(10 * 60 * 1000L);
+
+  public SimulatedWeb(Configuration conf, int hosts, int pagesPerHost) {
+    this.hosts = hosts;
+    this.pagesPerHost = pagesPerHost;
+    this.seed = conf.getLong("simweb.seed", 1);
+    this.latencyMs = conf.getFloat("simweb.latency.ms", 200);
+    this.latencySpread = conf.getFloat("simweb.latency.spread", 1.0f);
+    this.bandwidthKbps = conf.getFloat("simweb.bandwidth.kbps", 256);
+    this.pageSize = conf.getInt("simweb.page.size", 20000);
+    this.errorRate = conf.getFloat("simweb.error.rate", 0.01f);
+    this.badHosts = conf.getFloat("simweb.bad.hosts", 0.02f);
+    this.hangMs = conf.getLong("simweb.hang.ms", 30000);
+    this.redirectRate = conf.getFloat("simweb.redirect.rate", 0.05f);
+    this.gzipRate = conf.getFloat("simweb.gzip.rate", 0.5f);
+    this.crawlDelayRate = conf.getFloat("simweb.crawl.delay.rate", 0.1f);
+    this.profiles = new Host[hosts];
+    for (int i = 0; i < hosts; i++) {
+      profiles[i] = new Host(i);
+    }
+  }
+
+  /** The address of a host. */
+  public static String getHost(int i) {
+    return "127.1." + (i / 250) + "." + (i % 250 + 1);
+  }
+
+  /** The url of a page. */
+  public String getUrl(int host, int page) {
+    return "http://" + getHost(host) + ":" + getPort() + "/page-" + page + ".html";
+  }
+
+  /** Start serving on the given port, or on a free port if zero. */
+  public void start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 1024);
+    server.createContext("/", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          long start = System.currentTimeMillis();
+          try {
+            serve(exchange);
+          } finally {
+            exchange.close();
+            requests.increment();
+            latency.record(System.currentTimeMillis() - start);
+          }
+        }
+      });
+    // one thread per request, as most of them sleep
+    ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          synchronized (threads) {
+            Thread t = new Thread(r, "SimulatedWeb-" + threads.size());
+            t.setDaemon(true);
+            threads.add(t);
+            return t;
+          }
+        }
+      });
+    server.setExecutor(executor);
+    server.start();
+    LOG.info("Simulated web of " + hosts + " hosts on port " + getPort());
+  }
+
+  public void stop() {
+    if (server != null) server.stop(0);
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /** Number of requests served. */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /** Number of body bytes sent. */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /** Time from receiving a request to sending the whole response. */
+  public Histogram getLatency() {
+    return latency;
+  }
+
+  /** The threads serving requests, so far. */
+  public List<Thread> getThreads() {
+    synchronized (threads) {
+      return new ArrayList<Thread>(threads);
+    }
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    InetAddress local = exchange.getLocalAddress().getAddress();
+    byte[] addr = local.getAddress();
+    int host = (addr[2] & 0xff) * 250 + (addr[3] & 0xff) - 1;
+    if (addr[0] != 127 || addr[1] != 1 || host < 0 || host >= hosts) {
+      send(exchange, null, 404, "text/plain", "unknown host".getBytes());
+      return;
+    }
+    Host h = profiles[host];
+    String path = exchange.getRequestURI().getPath();
+    Random r = new Random(seed * 31 + path.hashCode() * 17 + host);
+    // per request randomness, which doesn't repeat
+    Random rr = new Random();
+
+    sleep((long) (h.latency * Math.exp(0.3 * rr.nextGaussian())));
+
+    if (path.equals("/robots.txt")) {
+      String robots = "User-agent: *\nDisallow: /private/\n"
+        + (h.crawlDelay ? "Crawl-delay: 1\n" : "");
+      send(exchange, h, 200, "text/plain", robots.getBytes());
+      return;
+    }
+    if (h.bad && rr.nextFloat() < 0.5f) {
+      if (rr.nextBoolean()) {
+        sleep(hangMs);
+        return;
+      }
+      send(exchange, h, 503, "text/plain", "unavailable".getBytes());
+      return;
+    }
+    if (rr.nextFloat() < errorRate) {
+      send(exchange, h, 500, "text/plain", "error".getBytes());
+      return;
+    }
+    int page = -1;
+    if (path.startsWith("/page-") && path.endsWith(".html")) {
+      try {
+        page = Integer.parseInt(path.substring(6, path.length() - 5));
+      } catch (NumberFormatException e) {}
+    }
+    if (page < 0 || page >= pagesPerHost) {
+      send(exchange, h, 404, "text/plain", "not found".getBytes());
+      return;
+    }
+    if (r.nextFloat() < redirectRate) {
+      exchange.getResponseHeaders().set("Location",
+          "http://" + getHost(host) + ":" + getPort() + "/page-"
+          + ((page + 1) % pagesPerHost) + ".html");
+      send(exchange, h, r.nextBoolean() ? 301 : 302, "text/plain",
+           "moved".getBytes());
+      return;
+    }
+    String etag = "\"" + host + "-" + page + "\"";
+    exchange.getResponseHeaders().set("ETag", etag);
+    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    send(exchange, h, 200, "text/html", page(r, host, page));
+  }
+
+  /** Generate a page of about the configured size. */
+  private byte[] page(Random r, int host, int page) {
+    int size = (int) (pageSize * Math.exp(0.7 * r.nextGaussian()));
+    StringBuffer buf = new StringBuffer(size + 256);
+    buf.append("<html><head><title>Page ").append(page).append(" of host ")
+      .append(host).append("</title></head><body>\n");
+    buf.append("<a href=\"/private/").append(page).append(".html\">private</a>\n");
+    while (buf.length() < size) {
+      buf.append("<p>");
+      for (int i = 0; i < 40; i++) {
+        buf.append("word").append(r.nextInt(5000)).append(' ');
+      }
+      buf.append("</p>\n");
+      int linked = r.nextFloat() < 0.8f ? host : r.nextInt(hosts);
+      buf.append("<a href=\"http://").append(getHost(linked)).append(':')
+        .append(getPort()).append("/page-").append(r.nextInt(pagesPerHost))
+        .append(".html\">link</a>\n");
+    }
+    buf.append("</body></html>\n");
+    return buf.toString().getBytes();
+  }
+
+  /** Send a response, at the bandwidth of the host. */
+  private void send(HttpExchange exchange, Host h, int code, String type,
+                    byte[] body) throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", type);
+    String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (h != null && h.gzip && accept != null && accept.indexOf("gzip") >= 0) {
+      ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+      GZIPOutputStream zip = new GZIPOutputStream(zipped);
+      zip.write(body);
+      zip.close();
+      body = zipped.toByteArray();
+      headers.set("Content-Encoding", "gzip");
+    }
+    exchange.sendResponseHeaders(code, body.length);
+    OutputStream out = exchange.getResponseBody();
+    // send in chunks every 50 ms
+    int chunk = h == null ? body.length : Math.max(512, h.bandwidth / 20);
+    for (int off = 0; off < body.length; off += chunk) {
+      int len = Math.min(chunk, body.length - off);
+      out.write(body, off, len);
+      out.flush();
+      bytes.add(len);
+      if (off + len < body.length) sleep(50);
+    }
+    out.close();
+  }
+
+  private static void sleep(long ms) {
+    if (ms <= 0) return;
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {}
+  }
+
+  /** Run a simulated web until killed. */
+  public static void main(String[] args) throws Exception {
+    String usage = "Usage: SimulatedWeb <hosts> <pagesPerHost> [port]";
+    if (args.length < 2) {
+      System.err.println(usage);
+      System.exit(-1);
+    }
+    SimulatedWeb web = new SimulatedWeb(YuQingConfiguration.create(),
+                                        Integer.parseInt(args[0]),
+                                        Integer.parseInt(args[1]));
+    web.start(args.length > 2 ? Integer.parseInt(args[2]) : 8080);
+    System.out.println("Serving e.g. " + web.getUrl(0, 0));
+    while (true) {
+      Thread.sleep(10000);
+      System.out.println(web.getRequests() + " requests, " + web.getBytes()
+                         + " bytes, latency: " + web.getLatency());
+    }
+  }
+
+}
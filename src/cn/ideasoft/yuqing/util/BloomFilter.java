@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+
+/**
+ * A Bloom filter over byte strings: a set which may answer that it contains
+ * a value it doesn't, with a probability chosen when it is created, but
+ * never that it doesn't contain a value which was added. Values are added
+ * and looked up by their 64-bit {@link #hash(byte[], int, int)}, so that a
+ * filter can be built from hashes collected earlier.
+ */
+public class BloomFilter implements Writable {
+
+  private int numBits;
+  private int numHashes;
+  private long[] bits;
+
+  public BloomFilter() {}
+
+  /**
+   * A filter sized for <code>expected</code> values, which then has a false
+   * positive rate of <code>fpp</code>.
+   */
+  public BloomFilter(int expected, float fpp) {
+    if (expected < 1) expected = 1;
+    double ln2 = Math.log(2);
+    double m = Math.ceil(-expected * Math.log(fpp) / (ln2 * ln2));
+    numBits = (int)Math.max(64, Math.min(Integer.MAX_VALUE - 63, m));
+    numHashes = (int)Math.max(1, Math.round((double)numBits / expected * ln2));
+    bits = new long[(numBits + 63) >>> 6];
+  }
+
+  /** A 64-bit hash of some bytes, FNV-1a with a final mix. */
+  public static long hash(byte[] bytes, int offset, int length) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = offset; i < offset + length; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public static long hash(Text text) {
+    return hash(text.getBytes(), 0, text.getLength());
+  }
+
+  public void add(Text text) {
+    add(hash(text));
+  }
+
+  public boolean contains(Text text) {
+    return contains(hash(text));
+  }
+
+  /** Add a value by its hash. */
+  public void add(long hash) {
+    int h1 = (int)hash;
+    int h2 = (int)(hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = index(h1 + i * h2);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /** Whether a value may have been added, by its hash. */
+  public boolean contains(long hash) {
+    int h1 = (int)hash;
+    int h2 = (int)(hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = index(h1 + i * h2);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+    }
+    return true;
+  }
+
+  private int index(int combined) {
+    return (combined < 0 ? ~combined : combined) % numBits;
+  }
+
+  /** Size of the filter in bytes. */
+  public int getSize() {
+    return bits.length * 8;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(numBits);
+    out.writeByte(numHashes);
+    for (int i = 0; i < bits.length; i++) {
+      out.writeLong(bits[i]);
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    numBits = in.readInt();
+    numHashes = in.readByte();
+    bits = new long[(numBits + 63) >>> 6];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+  }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counts non-negative values, such as latencies in milliseconds, in
+ * buckets whose width grows with the magnitude of the values: each power of
+ * two is split into 8 buckets, so percentiles are accurate to within 12.5%
+ * at any scale. Values above <code>maxValue</code> are counted as
+ * <code>maxValue</code>. Recording a value is a few atomic increments and
+ * never allocates.
+ */
+public class Histogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB = 1 << SUB_BITS;
+
+  private long maxValue;
+  private AtomicLongArray counts;
+  private AtomicLong count = new AtomicLong(0);
+  private AtomicLong sum = new AtomicLong(0);
+  private AtomicLong max = new AtomicLong(0);
+
+  public Histogram(long maxValue) {
+    this.maxValue = maxValue;
+    this.counts = new AtomicLongArray(index(maxValue) + 1);
+  }
+
+  /** The bucket of a value. */
+  private static int index(long v) {
+    if (v < SUB) return (int) v;
+    int mag = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (mag - SUB_BITS)) & (SUB - 1);
+    return (mag - SUB_BITS + 1) * SUB + sub;
+  }
+
+  /** The smallest value of a bucket. */
+  private static long lowerBound(int i) {
+    if (i < SUB) return i;
+    int mag = i / SUB + SUB_BITS - 1;
+    return (long) (SUB + i % SUB) << (mag - SUB_BITS);
+  }
+
+  public void record(long v) {
+    if (v < 0) v = 0;
+    if (v > maxValue) v = maxValue;
+    counts.incrementAndGet(index(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    long m;
+    while (v > (m = max.get()) && !max.compareAndSet(m, v)) {}
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double) sum.get() / n;
+  }
+
+  /**
+   * The value below which the given fraction of the recorded values fall,
+   * rounded up to the end of its bucket.
+   */
+  public long getPercentile(double fraction) {
+    long n = count.get();
+    if (n == 0) return 0;
+    long rank = (long) Math.ceil(fraction * n);
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        long upper = i + 1 < counts.length() ? lowerBound(i + 1) - 1 : maxValue;
+        return Math.min(upper, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public String toString() {
+    return "count=" + getCount()
+      + ", mean=" + Math.round(getMean())
+      + ", p50=" + getPercentile(0.5)
+      + ", p90=" + getPercentile(0.9)
+      + ", p99=" + getPercentile(0.99)
+      + ", max=" + getMax();
+  }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter for values updated by many threads at once. Each thread adds to
+ * one of several cells, picked by its thread id and kept on separate cache
+ * lines, so that threads rarely contend for the same cell. Reading the
+ * value sums all cells, and is therefore slower than updating it.
+ */
+public class StripedCounter {
+
+  /** Longs per cell, so that each cell has a cache line of its own. */
+  private static final int PAD = 8;
+
+  private static final int STRIPES;
+  static {
+    int n = 1;
+    while (n < Runtime.getRuntime().availableProcessors() * 2) n <<= 1;
+    STRIPES = n;
+  }
+
+  private AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+  public void add(long x) {
+    int i = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    cells.addAndGet(i * PAD, x);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+
+  public String toString() {
+    return Long.toString(get());
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2005 The Apache Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.util;
+
+import java.lang.reflect.Method;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+
+
+/**
+ * Starts tasks either as platform threads or, when configured and the JVM
+ * supports them, as virtual threads. Virtual threads are looked up by
+ * reflection, so that the code still compiles and runs on older JVMs.
+ */
+public class VirtualThreads {
+
+  public static final Log LOG = LogFactory.getLog(VirtualThreads.class);
+
+  /** Thread.ofVirtual() */
+  private static Method ofVirtual = null;
+  /** Thread.Builder.name(String) */
+  private static Method name = null;
+  /** Thread.Builder.unstarted(Runnable) */
+  private static Method unstarted = null;
+
+  static {
+    try {
+      Class builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+      name = builder.getMethod("name", new Class[] { String.class });
+      unstarted = builder.getMethod("unstarted", new Class[] { Runnable.class });
+    } catch (Exception e) {
+      ofVirtual = null;
+    }
+  }
+
+  private VirtualThreads() {}
+
+  /** Returns true if the JVM supports virtual threads. */
+  public static boolean isSupported() {
+    return ofVirtual != null;
+  }
+
+  /**
+   * Returns true if tasks should run as virtual threads, i.e. the named
+   * property is set and the JVM supports them.
+   */
+  public static boolean isEnabled(Configuration conf, String property) {
+    if (!conf.getBoolean(property, false)) return false;
+    if (!isSupported()) {
+      if (LOG.isWarnEnabled()) {
+        LOG.warn(property + " is set, but this JVM doesn't support virtual"
+                 + " threads, using platform threads.");
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Start a task in a new thread. If <code>virtual</code> is true the thread
+   * is a virtual thread, otherwise a daemon platform thread.
+   */
+  public static Thread start(String threadName, Runnable task, boolean virtual) {
+    Thread t;
+    if (virtual) {
+      try {
+        Object builder = ofVirtual.invoke(null, new Object[0]);
+        builder = name.invoke(builder, new Object[] { threadName });
+        t = (Thread) unstarted.invoke(builder, new Object[] { task });
+      } catch (Exception e) {
+        throw new RuntimeException("Unable to create a virtual thread", e);
+      }
+    } else {
+      t = new Thread(task, threadName);
+      t.setDaemon(true);
+    }
+    t.start();
+    return t;
+  }
+
+}
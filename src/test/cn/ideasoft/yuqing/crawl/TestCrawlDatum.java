@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import cn.ideasoft.yuqing.metadata.YuQing;
+import cn.ideasoft.yuqing.protocol.ProtocolStatus;
+
+import junit.framework.TestCase;
+
+/** Tests the serialized forms of {@link CrawlDatum}, and their order. */
+public class TestCrawlDatum extends TestCase {
+
+  private static final long FETCH_TIME = 1180000000000L;
+
+  public TestCrawlDatum(String name) {
+    super(name);
+  }
+
+  public void testRoundTripMinimal() throws IOException {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 30.0f, 0.5f);
+    datum.setFetchTime(FETCH_TIME);
+    CrawlDatum copy = roundTrip(datum);
+    assertEquals(datum, copy);
+    assertEquals(0L, copy.getModifiedTime());
+    assertNull(copy.getSignature());
+    assertEquals(0, copy.getMetaData().size());
+  }
+
+  public void testRoundTripFull() throws IOException {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 0.5f, 2.25f);
+    datum.setFetchTime(FETCH_TIME);
+    datum.setModifiedTime(FETCH_TIME - 7L * 24 * 60 * 60 * 1000);
+    datum.setRetriesSinceFetch(2);
+    datum.setSignature(new byte[] { 1, 2, 3, -4, 5, 6, 7, 8 });
+    // keys written by index and by name, known and custom value classes
+    datum.getMetaData().put(YuQing.WRITABLE_GENERATE_TIME_KEY,
+                            new LongWritable(FETCH_TIME - 1000));
+    datum.getMetaData().put(YuQing.WRITABLE_PROTO_STATUS_KEY,
+                            ProtocolStatus.STATUS_SUCCESS);
+    datum.getMetaData().put(new Text("custom"), new IntWritable(42));
+    datum.getMetaData().put(new IntWritable(7), new Text("int key"));
+    CrawlDatum copy = roundTrip(datum);
+    assertEquals(datum, copy);
+    assertEquals(datum.getModifiedTime(), copy.getModifiedTime());
+    assertEquals(4, copy.getMetaData().size());
+    assertEquals(new IntWritable(42), copy.getMetaData().get(new Text("custom")));
+  }
+
+  public void testRoundTripModifiedAfterFetch() throws IOException {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 1.0f);
+    datum.setFetchTime(FETCH_TIME);
+    datum.setModifiedTime(FETCH_TIME + 1000);
+    assertEquals(datum, roundTrip(datum));
+  }
+
+  public void testReuseClearsFields() throws IOException {
+    CrawlDatum full = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 1.0f);
+    full.setModifiedTime(FETCH_TIME);
+    full.setSignature(new byte[] { 1, 2 });
+    full.getMetaData().put(new Text("a"), new Text("b"));
+    CrawlDatum empty = new CrawlDatum(CrawlDatum.STATUS_DB_GONE, 1.0f);
+    empty.setFetchTime(FETCH_TIME);
+
+    CrawlDatum reused = new CrawlDatum();
+    reused.readFields(input(write(full)));
+    reused.readFields(input(write(empty)));
+    assertEquals(empty, reused);
+    assertEquals(0L, reused.getModifiedTime());
+    assertNull(reused.getSignature());
+    assertEquals(0, reused.getMetaData().size());
+  }
+
+  public void testReadVersion5() throws IOException {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 30.0f, 1.5f);
+    datum.setFetchTime(FETCH_TIME);
+    datum.setModifiedTime(FETCH_TIME - 1000);
+    datum.setRetriesSinceFetch(1);
+    datum.setSignature(new byte[] { 9, 8, 7 });
+    datum.getMetaData().put(new Text("custom"), new LongWritable(3));
+    CrawlDatum read = new CrawlDatum();
+    read.readFields(input(writeVersion5(datum)));
+    assertEquals(datum, read);
+
+    CrawlDatum bare = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 30.0f);
+    bare.setFetchTime(FETCH_TIME);
+    read.readFields(input(writeVersion5(bare)));
+    assertEquals(bare, read);
+    assertNull(read.getSignature());
+    assertEquals(0, read.getMetaData().size());
+
+    // and written as the current version
+    assertEquals(bare, roundTrip(read));
+  }
+
+  public void testComparatorAgreesWithCompareTo() throws IOException {
+    List<CrawlDatum> datums = new ArrayList<CrawlDatum>();
+    CrawlDatum base = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 30.0f, 1.0f);
+    base.setFetchTime(FETCH_TIME);
+    datums.add(base);
+
+    CrawlDatum d = copy(base);
+    d.setScore(2.0f);
+    datums.add(d);
+    d = copy(base);
+    d.setStatus(CrawlDatum.STATUS_DB_UNFETCHED);
+    datums.add(d);
+    d = copy(base);
+    d.setFetchTime(FETCH_TIME + 1);
+    datums.add(d);
+    d = copy(base);
+    d.setFetchTime(0);                            // shorter vlong
+    datums.add(d);
+    d = copy(base);
+    d.setRetriesSinceFetch(3);
+    datums.add(d);
+    d = copy(base);
+    d.setFetchInterval(1.0f);                     // shorter vint
+    datums.add(d);
+    d = copy(base);
+    d.setModifiedTime(FETCH_TIME - 1000);
+    datums.add(d);
+    d = copy(base);
+    d.setModifiedTime(FETCH_TIME - 2000);
+    datums.add(d);
+    d = copy(base);
+    d.setSignature(new byte[] { 1, 2, 3 });
+    datums.add(d);
+    d = copy(base);
+    d.setSignature(new byte[] { 1, 2, 4 });
+    datums.add(d);
+    d = copy(base);
+    d.setSignature(new byte[] { 1, 2 });
+    datums.add(d);
+    d = copy(base);
+    d.setModifiedTime(FETCH_TIME - 1000);
+    d.setSignature(new byte[] { 1, 2, 3 });
+    d.getMetaData().put(new Text("custom"), new Text("value"));
+    datums.add(d);
+    d = copy(d);
+    d.setRetriesSinceFetch(1);
+    datums.add(d);
+
+    WritableComparator comparator = WritableComparator.get(CrawlDatum.class);
+    assertTrue(comparator instanceof CrawlDatum.Comparator);
+    for (int i = 0; i < datums.size(); i++) {
+      CrawlDatum a = datums.get(i);
+      DataOutputBuffer ba = write(a);
+      for (int j = 0; j < datums.size(); j++) {
+        CrawlDatum b = datums.get(j);
+        DataOutputBuffer bb = write(b);
+        int raw = comparator.compare(ba.getData(), 0, ba.getLength(),
+                                     bb.getData(), 0, bb.getLength());
+        assertEquals("comparing " + i + " to " + j,
+                     signum(a.compareTo(b)), signum(raw));
+      }
+    }
+  }
+
+  public void testComparatorReadsVersion5() throws IOException {
+    CrawlDatum a = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 30.0f, 1.0f);
+    a.setFetchTime(FETCH_TIME);
+    CrawlDatum b = copy(a);
+    b.setScore(3.0f);
+    byte[] ba = writeVersion5(a);
+    DataOutputBuffer bb = write(b);
+    WritableComparator comparator = WritableComparator.get(CrawlDatum.class);
+    int raw = comparator.compare(ba, 0, ba.length,
+                                 bb.getData(), 0, bb.getLength());
+    assertEquals(signum(a.compareTo(b)), signum(raw));
+  }
+
+  // helpers
+
+  private static int signum(int i) {
+    return i < 0 ? -1 : (i > 0 ? 1 : 0);
+  }
+
+  private static CrawlDatum copy(CrawlDatum datum) {
+    CrawlDatum copy = new CrawlDatum();
+    copy.set(datum);
+    return copy;
+  }
+
+  private static DataOutputBuffer write(CrawlDatum datum) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    datum.write(out);
+    return out;
+  }
+
+  private static DataInputBuffer input(DataOutputBuffer out) {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    return in;
+  }
+
+  private static DataInputBuffer input(byte[] data) {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, data.length);
+    return in;
+  }
+
+  private static CrawlDatum roundTrip(CrawlDatum datum) throws IOException {
+    CrawlDatum copy = new CrawlDatum();
+    copy.readFields(input(write(datum)));
+    return copy;
+  }
+
+  /** A datum as written by version 5, with fixed-width fields. */
+  private static byte[] writeVersion5(CrawlDatum datum) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeByte(5);
+    out.writeByte(datum.getStatus());
+    out.writeLong(datum.getFetchTime());
+    out.writeByte(datum.getRetriesSinceFetch());
+    out.writeFloat(datum.getFetchInterval());
+    out.writeFloat(datum.getScore());
+    out.writeLong(datum.getModifiedTime());
+    byte[] signature = datum.getSignature();
+    if (signature == null) {
+      out.writeByte(0);
+    } else {
+      out.writeByte(signature.length);
+      out.write(signature);
+    }
+    if (datum.getMetaData().size() > 0) {
+      out.writeBoolean(true);
+      datum.getMetaData().write(out);
+    } else {
+      out.writeBoolean(false);
+    }
+    byte[] data = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, data, 0, data.length);
+    return data;
+  }
+
+}
@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import junit.framework.TestCase;
+
+/** Tests the wire format of {@link MapWritable}, and the sharing of entries. */
+public class TestMapWritable extends TestCase {
+
+  /** A Writable unknown to MapWritable. */
+  public static class Custom implements Writable {
+    int value;
+
+    public Custom() {}
+
+    public Custom(int value) {
+      this.value = value;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(value);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      value = in.readInt();
+    }
+
+    public boolean equals(Object o) {
+      return o != null && o.getClass() == getClass()
+        && ((Custom) o).value == value;
+    }
+
+    public int hashCode() {
+      return value;
+    }
+  }
+
+  /** Another one. */
+  public static class OtherCustom extends Custom {
+    public OtherCustom() {}
+
+    public OtherCustom(int value) {
+      super(value);
+    }
+  }
+
+  // ids of Text and LongWritable, and of the first two custom classes
+  private static final byte TEXT_ID = -125;
+  private static final byte LONG_ID = -126;
+  private static final byte FIRST_CUSTOM_ID = -113;
+
+  public TestMapWritable(String name) {
+    super(name);
+  }
+
+  /**
+   * A map written as by the original implementation: custom classes get
+   * ids after the known ones, in the order they are first seen.
+   */
+  private static byte[] writeExpected() throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeInt(3);
+    out.writeByte(2);
+    out.writeByte(FIRST_CUSTOM_ID);
+    Text.writeString(out, Custom.class.getName());
+    out.writeByte(FIRST_CUSTOM_ID + 1);
+    Text.writeString(out, OtherCustom.class.getName());
+    out.writeByte(TEXT_ID);
+    out.writeByte(FIRST_CUSTOM_ID);
+    new Text("a").write(out);
+    new Custom(1).write(out);
+    out.writeByte(FIRST_CUSTOM_ID);
+    out.writeByte(FIRST_CUSTOM_ID + 1);
+    new Custom(2).write(out);
+    new OtherCustom(3).write(out);
+    out.writeByte(TEXT_ID);
+    out.writeByte(LONG_ID);
+    new Text("b").write(out);
+    new LongWritable(4).write(out);
+    return bytes(out);
+  }
+
+  private static MapWritable expected() {
+    MapWritable map = new MapWritable();
+    map.put(new Text("a"), new Custom(1));
+    map.put(new Custom(2), new OtherCustom(3));
+    map.put(new Text("b"), new LongWritable(4));
+    return map;
+  }
+
+  public void testReadOriginalFormat() throws IOException {
+    MapWritable map = new MapWritable();
+    map.readFields(input(writeExpected()));
+    assertEquals(expected(), map);
+    assertEquals(new OtherCustom(3), map.get(new Custom(2)));
+  }
+
+  public void testWriteOriginalFormat() throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    expected().write(out);
+    assertTrue(java.util.Arrays.equals(writeExpected(), bytes(out)));
+  }
+
+  public void testEmpty() throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    new MapWritable().write(out);
+    assertEquals(4, out.getLength());
+    MapWritable map = expected();
+    map.readFields(input(bytes(out)));
+    assertEquals(0, map.size());
+    assertNull(map.get(new Text("a")));
+  }
+
+  public void testReuse() throws IOException {
+    MapWritable other = new MapWritable();
+    other.put(new Text("a"), new Custom(5));
+    other.put(new Text("c"), new LongWritable(6));
+    DataOutputBuffer out = new DataOutputBuffer();
+    other.write(out);
+
+    MapWritable map = new MapWritable();
+    map.readFields(input(writeExpected()));
+    map.readFields(input(bytes(out)));
+    assertEquals(other, map);
+    map.readFields(input(writeExpected()));
+    assertEquals(expected(), map);
+  }
+
+  public void testCopySurvivesReadFields() throws IOException {
+    MapWritable map = new MapWritable();
+    map.readFields(input(writeExpected()));
+    MapWritable copy = new MapWritable(map);
+
+    MapWritable other = new MapWritable();
+    other.put(new Text("a"), new Custom(7));
+    other.put(new Text("b"), new LongWritable(8));
+    DataOutputBuffer out = new DataOutputBuffer();
+    other.write(out);
+    map.readFields(input(bytes(out)));
+
+    assertEquals(other, map);
+    assertEquals(expected(), copy);
+    // and the copy is still usable once the source is read again
+    map.readFields(input(writeExpected()));
+    copy.put(new Text("d"), new IntWritable(9));
+    assertEquals(expected(), map);
+    assertEquals(4, copy.size());
+  }
+
+  public void testCopyChangesDontAffectSource() throws IOException {
+    MapWritable map = new MapWritable();
+    map.readFields(input(writeExpected()));
+    MapWritable copy = new MapWritable(map);
+
+    copy.remove(new Text("a"));
+    copy.put(new Text("b"), new LongWritable(10));
+    copy.put(new Text("e"), new Text("new"));
+    assertEquals(expected(), map);
+    assertEquals(3, copy.size());
+    assertNull(copy.get(new Text("a")));
+    assertEquals(new LongWritable(10), copy.get(new Text("b")));
+
+    // nor the other way around
+    MapWritable source = expected();
+    copy = new MapWritable(source);
+    source.remove(new Custom(2));
+    source.clear();
+    assertEquals(expected(), copy);
+  }
+
+  // helpers
+
+  private static byte[] bytes(DataOutputBuffer out) {
+    byte[] data = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, data, 0, data.length);
+    return data;
+  }
+
+  private static DataInputBuffer input(byte[] data) {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, data.length);
+    return in;
+  }
+
+}